@@ -1,9 +1,10 @@
 package com.hmdp.config;
 
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.LoginSessionCache;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.SignedTokenService;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
@@ -21,7 +22,10 @@ import javax.annotation.Resource;
 public class MvcConfig implements WebMvcConfigurer {
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private LoginSessionCache loginSessionCache;
+
+    @Resource
+    private SignedTokenService signedTokenService;
 
     //添加拦截器
     @Override
@@ -31,7 +35,7 @@ public class MvcConfig implements WebMvcConfigurer {
                 .excludePathPatterns(
                         "/shop/**",         //放行店铺信息(与用户是否登录无关)
                         "/voucher/**",      //放行优惠信息(与用户是否登录无关)
-                        "/shop-type/**",    //放行店铺类型(与用户是否登录无关)
+                        "/shop-type/list",  //放行店铺类型列表(与用户是否登录无关)，新增、修改需要登录
                         "/blog/hot",        //放行热点接口(与用户是否登录无关)
                         "/upload/**",       //放行上传接口(用于测试)
                         "/user/code",       //放行验证码接口
@@ -40,7 +44,7 @@ public class MvcConfig implements WebMvcConfigurer {
 
         // token刷新的拦截器
         //默认从上往下执行,手动设置顺序的话小的先执行
-        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate))
+        registry.addInterceptor(new RefreshTokenInterceptor(loginSessionCache, signedTokenService))
                 .addPathPatterns("/**")
                 .order(0);
     }
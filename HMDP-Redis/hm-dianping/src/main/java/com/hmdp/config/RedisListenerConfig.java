@@ -0,0 +1,68 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.FollowGraphCache;
+import com.hmdp.utils.LoginSessionCache;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.ShopBloomFilter;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopTypeCatalog;
+import com.hmdp.utils.SignedTokenService;
+import com.hmdp.utils.UserSummaryCache;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_SHOP_ADD_CHANNEL;
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.FOLLOWS_INVALIDATE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.LOGIN_REVOKED_CHANNEL;
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_INVALIDATE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_REFILL_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_CHANGED_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SHOP_TYPE_CHANGED_CHANNEL;
+import static com.hmdp.utils.RedisConstants.USER_SUMMARY_INVALIDATE_CHANNEL;
+
+/**
+ * Redis发布订阅配置
+ * 多个实例之间同步本地状态（本地缓存、本地标记）用的，所有监听器共用一个容器（一条订阅连接）
+ */
+@Configuration
+public class RedisListenerConfig {
+
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory,
+                                                                       SeckillSoldOutRegistry soldOutRegistry,
+                                                                       CacheClient cacheClient,
+                                                                       ShopBloomFilter shopBloomFilter,
+                                                                       ShopGeoIndex shopGeoIndex,
+                                                                       ShopTypeCatalog shopTypeCatalog,
+                                                                       FollowGraphCache followGraphCache,
+                                                                       UserSummaryCache userSummaryCache,
+                                                                       LoginSessionCache loginSessionCache,
+                                                                       SignedTokenService signedTokenService) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        //秒杀库存补充，清除本地售罄标记
+        container.addMessageListener(soldOutRegistry, new ChannelTopic(SECKILL_STOCK_REFILL_CHANNEL));
+        //缓存删除，清除本地一级缓存
+        container.addMessageListener(cacheClient, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        //新增店铺，加入本地布隆过滤器
+        container.addMessageListener(shopBloomFilter, new ChannelTopic(BLOOM_SHOP_ADD_CHANNEL));
+        //新增、修改店铺，更新本机店铺位置索引
+        container.addMessageListener(shopGeoIndex, new ChannelTopic(SHOP_GEO_CHANGED_CHANNEL));
+        //修改店铺类型，重新加载本机类型列表
+        container.addMessageListener(shopTypeCatalog, new ChannelTopic(SHOP_TYPE_CHANGED_CHANNEL));
+        //关注关系变化，清除本地关注列表快照
+        container.addMessageListener(followGraphCache, new ChannelTopic(FOLLOWS_INVALIDATE_CHANNEL));
+        //用户修改昵称、头像，清除本地用户简要信息
+        container.addMessageListener(userSummaryCache, new ChannelTopic(USER_SUMMARY_INVALIDATE_CHANNEL));
+        //登出、修改登录信息，清除本地登录信息
+        container.addMessageListener(loginSessionCache, new ChannelTopic(LOGIN_USER_INVALIDATE_CHANNEL));
+        //登出吊销签名token，加入本地布隆过滤器
+        container.addMessageListener(signedTokenService, new ChannelTopic(LOGIN_REVOKED_CHANNEL));
+        return container;
+    }
+}
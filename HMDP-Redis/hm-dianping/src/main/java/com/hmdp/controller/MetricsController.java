@@ -0,0 +1,149 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IFeedService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheRebuildScheduler;
+import com.hmdp.utils.LoginSessionCache;
+import com.hmdp.utils.NearbyShopIndex;
+import com.hmdp.utils.SeckillStockReconciler;
+import com.hmdp.utils.ShopBloomFilter;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopTypeCatalog;
+import com.hmdp.utils.SignedTokenService;
+import com.hmdp.utils.UserSummaryCache;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * 运行指标，用于观察缓存等组件的效果
+ */
+@RestController
+@RequestMapping("/metrics")
+public class MetricsController {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheRebuildScheduler cacheRebuildScheduler;
+
+    @Resource
+    private ShopBloomFilter shopBloomFilter;
+
+    @Resource
+    private IFeedService feedService;
+
+    @Resource
+    private UserSummaryCache userSummaryCache;
+
+    @Resource
+    private LoginSessionCache loginSessionCache;
+
+    @Resource
+    private SignedTokenService signedTokenService;
+
+    @Resource
+    private NearbyShopIndex nearbyShopIndex;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @Resource
+    private ShopTypeCatalog shopTypeCatalog;
+
+    @Resource
+    private SeckillStockReconciler seckillStockReconciler;
+
+    /**
+     * 两级缓存的命中统计
+     */
+    @GetMapping("/cache")
+    public Result cacheStats() {
+        return Result.ok(cacheClient.stats());
+    }
+
+    /**
+     * 逻辑过期缓存重建线程池的指标
+     */
+    @GetMapping("/cache-rebuild")
+    public Result cacheRebuildStats() {
+        return Result.ok(cacheRebuildScheduler.stats());
+    }
+
+    /**
+     * 店铺布隆过滤器的参数、内存占用和误判率
+     */
+    @GetMapping("/bloom/shop")
+    public Result shopBloomStats() {
+        return Result.ok(shopBloomFilter.stats());
+    }
+
+    /**
+     * 关注流推送的吞吐量（收件箱写入/秒）、积压和延迟
+     */
+    @GetMapping("/feed")
+    public Result feedStats() {
+        return Result.ok(feedService.fanoutStats());
+    }
+
+    /**
+     * 用户简要信息两级缓存的命中统计
+     */
+    @GetMapping("/user-summary")
+    public Result userSummaryStats() {
+        return Result.ok(userSummaryCache.stats());
+    }
+
+    /**
+     * 登录信息本地缓存的命中率、查Redis和刷新有效期的次数
+     */
+    @GetMapping("/login-session")
+    public Result loginSessionStats() {
+        return Result.ok(loginSessionCache.stats());
+    }
+
+    /**
+     * 签名token：校验次数、查Redis判断吊销的次数、重新签发次数，吊销布隆过滤器的参数
+     */
+    @GetMapping("/login-token")
+    public Result loginTokenStats() {
+        return Result.ok(signedTokenService.stats());
+    }
+
+    /**
+     * 附近店铺：缓存的格子数、格子命中率、GEOSEARCH次数
+     */
+    @GetMapping("/shop-nearby")
+    public Result shopNearbyStats() {
+        return Result.ok(nearbyShopIndex.stats());
+    }
+
+    /**
+     * 本机店铺位置索引：是否启用、店铺数、格子数、查询次数、店铺变化次数
+     */
+    @GetMapping("/shop-geo")
+    public Result shopGeoStats() {
+        return Result.ok(shopGeoIndex.stats());
+    }
+
+    /**
+     * 店铺类型列表缓存：当前ETag、响应大小、加载次数、返回304的次数
+     */
+    @GetMapping("/shop-type")
+    public Result shopTypeStats() {
+        return Result.ok(shopTypeCatalog.stats());
+    }
+
+    /**
+     * 秒杀库存对账：上一轮检查的券数和偏差明细，累计重建、修复、放弃（期间有人下单）的次数，补回和删除的订单用户数
+     */
+    @GetMapping("/seckill-stock")
+    public Result seckillStockStats() {
+        return Result.ok(seckillStockReconciler.stats());
+    }
+}
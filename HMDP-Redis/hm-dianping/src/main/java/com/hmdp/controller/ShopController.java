@@ -47,8 +47,7 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        shopService.save(shop);
-        return Result.ok(shop.getId());
+        return shopService.saveShop(shop);
     }
 
 
@@ -65,6 +64,22 @@ public class ShopController {
         return shopService.queryShopByType(typeId, current, x, y);
     }
 
+    /**
+     * 附近的商铺，按距离从近到远，游标分页
+     *
+     * @param cursor 上一页返回的游标，第一页不传
+     * @return 商铺列表和下一页的游标（没有下一页时为null）
+     */
+    @GetMapping("/of/type/nearby")
+    public Result queryNearbyShops(
+            @RequestParam("typeId") Integer typeId,
+            @RequestParam("x") Double x,
+            @RequestParam("y") Double y,
+            @RequestParam(value = "cursor", required = false) String cursor
+    ) {
+        return shopService.queryNearbyShops(typeId, x, y, cursor);
+    }
+
     /**
      * 根据商铺名称关键字分页查询商铺信息
      *
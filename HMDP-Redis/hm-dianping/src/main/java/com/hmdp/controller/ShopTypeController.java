@@ -4,15 +4,23 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.ShopTypeCatalog;
+import org.springframework.http.CacheControl;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 
 import javax.annotation.Resource;
-import java.util.List;
 
 /**
- * 商铺类型Controller,尚未加入redis缓存,不用看了,是人家的课后作业
+ * 商铺类型Controller
+ * 类型列表几乎不变，本机缓存序列化好的响应（ShopTypeCatalog），支持 If-None-Match 返回304
  */
 @RestController
 @RequestMapping("/shop-type")
@@ -20,10 +28,41 @@ public class ShopTypeController {
     @Resource
     private IShopTypeService typeService;
 
+    @Resource
+    private ShopTypeCatalog shopTypeCatalog;
+
+    /**
+     * 店铺类型列表：不查数据库、不序列化，客户端的ETag还是最新的就返回304
+     */
     @GetMapping("list")
-    public Result queryTypeList() {
-        List<ShopType> typeList = typeService
-                .query().orderByAsc("sort").list();
-        return Result.ok(typeList);
+    public ResponseEntity<byte[]> queryTypeList(WebRequest request) {
+        ShopTypeCatalog.Snapshot snapshot = shopTypeCatalog.get();
+        // 1.比较 If-None-Match，一致时已经设置好304和ETag
+        if (request.checkNotModified(snapshot.getEtag())) {
+            shopTypeCatalog.notModified();
+            return null;
+        }
+        // 2.返回缓存的JSON，浏览器每次都带着ETag来确认
+        return ResponseEntity.ok()
+                .eTag(snapshot.getEtag())
+                .cacheControl(CacheControl.noCache())
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(snapshot.getJson());
+    }
+
+    /**
+     * 新增店铺类型
+     */
+    @PostMapping
+    public Result saveShopType(@RequestBody ShopType shopType) {
+        return typeService.saveShopType(shopType);
+    }
+
+    /**
+     * 修改店铺类型
+     */
+    @PutMapping
+    public Result updateShopType(@RequestBody ShopType shopType) {
+        return typeService.update(shopType);
     }
 }
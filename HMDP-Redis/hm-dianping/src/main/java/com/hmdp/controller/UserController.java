@@ -1,15 +1,14 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
-import com.hmdp.entity.User;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
 import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.UserSummaryCache;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
 
@@ -30,6 +29,9 @@ public class UserController {
     @Resource
     private IUserInfoService userInfoService;
 
+    @Resource
+    private UserSummaryCache userSummaryCache;
+
     /**
      * 登录功能1.获取手机号,生成验证码,保存验证码,发送验证码(由session实现已经修改为redis实现)
      * 多台tomcat集群的时候session不能共享
@@ -62,9 +64,16 @@ public class UserController {
      * 登出功能4.
      */
     @PostMapping("/logout")
-    public Result logout() {
-        // TODO 实现登出功能
-        return Result.fail("功能未完成");
+    public Result logout(@RequestHeader("authorization") String token) {
+        return userService.logout(token);
+    }
+
+    /**
+     * 修改当前用户的昵称、头像
+     */
+    @PutMapping("/me")
+    public Result updateMe(@RequestBody UserDTO userDTO, @RequestHeader("authorization") String token) {
+        return userService.updateProfile(userDTO, token);
     }
 
     @GetMapping("/info/{id}")
@@ -86,11 +95,11 @@ public class UserController {
      */
     @GetMapping("/{id}")
     public Result queryUserById(@PathVariable("id") Long userId) {
-        User user = userService.getById(userId);
-        if (user == null) {
+        // 查用户简要信息缓存，原来每次 userService.getById 查数据库
+        UserDTO userDTO = userSummaryCache.get(userId);
+        if (userDTO == null) {
             return Result.ok();
         }
-        UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
         return Result.ok(userDTO);
     }
 
@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Map;
 
 /**
  * <p>
@@ -13,4 +16,9 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface BlogMapper extends BaseMapper<Blog> {
 
+    /**
+     * 批量累加点赞数，一条UPDATE（CASE id WHEN ...）写入一批笔记
+     * @param deltas 笔记id -> 点赞数变化
+     */
+    int addLikedBatch(@Param("deltas") Map<Long, Long> deltas);
 }
@@ -0,0 +1,33 @@
+package com.hmdp.service;
+
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.entity.Blog;
+
+import java.util.Map;
+
+/**
+ * <p>
+ *  关注流（feed）服务类
+ *  普通作者发布时由推送线程（消息队列 stream.feed）推送到粉丝收件箱，粉丝很多的作者只写发件箱，粉丝读取时再拉取合并
+ * </p>
+ */
+public interface IFeedService {
+
+    /**
+     * 发布笔记后调用，写发件箱并发消息，由推送线程推送到粉丝收件箱
+     */
+    void publish(Blog blog);
+
+    /**
+     * 推送的吞吐量、积压和延迟
+     */
+    Map<String, Object> fanoutStats();
+
+    /**
+     * 滚动分页查询关注流
+     * @param max    上一页最小的时间戳（第一页传当前时间）
+     * @param offset 上一页中和最小时间戳相同的个数（第一页传0）
+     * @return list 是笔记id，没有数据返回null
+     */
+    ScrollResult queryFeed(Long userId, Long max, Integer offset);
+}
@@ -18,5 +18,9 @@ public interface IShopService extends IService<Shop> {
 
     Result update(Shop shop);
 
+    Result saveShop(Shop shop);
+
     Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+
+    Result queryNearbyShops(Integer typeId, Double x, Double y, String cursor);
 }
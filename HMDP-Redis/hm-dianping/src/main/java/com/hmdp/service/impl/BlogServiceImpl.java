@@ -1,6 +1,6 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
@@ -8,27 +8,41 @@ import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
-import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
-import com.hmdp.service.IFollowService;
-import com.hmdp.service.IUserService;
+import com.hmdp.service.IFeedService;
+import com.hmdp.utils.HotBlogRanking;
+import com.hmdp.utils.RedisBatch;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.UserSummaryCache;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_DELTA_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_FLUSHING_KEY;
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
-import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_BLOG_LIKE_FLUSH_KEY;
 
 /**
  * <p>
@@ -38,31 +52,65 @@ import static com.hmdp.utils.RedisConstants.FEED_KEY;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
 
     @Resource
-    private IUserService userService;
+    private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private IFeedService feedService;
+
+    @Resource
+    private UserSummaryCache userSummaryCache;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private HotBlogRanking hotBlogRanking;
 
     @Resource
-    private IFollowService followService;
+    private TransactionTemplate transactionTemplate;
+
+    //点赞数是否先记在Redis，定时批量写入数据库
+    @Value("${hmdp.blog.like.write-behind:false}")
+    private boolean likeWriteBehind;
+
+    //每条UPDATE最多更新多少篇笔记
+    @Value("${hmdp.blog.like.flush-batch-size:500}")
+    private int likeFlushBatchSize;
+
+    private static final DefaultRedisScript<Long> LIKE_SCRIPT;
+
+    static {
+        LIKE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_SCRIPT.setLocation(new ClassPathResource("like.lua"));
+        LIKE_SCRIPT.setResultType(Long.class);
+    }
 
     @Override
     public Result queryHotBlog(Integer current) {
-        // 根据用户查询
+        // 优先从排行榜取一页id（ZREVRANGE，榜外的部分按同样的分数从数据库取），不用数据库排序和count
+        List<Long> ids = hotBlogRanking.page(current, SystemConstants.MAX_PAGE_SIZE);
+        if (ids != null) {
+            if (ids.isEmpty()) {
+                return Result.ok(Collections.emptyList());
+            }
+            String idStr = StrUtil.join(",", ids);
+            List<Blog> records = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+            hydrateBlogs(records);
+            return Result.ok(records);
+        }
+        // 排行榜还没建好，根据点赞数查询
         Page<Blog> page = query()
                 .orderByDesc("liked")
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
+        // 查询用户、是否点赞（整页一起查）
+        hydrateBlogs(records);
         return Result.ok(records);
     }
 
@@ -73,31 +121,82 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (blog == null) {
             return Result.fail("笔记不存在！");
         }
-        // 2.查询blog有关的用户
-        queryBlogUser(blog);
-        // 3.查询blog是否被点赞
-        isBlogLiked(blog);
+        // 2.查询blog有关的用户、是否被点赞
+        hydrateBlogs(Collections.singletonList(blog));
         return Result.ok(blog);
     }
 
-    private void isBlogLiked(Blog blog) {
-        // 1.获取登录用户
+    /**
+     * 批量填充笔记的作者信息和当前用户是否点赞
+     * 原来每条笔记查一次数据库（作者）和一次Redis（ZSCORE），一页N条就是2N次往返；
+     * 现在作者走用户缓存，未命中的一条 IN 查询补齐，是否点赞用一次管道批量ZSCORE
+     */
+    private void hydrateBlogs(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        // 1.作者信息
+        Set<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toSet());
+        Map<Long, UserDTO> users = userSummaryCache.getAll(userIds);
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
+        // 2.获取登录用户
         UserDTO user = UserHolder.getUser();
-        if (user == null) {
+        if (user == null && !likeWriteBehind) {
             // 用户未登录，无需查询是否点赞
             return;
         }
-        Long userId = user.getId();
-        // 2.判断当前登录用户是否已经点赞
-        String key = "blog:liked:" + blog.getId();
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        blog.setIsLike(score != null);
+        // 3.一次管道查询所有笔记的 ZSCORE blog:liked:{id} userId
+        //   write-behind模式下顺便查还没写入数据库的点赞数增量 HGET blog:liked:delta(:flushing) id
+        RedisBatch batch = RedisBatch.of(stringRedisTemplate);
+        List<CompletableFuture<Double>> scores = new ArrayList<>(blogs.size());
+        List<CompletableFuture<String>> deltas = new ArrayList<>(blogs.size() * 2);
+        for (Blog blog : blogs) {
+            if (user != null) {
+                scores.add(batch.zScore(BLOG_LIKED_KEY + blog.getId(), user.getId()));
+            }
+            if (likeWriteBehind) {
+                deltas.add(batch.hGet(BLOG_LIKED_DELTA_KEY, blog.getId()));
+                deltas.add(batch.hGet(BLOG_LIKED_FLUSHING_KEY, blog.getId()));
+            }
+        }
+        batch.execute();
+        for (int i = 0; i < blogs.size(); i++) {
+            Blog blog = blogs.get(i);
+            if (user != null) {
+                blog.setIsLike(scores.get(i).join() != null);
+            }
+            if (likeWriteBehind) {
+                long delta = parseDelta(deltas.get(2 * i).join()) + parseDelta(deltas.get(2 * i + 1).join());
+                if (delta != 0) {
+                    blog.setLiked((int) (blog.getLiked() == null ? delta : blog.getLiked() + delta));
+                }
+            }
+        }
+    }
+
+    private static long parseDelta(String value) {
+        return value == null ? 0 : Long.parseLong(value);
     }
 
     @Override
     public Result likeBlog(Long id) {
         // 1.获取登录用户id
         Long userId = UserHolder.getUser().getId();
+        if (likeWriteBehind) {
+            // write-behind模式：一次lua完成判断、点赞/取消和增量记录，数据库由定时任务批量更新
+            stringRedisTemplate.execute(
+                    LIKE_SCRIPT,
+                    Collections.emptyList(),
+                    id.toString(), userId.toString(), String.valueOf(System.currentTimeMillis())
+            );
+            return Result.ok();
+        }
         // 2.判断当前登录用户是否已经点赞
         //2.1 使用blogId拼接key
         String key = BLOG_LIKED_KEY + id;
@@ -109,6 +208,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             // 保存用户到Redis的set集合  语法：zadd  key  value  score
             if (isSuccess) {
                 stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+                hotBlogRanking.incrementLiked(id, 1);
             }
         } else {
             // 如果已点赞，则取消，数据库点赞数 -1
@@ -116,6 +216,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             // 把用户从Redis的set集合移除
             if (isSuccess) {
                 stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+                hotBlogRanking.incrementLiked(id, -1);
             }
         }
         return Result.ok();
@@ -131,14 +232,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         // 2.解析出其中的用户id
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        //拼接id字符串，用于拼接sql
-        String idStr = StrUtil.join(",", ids);
-        // 3.根据用户id查询用户信息 sql--> WHERE id IN ( 5 , 1 ) ORDER BY FIELD(id, 5, 1)要加一个排序，要不然不是我们想要的顺序
-        List<UserDTO> userDTOS = userService.query()
-                .in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list()
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        // 3.根据用户id查询用户信息，按点赞顺序返回（两级缓存，未命中的一次IN查询）
+        //   原来每次查数据库 WHERE id IN ( 5 , 1 ) ORDER BY FIELD(id, 5, 1)
+        List<UserDTO> userDTOS = userSummaryCache.list(ids);
         // 4.返回
         return Result.ok(userDTOS);
     }
@@ -153,17 +249,11 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!isSuccess) {
             return Result.fail("新增笔记失败!");
         }
-        // 3.查询笔记作者的所有粉丝 select * from tb_follow where follow_user_id = ?
-        List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
-        // 4.推送笔记id给所有粉丝(zset实现)
-        for (Follow follow : follows) {
-            // 4.1.获取粉丝id
-            Long userId = follow.getUserId();
-            // 4.2.推送
-            String key = FEED_KEY + userId;
-            stringRedisTemplate.opsForZSet().add(key, blog.getId().toString(), System.currentTimeMillis());
-        }
-        // 5.返回id
+        // 加入热门排行榜
+        hotBlogRanking.add(blog.getId(), blog.getCreateTime());
+        // 3.推送给粉丝：普通作者异步分批推送到收件箱，大V只写发件箱，由粉丝读取时拉取
+        feedService.publish(blog);
+        // 4.返回id
         return Result.ok(blog.getId());
     }
 
@@ -171,55 +261,114 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     public Result queryBlogOfFollow(Long max, Integer offset) {
         // 1.获取当前用户
         Long userId = UserHolder.getUser().getId();
-        // 2.查询收件箱 ZREVRANGEBYSCORE key Max Min LIMIT offset count
-        String key = FEED_KEY + userId;
-        Set<ZSetOperations.TypedTuple<String>> typedTuples = stringRedisTemplate.opsForZSet()
-                .reverseRangeByScoreWithScores(key, 0, max, offset, 2);
+        // 2.查询收件箱，合并关注的大V的发件箱，解析出 blogId、minTime（时间戳）、offset
+        ScrollResult r = feedService.queryFeed(userId, max, offset);
         // 3.非空判断
-        if (typedTuples == null || typedTuples.isEmpty()) {
+        if (r == null) {
             return Result.ok();
         }
-        // 4.解析数据：blogId、minTime（时间戳）、offset
-        List<Long> ids = new ArrayList<>(typedTuples.size());
-        long minTime = 0; // 2
-        int os = 1; // 2
-        for (ZSetOperations.TypedTuple<String> tuple : typedTuples) { // 5 4 4 2 2
-            // 4.1.获取id
-            ids.add(Long.valueOf(tuple.getValue()));
-            // 4.2.获取分数(时间戳）
-            long time = tuple.getScore().longValue();
-            if (time == minTime) {
-                os++;
-            } else {
-                minTime = time;
-                os = 1;
-            }
-        }
+        @SuppressWarnings("unchecked")
+        List<Long> ids = (List<Long>) r.getList();
 
         // 5.根据id查询blog
         String idStr = StrUtil.join(",", ids);
         List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
 
-        for (Blog blog : blogs) {
-            // 5.1.查询blog有关的用户
-            queryBlogUser(blog);
-            // 5.2.查询blog是否被点赞
-            isBlogLiked(blog);
-        }
+        // 5.1.查询blog有关的用户、是否被点赞（整页一起查）
+        hydrateBlogs(blogs);
 
         // 6.封装并返回
-        ScrollResult r = new ScrollResult();
         r.setList(blogs);
-        r.setOffset(os);
-        r.setMinTime(minTime);
-
         return Result.ok(r);
     }
 
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    //**********************************************************************点赞数写回数据库（write-behind）
+
+    /**
+     * 把Redis里累积的点赞数增量批量写入 tb_blog.liked
+     * 1.多个实例只有拿到锁的去写
+     * 2.先把增量hash整体改名为flushing，之后的点赞写到新的增量hash里，互不影响
+     * 3.flushing在数据库事务提交后才删除；进程在中途挂了，下次先重放遗留的flushing，增量不会丢
+     *   （事务提交后、删除前挂掉会重复累加一次，窗口只有一条DEL，由点赞数对账兜底）
+     * 4.点赞时不查数据库，任意id都能记下点赞和增量；写入前去掉不存在的笔记，删掉它们的点赞集合
+     */
+    @Scheduled(fixedDelayString = "${hmdp.blog.like.flush-interval:5000}")
+    public void flushLikeDeltas() {
+        if (!likeWriteBehind) {
+            return;
+        }
+        RLock lock = redissonClient.getLock(LOCK_BLOG_LIKE_FLUSH_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            // 1.没有遗留的flushing，把当前的增量改名（两个EXISTS一次往返）
+            RedisBatch redisBatch = RedisBatch.of(stringRedisTemplate);
+            CompletableFuture<Boolean> hasFlushing = redisBatch.exists(BLOG_LIKED_FLUSHING_KEY);
+            CompletableFuture<Boolean> hasDelta = redisBatch.exists(BLOG_LIKED_DELTA_KEY);
+            redisBatch.execute();
+            if (!BooleanUtil.isTrue(hasFlushing.join())) {
+                if (!BooleanUtil.isTrue(hasDelta.join())) {
+                    return;
+                }
+                stringRedisTemplate.rename(BLOG_LIKED_DELTA_KEY, BLOG_LIKED_FLUSHING_KEY);
+            }
+            // 2.读出增量，跳过点赞又取消抵消掉的
+            Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(BLOG_LIKED_FLUSHING_KEY);
+            Map<Long, Long> deltas = new LinkedHashMap<>(entries.size() * 2);
+            entries.forEach((blogId, delta) -> {
+                long d = Long.parseLong(delta.toString());
+                if (d != 0) {
+                    deltas.put(Long.valueOf(blogId.toString()), d);
+                }
+            });
+            // 2.1.去掉不存在的笔记，删掉为它们创建的点赞集合
+            Set<Long> missing = missingBlogs(deltas.keySet());
+            if (!missing.isEmpty()) {
+                missing.forEach(deltas::remove);
+                stringRedisTemplate.delete(missing.stream().map(blogId -> BLOG_LIKED_KEY + blogId).collect(Collectors.toList()));
+                log.warn("点赞了不存在的笔记，已丢弃：{}", missing);
+            }
+            // 3.分批写入数据库，同一个事务，要么全写要么全不写
+            if (!deltas.isEmpty()) {
+                transactionTemplate.executeWithoutResult(status -> {
+                    Map<Long, Long> batch = new LinkedHashMap<>();
+                    for (Map.Entry<Long, Long> entry : deltas.entrySet()) {
+                        batch.put(entry.getKey(), entry.getValue());
+                        if (batch.size() >= likeFlushBatchSize) {
+                            getBaseMapper().addLikedBatch(batch);
+                            batch.clear();
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        getBaseMapper().addLikedBatch(batch);
+                    }
+                });
+            }
+            // 4.写入成功，删除flushing
+            stringRedisTemplate.delete(BLOG_LIKED_FLUSHING_KEY);
+            log.debug("点赞数写回数据库，笔记数：{}", deltas.size());
+        } catch (Exception e) {
+            log.error("点赞数写回数据库失败，下次重试", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //数据库里不存在的笔记id，每批一条 SELECT id FROM tb_blog WHERE id IN (...)
+    private Set<Long> missingBlogs(Set<Long> blogIds) {
+        Set<Long> missing = new HashSet<>(blogIds);
+        List<Long> ids = new ArrayList<>(blogIds);
+        for (int i = 0; i < ids.size(); i += likeFlushBatchSize) {
+            List<Long> batch = ids.subList(i, Math.min(i + likeFlushBatchSize, ids.size()));
+            query().select("id").in("id", batch).list().forEach(blog -> missing.remove(blog.getId()));
+        }
+        return missing;
+    }
+
+    @PreDestroy
+    public void flushOnShutdown() {
+        // 停机前把最后一批写进去
+        flushLikeDeltas();
     }
 }
@@ -0,0 +1,440 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Follow;
+import com.hmdp.service.IFeedService;
+import com.hmdp.service.IFollowService;
+import com.hmdp.utils.FollowGraphCache;
+import com.hmdp.utils.StreamDeadLetter;
+import io.lettuce.core.RedisBusyException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.FEED_BIG_AUTHORS_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_FANOUT_PROGRESS_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_OUTBOX_KEY;
+
+/**
+ * <p>
+ *  关注流：推拉结合
+ *  1.每篇笔记都写进作者的发件箱 feed:outbox:{作者id}
+ *  2.发布消息到 stream.feed，由消费者组里的推送线程处理，请求线程不再推送
+ *  3.粉丝数小于阈值的作者：按id分页读取粉丝，分批推送到粉丝的收件箱 feed:{粉丝id}（管道批量ZADD）
+ *    每推完一批把进度（最后一个粉丝的follow id）记到 feed:fanout:progress，宕机重启后从pending-list接着推
+ *    粉丝数达到阈值的作者：记入大V集合 feed:big-authors，不推送；粉丝读取时从大V的发件箱拉取
+ *  4.读取时把收件箱和关注的大V的发件箱按时间戳合并，沿用 max/offset 的滚动分页
+ *  收件箱、发件箱都限制长度，超出的旧数据删掉
+ * </p>
+ */
+@Slf4j
+@Service
+public class FeedServiceImpl implements IFeedService {
+
+    //每页条数
+    private static final int PAGE_SIZE = 2;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IFollowService followService;
+
+    @Resource
+    private FollowGraphCache followGraphCache;
+
+    @Resource
+    private StreamDeadLetter streamDeadLetter;
+
+    //粉丝数达到多少就不再推送，改为粉丝读取时拉取
+    @Value("${hmdp.feed.big-author-threshold:10000}")
+    private int bigAuthorThreshold;
+
+    //收件箱最多保留多少条
+    @Value("${hmdp.feed.inbox-cap:1000}")
+    private int inboxCap;
+
+    //发件箱最多保留多少条
+    @Value("${hmdp.feed.outbox-cap:1000}")
+    private int outboxCap;
+
+    //每次从数据库读多少个粉丝、一个管道推送多少个收件箱
+    @Value("${hmdp.feed.push-batch-size:1000}")
+    private int pushBatchSize;
+
+    //推送消息队列与消费者组
+    private static final String STREAM_FEED = "stream.feed";
+    private static final String GROUP_NAME = "g1";
+
+    //推送线程数（每个消费者一个线程，消费者名为 前缀+序号）
+    @Value("${hmdp.feed.fanout.consumer-count:2}")
+    private int consumerCount;
+    //消费者名前缀，多实例部署时每个实例要配置不同的前缀，否则会抢同一个pending-list
+    @Value("${hmdp.feed.fanout.consumer-prefix:c}")
+    private String consumerPrefix;
+    //每次XREADGROUP读取的最大消息数（一条消息就是一篇笔记的推送任务）
+    @Value("${hmdp.feed.fanout.read-count:10}")
+    private int readCount;
+    //单条消息最多投递几次，还失败就转入死信队列 stream.feed.dead
+    @Value("${hmdp.feed.fanout.max-deliveries:3}")
+    private int maxDeliveries;
+
+    //线程池
+    private ExecutorService fanoutExecutor;
+    private volatile boolean running = true;
+    //已写入的收件箱条数、已推送完的笔记数，用于统计吞吐量
+    private final LongAdder inboxWrites = new LongAdder();
+    private final LongAdder fanoutDone = new LongAdder();
+    private long lastReportCount = 0;
+    private long lastReportTime = System.currentTimeMillis();
+    private volatile long inboxWritesPerSecond = 0;
+    //最近一次推送完成时，这条消息从发布到推送完花的时间（毫秒）
+    private volatile long lastFanoutMillis = 0;
+
+    //启动时创建消息队列和消费者组，并启动推送线程
+    @PostConstruct
+    private void init() {
+        DefaultRedisScript<Object> createGroupScript = new DefaultRedisScript<>("redis.call('xgroup', 'create', ARGV[1], ARGV[2], '0', 'mkstream')");
+        try {
+            stringRedisTemplate.execute(createGroupScript, Collections.emptyList(), STREAM_FEED, GROUP_NAME);
+        } catch (RedisBusyException | RedisSystemException e) {
+            log.info("推送消息队列已经创建了");
+        }
+        fanoutExecutor = Executors.newFixedThreadPool(consumerCount);
+        for (int i = 0; i < consumerCount; i++) {
+            fanoutExecutor.submit(new FanoutHandler(consumerPrefix + i));
+        }
+    }
+
+    @Override
+    public void publish(Blog blog) {
+        Long authorId = blog.getUserId();
+        String blogId = blog.getId().toString();
+        long now = System.currentTimeMillis();
+        // 1.写发件箱，并裁剪长度
+        String outboxKey = FEED_OUTBOX_KEY + authorId;
+        stringRedisTemplate.opsForZSet().add(outboxKey, blogId, now);
+        stringRedisTemplate.opsForZSet().removeRange(outboxKey, 0, -outboxCap - 1);
+        // 2.发消息，由推送线程判断大V、推送到粉丝收件箱 XADD stream.feed * authorId x blogId x time x
+        Map<String, String> message = new HashMap<>();
+        message.put("authorId", authorId.toString());
+        message.put("blogId", blogId);
+        message.put("time", String.valueOf(now));
+        stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(STREAM_FEED).ofMap(message));
+    }
+
+    private class FanoutHandler implements Runnable {
+
+        private final Consumer consumer;
+
+        FanoutHandler(String consumerName) {
+            this.consumer = Consumer.from(GROUP_NAME, consumerName);
+        }
+
+        @Override
+        public void run() {
+            // 启动时先处理上次没ACK的消息（服务宕机时推了一半的）
+            handlePendingList();
+            while (running) {
+                try {
+                    // 1.获取消息 XREADGROUP GROUP g1 c0 COUNT 10 BLOCK 2000 STREAMS stream.feed >
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            consumer,
+                            StreamReadOptions.empty().count(readCount).block(Duration.ofSeconds(2)),
+                            StreamOffset.create(STREAM_FEED, ReadOffset.lastConsumed())
+                    );
+                    // 2.没有消息，继续下一次循环
+                    if (list == null || list.isEmpty()) {
+                        continue;
+                    }
+                    // 3.逐条推送并确认，有推送失败留在pending-list的就去重试
+                    if (!handleRecords(list)) {
+                        handlePendingList();
+                    }
+                } catch (Exception e) {
+                    log.error("推送笔记异常", e);
+                    handlePendingList();
+                }
+            }
+        }
+
+        private void handlePendingList() {
+            while (running) {
+                try {
+                    // 1.获取pending-list中的消息 XREADGROUP GROUP g1 c0 COUNT 10 STREAMS stream.feed 0
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            consumer,
+                            StreamReadOptions.empty().count(readCount),
+                            StreamOffset.create(STREAM_FEED, ReadOffset.from("0"))
+                    );
+                    // 2.没有未确认的消息，结束循环
+                    if (list == null || list.isEmpty()) {
+                        break;
+                    }
+                    // 3.逐条推送（从记录的进度接着推）并确认，还有没处理成功的（未到投递上限）等一会再重试
+                    if (!handleRecords(list)) {
+                        pause();
+                    }
+                } catch (Exception e) {
+                    log.error("处理pending推送异常", e);
+                    pause();
+                }
+            }
+        }
+
+        // 避免数据库/Redis故障时空转
+        private void pause() {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                running = false;
+            }
+        }
+
+        /**
+         * 逐条推送，一条失败不影响同一批的其他消息
+         *
+         * @return 是否全部处理完（确认或转入死信队列）
+         */
+        private boolean handleRecords(List<MapRecord<String, Object, Object>> records) {
+            boolean done = true;
+            for (MapRecord<String, Object, Object> record : records) {
+                String recordId = record.getId().getValue();
+                try {
+                    Map<Object, Object> value = record.getValue();
+                    if (value.get("authorId") == null || value.get("blogId") == null || value.get("time") == null) {
+                        throw new IllegalArgumentException("推送消息缺少字段：" + value);
+                    }
+                    fanout(recordId,
+                            Long.valueOf(value.get("authorId").toString()),
+                            value.get("blogId").toString(),
+                            Long.parseLong(value.get("time").toString()));
+                } catch (Exception e) {
+                    // 失败：没到投递上限留在pending-list，到了就转入死信队列，已推送的部分不撤回
+                    if (streamDeadLetter.onFailure(consumer, record, e, maxDeliveries)) {
+                        stringRedisTemplate.opsForHash().delete(FEED_FANOUT_PROGRESS_KEY, recordId);
+                    } else {
+                        done = false;
+                    }
+                    continue;
+                }
+                // 推送完成：确认消息，删掉进度 XACK stream.feed g1 id
+                stringRedisTemplate.opsForStream().acknowledge(STREAM_FEED, GROUP_NAME, record.getId());
+                stringRedisTemplate.opsForHash().delete(FEED_FANOUT_PROGRESS_KEY, recordId);
+                fanoutDone.increment();
+                lastFanoutMillis = System.currentTimeMillis() - record.getId().getTimestamp();
+            }
+            return done;
+        }
+    }
+
+    /**
+     * 推送一篇笔记：按id分页读取粉丝，每批一个管道 ZADD feed:{粉丝id} 时间戳 笔记id，并裁剪收件箱长度
+     * 每推完一批记录进度，重新处理同一条消息时跳过已推送的粉丝（ZADD本身是幂等的，重推最后一批也没关系）
+     */
+    private void fanout(String recordId, Long authorId, String blogId, long time) {
+        // 1.判断是不是大V select count(*) from tb_follow where follow_user_id = ?
+        Integer followers = followService.query().eq("follow_user_id", authorId).count();
+        if (followers >= bigAuthorThreshold) {
+            // 1.1.大V不推送，粉丝读取时拉取（一旦成为大V就一直按大V处理，否则粉丝会看不到发件箱里的旧笔记）
+            stringRedisTemplate.opsForSet().add(FEED_BIG_AUTHORS_KEY, authorId.toString());
+            return;
+        }
+        // 2.上次推送到哪了
+        Object progress = stringRedisTemplate.opsForHash().get(FEED_FANOUT_PROGRESS_KEY, recordId);
+        long lastId = progress == null ? 0 : Long.parseLong(progress.toString());
+        byte[] member = blogId.getBytes(StandardCharsets.UTF_8);
+        while (true) {
+            // 3.按id分页查询粉丝 select id, user_id from tb_follow where follow_user_id = ? and id > ? limit ?
+            List<Follow> follows = followService.query()
+                    .select("id", "user_id")
+                    .eq("follow_user_id", authorId)
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("LIMIT " + pushBatchSize)
+                    .list();
+            if (follows.isEmpty()) {
+                return;
+            }
+            // 4.一个管道推送这一批
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Follow follow : follows) {
+                    byte[] key = (FEED_KEY + follow.getUserId()).getBytes(StandardCharsets.UTF_8);
+                    connection.zSetCommands().zAdd(key, time, member);
+                    connection.zSetCommands().zRemRange(key, 0, -inboxCap - 1);
+                }
+                return null;
+            });
+            inboxWrites.add(follows.size());
+            if (follows.size() < pushBatchSize) {
+                return;
+            }
+            // 5.记录进度
+            lastId = follows.get(follows.size() - 1).getId();
+            stringRedisTemplate.opsForHash().put(FEED_FANOUT_PROGRESS_KEY, recordId, String.valueOf(lastId));
+        }
+    }
+
+    /**
+     * 定时计算并打印推送吞吐量（收件箱写入/秒）
+     */
+    @Scheduled(fixedDelayString = "${hmdp.feed.fanout.report-interval:10000}")
+    public void reportThroughput() {
+        long now = System.currentTimeMillis();
+        long count = inboxWrites.sum();
+        long delta = count - lastReportCount;
+        inboxWritesPerSecond = delta * 1000 / Math.max(now - lastReportTime, 1);
+        if (delta > 0) {
+            log.info("笔记推送吞吐量：{} 条收件箱/秒，累计 {} 条", inboxWritesPerSecond, count);
+        }
+        lastReportCount = count;
+        lastReportTime = now;
+    }
+
+    @Override
+    public Map<String, Object> fanoutStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("inboxWrites", inboxWrites.sum());
+        stats.put("inboxWritesPerSecond", inboxWritesPerSecond);
+        stats.put("fanoutDone", fanoutDone.sum());
+        stats.put("lastFanoutMillis", lastFanoutMillis);
+        // 已读取未确认的消息数 XPENDING stream.feed g1
+        PendingMessagesSummary pending = stringRedisTemplate.opsForStream().pending(STREAM_FEED, GROUP_NAME);
+        stats.put("pending", pending == null ? 0 : pending.getTotalPendingMessages());
+        stats.put("inProgress", stringRedisTemplate.opsForHash().size(FEED_FANOUT_PROGRESS_KEY));
+        // 延迟：最早的没推送完的消息（未确认的、还没读取的）发布到现在的时间
+        long oldest = Long.MAX_VALUE;
+        if (pending != null && pending.getTotalPendingMessages() > 0) {
+            oldest = RecordId.of(pending.minMessageId()).getTimestamp();
+        }
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(STREAM_FEED);
+        String lastDeliveredId = groups.stream()
+                .filter(g -> GROUP_NAME.equals(g.groupName()))
+                .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                .findFirst().orElse("0-0");
+        // XRANGE stream.feed (lastDeliveredId + COUNT 1
+        List<MapRecord<String, Object, Object>> undelivered = stringRedisTemplate.opsForStream().range(STREAM_FEED,
+                Range.rightUnbounded(Range.Bound.exclusive(lastDeliveredId)),
+                RedisZSetCommands.Limit.limit().count(1));
+        if (undelivered != null && !undelivered.isEmpty()) {
+            oldest = Math.min(oldest, undelivered.get(0).getId().getTimestamp());
+        }
+        stats.put("lagMillis", oldest == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - oldest);
+        return stats;
+    }
+
+    @Override
+    public ScrollResult queryFeed(Long userId, Long max, Integer offset) {
+        // 1.数据来源：自己的收件箱 + 关注的大V的发件箱
+        List<String> keys = new ArrayList<>();
+        keys.add(FEED_KEY + userId);
+        for (Long authorId : followedBigAuthors(userId)) {
+            keys.add(FEED_OUTBOX_KEY + authorId);
+        }
+        // 2.每个来源取 offset + PAGE_SIZE 条，一个管道 ZREVRANGEBYSCORE key max 0 WITHSCORES LIMIT 0 count
+        int count = offset + PAGE_SIZE;
+        RedisZSetCommands.Range range = RedisZSetCommands.Range.range().gte(0).lte(max);
+        RedisZSetCommands.Limit limit = RedisZSetCommands.Limit.limit().offset(0).count(count);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.zSetCommands().zRevRangeByScoreWithScores(key.getBytes(StandardCharsets.UTF_8), range, limit);
+            }
+            return null;
+        });
+        // 3.合并：同一篇笔记只留一次，按时间戳倒序，时间戳相同按id倒序（和ZREVRANGE的顺序一致）
+        Map<String, Double> merged = new HashMap<>();
+        for (Object result : results) {
+            if (result == null) {
+                continue;
+            }
+            for (Object item : (Collection<?>) result) {
+                ZSetOperations.TypedTuple<?> tuple = (ZSetOperations.TypedTuple<?>) item;
+                merged.merge(String.valueOf(tuple.getValue()), tuple.getScore(), Math::max);
+            }
+        }
+        List<Map.Entry<String, Double>> typedTuples = merged.entrySet().stream()
+                .sorted(Comparator.comparing((Map.Entry<String, Double> e) -> e.getValue())
+                        .thenComparing(Map.Entry::getKey).reversed())
+                .skip(offset)
+                .limit(PAGE_SIZE)
+                .collect(Collectors.toList());
+        // 4.非空判断
+        if (typedTuples.isEmpty()) {
+            return null;
+        }
+        // 5.解析数据：blogId、minTime（时间戳）、offset
+        List<Long> ids = new ArrayList<>(typedTuples.size());
+        long minTime = 0;
+        int os = 1;
+        for (Map.Entry<String, Double> tuple : typedTuples) {
+            // 5.1.获取id
+            ids.add(Long.valueOf(tuple.getKey()));
+            // 5.2.获取分数(时间戳）
+            long time = tuple.getValue().longValue();
+            if (time == minTime) {
+                os++;
+            } else {
+                minTime = time;
+                os = 1;
+            }
+        }
+        // 6.封装并返回
+        ScrollResult r = new ScrollResult();
+        r.setList(ids);
+        r.setOffset(os);
+        r.setMinTime(minTime);
+        return r;
+    }
+
+    /**
+     * 当前用户关注的大V，大V集合很小，逐个在关注列表里查找
+     */
+    private List<Long> followedBigAuthors(Long userId) {
+        Set<String> bigAuthors = stringRedisTemplate.opsForSet().members(FEED_BIG_AUTHORS_KEY);
+        if (bigAuthors == null || bigAuthors.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return bigAuthors.stream()
+                .map(Long::valueOf)
+                .filter(authorId -> followGraphCache.isFollowing(userId, authorId))
+                .collect(Collectors.toList());
+    }
+
+    @PreDestroy
+    private void destroy() {
+        //停止消费，未ACK的消息留在pending-list，下次启动时由同名消费者从记录的进度接着推
+        running = false;
+        fanoutExecutor.shutdown();
+    }
+}
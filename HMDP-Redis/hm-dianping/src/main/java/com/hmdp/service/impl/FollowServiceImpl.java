@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
@@ -8,16 +7,14 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Follow;
 import com.hmdp.mapper.FollowMapper;
 import com.hmdp.service.IFollowService;
-import com.hmdp.service.IUserService;
+import com.hmdp.utils.FollowGraphCache;
 import com.hmdp.utils.UserHolder;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.UserSummaryCache;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import java.util.Collections;
 import java.util.List;
-import java.util.Set;
-import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -31,15 +28,14 @@ import java.util.stream.Collectors;
 public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> implements IFollowService {
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private FollowGraphCache followGraphCache;
     @Resource
-    private IUserService userService;
+    private UserSummaryCache userSummaryCache;
 
     @Override
     public Result follow(Long followUserId, Boolean isFollow) {
         // 1.获取登录用户
         Long userId = UserHolder.getUser().getId();
-        String key = "follows:" + userId;
         // 1.判断到底是关注还是取关
         if (isFollow) {
             // 2.关注，新增数据
@@ -48,16 +44,17 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
             follow.setFollowUserId(followUserId);
             boolean isSuccess = save(follow);
             if (isSuccess) {
-                // 把关注用户的id，放入redis的set集合 sadd userId followerUserId
-                stringRedisTemplate.opsForSet().add(key, followUserId.toString());
+                // 删除关注列表缓存，下次读取时从数据库重新加载
+                // （原来是 sadd follows:{userId} followUserId，但set没加载过时只会有这一个人，共同关注就不对了）
+                followGraphCache.invalidate(userId);
             }
         } else {
             // 3.取关，删除 delete from tb_follow where user_id = ? and follow_user_id = ?
             boolean isSuccess = remove(new QueryWrapper<Follow>()
                     .eq("user_id", userId).eq("follow_user_id", followUserId));
             if (isSuccess) {
-                // 把关注用户的id从Redis集合中移除
-                stringRedisTemplate.opsForSet().remove(key, followUserId.toString());
+                // 删除关注列表缓存
+                followGraphCache.invalidate(userId);
             }
         }
         return Result.ok();
@@ -67,33 +64,23 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
     public Result isFollow(Long followUserId) {
         // 1.获取登录用户
         Long userId = UserHolder.getUser().getId();
-        // 2.查询是否关注 select count(*) from tb_follow where user_id = ? and follow_user_id = ?
-        Integer count = query().eq("user_id", userId).eq("follow_user_id", followUserId).count();
-        // 3.判断
-        return Result.ok(count > 0);
+        // 2.查询是否关注，在本地关注列表里二分查找
+        //   原来每次都查数据库 select count(*) from tb_follow where user_id = ? and follow_user_id = ?
+        return Result.ok(followGraphCache.isFollowing(userId, followUserId));
     }
 
     @Override
     public Result followCommons(Long id) {
         // 1.获取当前用户
         Long userId = UserHolder.getUser().getId();
-        //set1
-        String key = "follows:" + userId;
-        //set2
-        String key2 = "follows:" + id;
-        //求交集
-        Set<String> intersect = stringRedisTemplate.opsForSet().intersect(key, key2);
+        // 2.求交集，两个人的关注列表都是有序数组，归并即可（原来是 SINTER follows:{userId} follows:{id}）
+        List<Long> ids = followGraphCache.common(userId, id);
         //判空
-        if (intersect == null || intersect.isEmpty()) {
+        if (ids.isEmpty()) {
             return Result.ok(Collections.emptyList());
         }
-        // 3.解析id集合
-        List<Long> ids = intersect.stream().map(Long::valueOf).collect(Collectors.toList());
-        // 4.查询用户
-        List<UserDTO> users = userService.listByIds(ids)
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        // 3.批量查询用户简要信息（两级缓存，未命中的一次IN查询）
+        List<UserDTO> users = userSummaryCache.list(ids);
         return Result.ok(users);
     }
 }
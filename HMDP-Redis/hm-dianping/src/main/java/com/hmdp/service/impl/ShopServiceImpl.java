@@ -1,26 +1,29 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.dto.CursorResult;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.NearbyShopIndex;
+import com.hmdp.utils.ShopBloomFilter;
+import com.hmdp.utils.ShopGeoIndex;
 import com.hmdp.utils.SystemConstants;
-import org.springframework.data.geo.Distance;
-import org.springframework.data.geo.GeoResult;
-import org.springframework.data.geo.GeoResults;
-import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -42,6 +45,19 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private ShopBloomFilter shopBloomFilter;
+
+    @Resource
+    private NearbyShopIndex nearbyShopIndex;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    //附近店铺的搜索半径（米）
+    @Value("${hmdp.shop.nearby.radius:5000}")
+    private double nearbyRadius;
+
     @Override
     public Result queryById(Long id) {
         // 解决缓存穿透(坏人访问不存在的id直接访问到数据库)
@@ -50,8 +66,10 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
         //缓存击穿(热点key过期,并且缓存重建时间长,期间大量访问直接访问数据库)
         //1.加锁,解决缓存击穿
+        //  布隆过滤器判断一定不存在的id，不查Redis也不查数据库
          Shop shop = cacheClient
-                 .queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+                 .queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES,
+                         shopBloomFilter::mightContain);
 
         // 2.逻辑过期,解决缓存击穿
 //        Shop shop = cacheClient
@@ -82,11 +100,27 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         // 1.更新数据库
         updateById(shop);
-        // 2.删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        // 2.删除缓存（Redis和所有实例的本地缓存）
+        cacheClient.delete(CACHE_SHOP_KEY + id);
+        // 3.更新本机店铺位置索引（并通知其他实例）
+        shopGeoIndex.changed(id);
         return Result.ok();
     }
 
+    /**
+     * 新增店铺，同时加入布隆过滤器，否则新店铺会被当成不存在
+     */
+    @Override
+    public Result saveShop(Shop shop) {
+        // 1.写入数据库
+        save(shop);
+        // 2.加入布隆过滤器（本机、Redis，并通知其他实例）
+        shopBloomFilter.add(shop.getId());
+        // 3.加入本机店铺位置索引（并通知其他实例）
+        shopGeoIndex.changed(shop.getId());
+        return Result.ok(shop.getId());
+    }
+
     @Override
     public Result queryShopByType(Integer typeId, Integer current, Double x, Double y) {
         // 1.判断是否需要根据坐标查询
@@ -103,42 +137,68 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
         int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
 
-        // 3.查询redis、按照距离排序、分页。结果：shopId、distance
-        String key = SHOP_GEO_KEY + typeId;
-        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo()      // GEOSEARCH key BYLONLAT x y BYRADIUS 10 WITHDISTANCE
-                .search(
-                        key,
-                        GeoReference.fromCoordinate(x, y),
-                        new Distance(5000),
-                        RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().limit(end)
-                );
-        // 4.解析出id
-        if (results == null) {
-            return Result.ok(Collections.emptyList());
-        }
-        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> list = results.getContent();
-        if (list.size() <= from) {
+        // 3.按距离排好序的 shopId、distance（格子缓存，翻页不再重新GEOSEARCH）
+        List<NearbyShopIndex.Nearby> nearby = nearbyShopIndex.search(typeId, x, y, nearbyRadius);
+        if (nearby.size() <= from) {
             // 没有下一页了，结束
             return Result.ok(Collections.emptyList());
         }
-        // 4.1.截取 from ~ end的部分
-        List<Long> ids = new ArrayList<>(list.size());
-        Map<String, Distance> distanceMap = new HashMap<>(list.size());
-        list.stream().skip(from).forEach(result -> {
-            // 4.2.获取店铺id
-            String shopIdStr = result.getContent().getName();
-            ids.add(Long.valueOf(shopIdStr));
-            // 4.3.获取距离
-            Distance distance = result.getDistance();
-            distanceMap.put(shopIdStr, distance);
-        });
-        // 5.根据id查询Shop
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-        for (Shop shop : shops) {
-            shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+        // 4.截取 from ~ end的部分，从店铺缓存取Shop
+        return Result.ok(hydrate(nearby.subList(from, Math.min(end, nearby.size()))));
+    }
+
+    /**
+     * 附近的店铺，游标分页：游标是上一页最后一个店铺的 "距离,id"，下一页从排在它后面的店铺开始
+     * 和页码分页相比，翻页期间有店铺加入或离开也不会重复、遗漏
+     */
+    @Override
+    public Result queryNearbyShops(Integer typeId, Double x, Double y, String cursor) {
+        // 1.按距离排好序的 shopId、distance
+        List<NearbyShopIndex.Nearby> nearby = nearbyShopIndex.search(typeId, x, y, nearbyRadius);
+        // 2.二分找到游标之后的第一个
+        int from = 0;
+        if (StrUtil.isNotBlank(cursor)) {
+            NearbyShopIndex.Nearby last;
+            try {
+                int comma = cursor.indexOf(',');
+                last = new NearbyShopIndex.Nearby(Long.parseLong(cursor.substring(comma + 1)),
+                        Double.parseDouble(cursor.substring(0, comma)));
+            } catch (RuntimeException e) {
+                return Result.fail("游标格式错误！");
+            }
+            int index = Collections.binarySearch(nearby, last, NearbyShopIndex.Nearby.ORDER);
+            from = index >= 0 ? index + 1 : -index - 1;
+        }
+        int end = Math.min(from + SystemConstants.DEFAULT_PAGE_SIZE, nearby.size());
+        // 3.从店铺缓存取Shop
+        List<NearbyShopIndex.Nearby> page = nearby.subList(from, Math.max(from, end));
+        CursorResult r = new CursorResult();
+        r.setList(hydrate(page));
+        if (end < nearby.size()) {
+            NearbyShopIndex.Nearby tail = page.get(page.size() - 1);
+            r.setCursor(tail.getDistance() + "," + tail.getId());
+        }
+        return Result.ok(r);
+    }
+
+    // 按给定顺序取店铺并设置距离：本地缓存、一次MGET，都没有的一条IN查询
+    private List<Shop> hydrate(List<NearbyShopIndex.Nearby> page) {
+        List<Long> ids = page.stream().map(NearbyShopIndex.Nearby::getId).collect(Collectors.toList());
+        Map<Long, Shop> cached = cacheClient.queryBatch(CACHE_SHOP_KEY, ids, Shop.class,
+                missed -> listByIds(missed).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        List<Shop> shops = new ArrayList<>(page.size());
+        for (NearbyShopIndex.Nearby n : page) {
+            Shop shop = cached.get(n.getId());
+            if (shop == null) {
+                // 店铺已经删除，GEO里还没清理
+                continue;
+            }
+            // 缓存里的对象是共享的，复制一份再设置距离
+            Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+            copy.setDistance(n.getDistance());
+            shops.add(copy);
         }
-        // 6.返回
-        return Result.ok(shops);
+        return shops;
     }
 }
@@ -1,11 +1,15 @@
 package com.hmdp.service.impl;
 
+import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.ShopTypeCatalog;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+
 /**
  * <p>
  *  服务实现类
@@ -17,4 +21,33 @@ import org.springframework.stereotype.Service;
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
+    @Resource
+    private ShopTypeCatalog shopTypeCatalog;
+
+    /**
+     * 新增店铺类型，重新加载类型列表缓存
+     */
+    @Override
+    public Result saveShopType(ShopType shopType) {
+        // 1.写入数据库
+        save(shopType);
+        // 2.重新加载本机缓存，并通知其他实例
+        shopTypeCatalog.refresh();
+        return Result.ok(shopType.getId());
+    }
+
+    /**
+     * 修改店铺类型（名称、图标、顺序），重新加载类型列表缓存
+     */
+    @Override
+    public Result update(ShopType shopType) {
+        if (shopType.getId() == null) {
+            return Result.fail("店铺类型id不能为空");
+        }
+        // 1.更新数据库
+        updateById(shopType);
+        // 2.重新加载本机缓存，并通知其他实例
+        shopTypeCatalog.refresh();
+        return Result.ok();
+    }
 }
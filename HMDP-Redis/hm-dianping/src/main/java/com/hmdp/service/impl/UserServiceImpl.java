@@ -11,8 +11,11 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.LoginSessionCache;
 import com.hmdp.utils.RegexUtils;
+import com.hmdp.utils.SignedTokenService;
 import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.UserSummaryCache;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.connection.BitFieldSubCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -45,6 +48,15 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private UserSummaryCache userSummaryCache;
+
+    @Resource
+    private LoginSessionCache loginSessionCache;
+
+    @Resource
+    private SignedTokenService signedTokenService;
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         // 1.校验手机号
@@ -86,11 +98,15 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
             user = createUserWithPhone(phone);
         }
 
+        UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
+        // 签名token模式：用户信息签名后放在token里，不存Redis
+        if (signedTokenService.isEnabled()) {
+            return Result.ok(signedTokenService.issue(userDTO));
+        }
+
         // 6.保存用户信息到 redis中
         // 6.1.随机生成token，作为登录令牌
         String token = UUID.randomUUID().toString(true);
-        //
-        UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
         // 6.2.将User对象转为HashMap存储
         //CopyOptions
         CopyOptions copyOptions = CopyOptions.create()
@@ -168,6 +184,54 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok(count);
     }
 
+    @Override
+    public Result updateProfile(UserDTO userDTO, String token) {
+        // 1.获取当前登录的用户
+        Long userId = UserHolder.getUser().getId();
+        // 2.修改昵称、头像 update tb_user set nick_name = ?, icon = ? where id = ?
+        User user = new User();
+        user.setId(userId);
+        user.setNickName(userDTO.getNickName());
+        user.setIcon(userDTO.getIcon());
+        updateById(user);
+        // 3.删除用户简要信息缓存（笔记、点赞、共同关注列表里显示的昵称头像）
+        userSummaryCache.invalidate(userId);
+        // 4.更新当前登录的用户信息
+        if (signedTokenService.isEnabled()) {
+            // 签名token模式：用新的昵称、头像重新签发，返回新token
+            SignedTokenService.Session session = signedTokenService.verify(token);
+            return Result.ok(session == null ? null : signedTokenService.reissue(session));
+        }
+        Map<String, String> fields = new HashMap<>();
+        if (userDTO.getNickName() != null) {
+            fields.put("nickName", userDTO.getNickName());
+        }
+        if (userDTO.getIcon() != null) {
+            fields.put("icon", userDTO.getIcon());
+        }
+        if (!fields.isEmpty()) {
+            stringRedisTemplate.opsForHash().putAll(LOGIN_USER_KEY + token, fields);
+            // 清除各实例本地缓存的登录信息
+            loginSessionCache.evict(token);
+        }
+        return Result.ok();
+    }
+
+    @Override
+    public Result logout(String token) {
+        if (signedTokenService.isEnabled()) {
+            // 签名token模式：吊销token id
+            SignedTokenService.Session session = signedTokenService.verify(token);
+            if (session != null) {
+                signedTokenService.revoke(session);
+            }
+            return Result.ok();
+        }
+        // 删除Redis里的登录信息，通知所有实例清除本地缓存
+        loginSessionCache.remove(token);
+        return Result.ok();
+    }
+
     private User createUserWithPhone(String phone) {
         // 1.创建用户
         User user = new User();
@@ -8,26 +8,37 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockSharding;
+import com.hmdp.utils.StreamDeadLetter;
 import com.hmdp.utils.UserHolder;
 import io.lettuce.core.RedisBusyException;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.RedisSystemException;
 import org.springframework.data.redis.connection.stream.*;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
 /**
  * 秒杀业务
@@ -44,6 +55,14 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private RedisIdWorker redisIdWorker;
     @Resource
     private RedissonClient redissonClient;
+    @Resource
+    private TransactionTemplate transactionTemplate;
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+    @Resource
+    private StreamDeadLetter streamDeadLetter;
+    @Resource
+    private SeckillStockSharding stockSharding;
 
 //    @Override         //事务失效问题,直接获取代理类的解决方式需要在接口中写方法,而在这里实现类里需要实现
 //    public Result createVoucherOrder(Long voucherId) {
@@ -60,8 +79,31 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }
     //****************************************************************
 
+    //消息队列与消费者组
+    private static final String STREAM_ORDERS = "stream.orders";
+    private static final String GROUP_NAME = "g1";
+
+    //消费者数量（每个消费者一个线程，消费者名为 前缀+序号）
+    @Value("${hmdp.seckill.order.consumer-count:4}")
+    private int consumerCount;
+    //消费者名前缀，多实例部署时每个实例要配置不同的前缀，否则会抢同一个pending-list
+    @Value("${hmdp.seckill.order.consumer-prefix:c}")
+    private String consumerPrefix;
+    //每次XREADGROUP读取的最大消息数，同一批消息一次落库、一次ACK
+    @Value("${hmdp.seckill.order.batch-size:50}")
+    private int batchSize;
+    //单条消息最多投递几次，还失败就转入死信队列 stream.orders.dead 并确认
+    @Value("${hmdp.seckill.order.max-deliveries:3}")
+    private int maxDeliveries;
+
     //线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    private ExecutorService seckillOrderExecutor;
+    private volatile boolean running = true;
+    //已落库的订单数，用于统计吞吐量
+    private final LongAdder createdOrders = new LongAdder();
+    private long lastReportCount = 0;
+    private long lastReportTime = System.currentTimeMillis();
+
     //Spring启动时使用线程处理阻塞队列里的任务
     @PostConstruct
     private void init() {
@@ -73,8 +115,11 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }catch (RedisBusyException | RedisSystemException e) {
             log.info("消息队列已经创建了");
         }
-        //提交线程任务执行
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        //提交线程任务执行，消费者组g1里的多个消费者并行消费
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumerCount);
+        for (int i = 0; i < consumerCount; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(consumerPrefix + i));
+        }
     }
 //    @PreDestroy
 //    private void preDestroy() {
@@ -83,6 +128,28 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        stringRedisTemplate.execute(addMQScript,Collections.emptyList(),"");
 //    }
 
+    @PreDestroy
+    private void destroy() {
+        //停止消费，未ACK的消息留在pending-list，下次启动时由同名消费者继续处理
+        running = false;
+        seckillOrderExecutor.shutdown();
+    }
+
+    /**
+     * 定时打印下单吞吐量（单/秒）
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.order.report-interval:10000}")
+    public void reportThroughput() {
+        long now = System.currentTimeMillis();
+        long count = createdOrders.sum();
+        long delta = count - lastReportCount;
+        if (delta > 0) {
+            log.info("秒杀订单落库吞吐量：{} 单/秒，累计 {} 单", delta * 1000 / Math.max(now - lastReportTime, 1), count);
+        }
+        lastReportCount = count;
+        lastReportTime = now;
+    }
+
     /**
      * Redis实现消息队列
      * 1.List模拟消息队列。（大垃）缺点：1.同一个消息只能被一个消费者拿到 2.拿到消息后如果丢失就再也无了
@@ -91,32 +158,37 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      * 1.单消费模式（小垃） 优点：1.消息会保存2.多消费者3.可以阻塞读取。缺点，1.读最新的话可能会漏读
      * 2.消费者组 （牛） 优点：1.可以维护一个标识，记录最后一个被处理的消息，解决漏读 2.消息确认机制3.持久化4.阻塞5.出现错误可以回溯
      */
-    //******************************************************************7.其他线程处理消息
+    //******************************************************************7.其他线程处理消息（批量版）
     private class VoucherOrderHandler implements Runnable {
+
+        private final Consumer consumer;
+
+        VoucherOrderHandler(String consumerName) {
+            this.consumer = Consumer.from(GROUP_NAME, consumerName);
+        }
+
         @Override
         public void run() {
-            while (true) {
+            // 启动时先处理上次没ACK的消息（服务宕机时留下的）
+            handlePendingList();
+            while (running) {
                 try {
-                    // 1.获取消息队列中的订单信息==>  XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 >
+                    // 1.获取消息队列中的订单信息==>  XREADGROUP GROUP g1 c0 COUNT 50 BLOCK 2000 STREAMS stream.orders >
                     //opsForStream()    玩Stream
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create("stream.orders", ReadOffset.lastConsumed())
+                            consumer,
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                            StreamOffset.create(STREAM_ORDERS, ReadOffset.lastConsumed())
                     );
                     // 2.判断订单信息是否为空
                     if (list == null || list.isEmpty()) {
                         // 如果为null，说明没有消息，继续下一次循环
                         continue;
                     }
-                    // 解析数据
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 3.创建订单
-                    createVoucherOrder(voucherOrder);
-                    // 4.确认消息 XACK
-                    stringRedisTemplate.opsForStream().acknowledge("s1", "g1", record.getId());
+                    // 3.整批创建订单并确认，有处理失败留在pending-list的就去重试
+                    if (!handleRecords(list)) {
+                        handlePendingList();
+                    }
                 } catch (Exception e) {
                     log.error("处理订单异常", e);
                     handlePendingList();
@@ -125,87 +197,238 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
         //*****************************************************************************8.出现错误处理PendingList
         private void handlePendingList() {
-            while (true) {
+            while (running) {
                 try {
-                    // 1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 0
+                    // 1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c0 COUNT 50 STREAMS stream.orders 0
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create("stream.orders", ReadOffset.from("0"))
+                            consumer,
+                            StreamReadOptions.empty().count(batchSize),
+                            StreamOffset.create(STREAM_ORDERS, ReadOffset.from("0"))
                     );
                     // 2.判断订单信息是否为空
                     if (list == null || list.isEmpty()) {
                         // 如果为null，说明没有异常消息，结束循环
                         break;
                     }
-                    // 解析数据
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 3.创建订单
-                    createVoucherOrder(voucherOrder);
-                    // 4.确认消息 XACK
-                    stringRedisTemplate.opsForStream().acknowledge("s1", "g1", record.getId());
+                    // 3.整批创建订单并确认，还有没处理成功的（未到投递上限）等一会再重试
+                    if (!handleRecords(list)) {
+                        pause();
+                    }
                 } catch (Exception e) {
-                    log.error("处理订单异常", e);
+                    log.error("处理pending订单异常", e);
+                    pause();
+                }
+            }
+        }
+
+        // 避免数据库/Redis故障时空转
+        private void pause() {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                running = false;
+            }
+        }
+
+        /**
+         * 整批落库、整批确认；整批失败时改为逐条处理，坏消息不会拖住同一批的其他订单
+         *
+         * @return 是否全部处理完（确认或转入死信队列）
+         */
+        private boolean handleRecords(List<MapRecord<String, Object, Object>> records) {
+            try {
+                // 1.解析数据
+                List<VoucherOrder> orders = new ArrayList<>(records.size());
+                RecordId[] recordIds = new RecordId[records.size()];
+                for (int i = 0; i < records.size(); i++) {
+                    MapRecord<String, Object, Object> record = records.get(i);
+                    orders.add(parse(record));
+                    recordIds[i] = record.getId();
+                }
+                // 2.批量创建订单
+                int created = createVoucherOrders(orders);
+                // 3.整批确认消息 XACK stream.orders g1 id1 id2 ...
+                stringRedisTemplate.opsForStream().acknowledge(STREAM_ORDERS, GROUP_NAME, recordIds);
+                createdOrders.add(created);
+                return true;
+            } catch (Exception e) {
+                if (records.size() == 1) {
+                    return handleRecord(records.get(0), e);
                 }
+                log.warn("整批创建订单失败，改为逐条处理，消息数：{}", records.size(), e);
+            }
+            // 4.逐条处理，每条一个事务
+            boolean done = true;
+            for (MapRecord<String, Object, Object> record : records) {
+                done &= handleRecord(record, null);
+            }
+            return done;
+        }
+
+        private boolean handleRecord(MapRecord<String, Object, Object> record, Exception batchError) {
+            Exception error = batchError;
+            if (error == null) {
+                try {
+                    int created = createVoucherOrders(Collections.singletonList(parse(record)));
+                    stringRedisTemplate.opsForStream().acknowledge(STREAM_ORDERS, GROUP_NAME, record.getId());
+                    createdOrders.add(created);
+                    return true;
+                } catch (Exception e) {
+                    error = e;
+                }
+            }
+            // 失败：没到投递上限留在pending-list，到了就转入死信队列
+            // 转入死信队列的订单Redis里已经扣了库存、记了用户，由秒杀库存对账（SeckillStockReconciler）按丢失的订单还回去
+            return streamDeadLetter.onFailure(consumer, record, error, maxDeliveries);
+        }
+
+        private VoucherOrder parse(MapRecord<String, Object, Object> record) {
+            VoucherOrder order = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+            if (order.getId() == null || order.getUserId() == null || order.getVoucherId() == null) {
+                throw new IllegalArgumentException("订单消息缺少字段：" + record.getValue());
             }
+            return order;
         }
     }
 
     //*******************************************************************6.异步秒杀的前半部分（最终版），到返回给前端信息，后续的操作由其他线程读取消息队列慢慢做
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 0.本机已经知道卖完了，直接返回，不生成id也不执行脚本
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
         Long userId = UserHolder.getUser().getId();
         long orderId = redisIdWorker.nextId("order");
-        // 1.执行lua脚本，判断资格，扣减库存并将消息并加入消息队列
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId)
-        );
-        int r = result.intValue();
+        int r;
+        if (stockSharding.cachedShards(voucherId) > 0) {
+            // 1.已知是分片模式的券，逐个分片处理
+            r = stockSharding.seckill(voucherId, userId, orderId);
+        } else {
+            // 1.执行lua脚本，判断资格，扣减库存并将消息并加入消息队列
+            Long result = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId)
+            );
+            r = result.intValue();
+            if (r == 3) {
+                // 1.1.脚本发现是分片模式的券
+                r = stockSharding.seckill(voucherId, userId, orderId);
+            }
+        }
+        if (r == 1) {
+            // 2.记下售罄，后面的请求在本机就拦住
+            soldOutRegistry.markSoldOut(voucherId);
+        }
         if (r != 0) {
             return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
         }
         return Result.ok(orderId);
     }
 
-    //****************************************************************5.3.创建订单功能（最终版）
-    private void createVoucherOrder(VoucherOrder voucherOrder) {
-        //因为是子线程，userId只能去voucherOrder里取
-        Long userId = voucherOrder.getUserId();
-        Long voucherId = voucherOrder.getVoucherId();
-        // 加锁（前边redis已经做过判断，这里兜底一下）
-        RLock redisLock = redissonClient.getLock("lock:order:" + userId);
-        boolean isLock = redisLock.tryLock();
-        if (!isLock) {
-            log.error("不允许重复下单！");  //异步处理已经没有前端了，打印一下日志即可
-            return;
-        }
-        try {
-            // 5.1.查询订单
-            int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
-            if (count > 0) {
+    //****************************************************************5.4.批量创建订单（最终版）
+    /**
+     * 一批消息合并成：一次查重查询 + 每个优惠券一次扣减库存 + 一次多行插入，在同一个事务里完成
+     * Lua脚本已经保证了一人一单和不超卖，这里只兜底消息重投（pending-list重新消费）的情况，
+     * 同一条消息只会在一个消费者的pending-list里，所以不再需要按用户加分布式锁
+     *
+     * @return 实际创建的订单数
+     */
+    private int createVoucherOrders(List<VoucherOrder> orders) {
+        // 1.过滤已经落库的订单（同一批里也去重）
+        Set<Long> userIds = orders.stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        Set<Long> voucherIds = orders.stream().map(VoucherOrder::getVoucherId).collect(Collectors.toSet());
+        Set<String> existed = query()
+                .select("user_id", "voucher_id")
+                .in("user_id", userIds).in("voucher_id", voucherIds)
+                .list()
+                .stream()
+                .map(o -> o.getUserId() + ":" + o.getVoucherId())
+                .collect(Collectors.toSet());
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = new HashMap<>();
+        for (VoucherOrder order : orders) {
+            if (!existed.add(order.getUserId() + ":" + order.getVoucherId())) {
                 log.error("不允许重复下单！");
-                return;
-            }
-            // 6.扣减库存
-            boolean success = seckillVoucherService.update()
-                    .setSql("stock = stock - 1") // set stock = stock - 1
-                    .eq("voucher_id", voucherId).gt("stock", 0) // where id = ? and stock > 0
-                    .update();
-            if (!success) {
-                log.error("库存不足！");
-                return;
+                continue;
             }
-            // 7.创建订单
-            save(voucherOrder);
-        } finally {
-            redisLock.unlock();
+            ordersOfVoucher.computeIfAbsent(order.getVoucherId(), k -> new ArrayList<>()).add(order);
         }
+        if (ordersOfVoucher.isEmpty()) {
+            return 0;
+        }
+        Integer created = transactionTemplate.execute(status -> {
+            List<VoucherOrder> accepted = new ArrayList<>(orders.size());
+            for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+                List<VoucherOrder> group = entry.getValue();
+                int n = group.size();
+                // 2.按优惠券合并扣减库存 set stock = stock - n where voucher_id = ? and stock >= n
+                boolean success = seckillVoucherService.update()
+                        .setSql("stock = stock - " + n)
+                        .eq("voucher_id", entry.getKey()).ge("stock", n)
+                        .update();
+                if (success) {
+                    accepted.addAll(group);
+                    continue;
+                }
+                // 2.1.整批扣减失败（库存被人工改过），逐条扣减兜底
+                for (VoucherOrder order : group) {
+                    boolean ok = seckillVoucherService.update()
+                            .setSql("stock = stock - 1")
+                            .eq("voucher_id", entry.getKey()).gt("stock", 0)
+                            .update();
+                    if (!ok) {
+                        log.error("库存不足！");
+                        break;
+                    }
+                    accepted.add(order);
+                }
+            }
+            // 3.一条多行INSERT创建订单
+            if (!accepted.isEmpty()) {
+                getBaseMapper().insertBatch(accepted);
+            }
+            return accepted.size();
+        });
+        return created == null ? 0 : created;
     }
 
+//    //****************************************************************5.3.创建订单功能（单条消费版本）
+//    private void createVoucherOrder(VoucherOrder voucherOrder) {
+//        //因为是子线程，userId只能去voucherOrder里取
+//        Long userId = voucherOrder.getUserId();
+//        Long voucherId = voucherOrder.getVoucherId();
+//        // 加锁（前边redis已经做过判断，这里兜底一下）
+//        RLock redisLock = redissonClient.getLock("lock:order:" + userId);
+//        boolean isLock = redisLock.tryLock();
+//        if (!isLock) {
+//            log.error("不允许重复下单！");  //异步处理已经没有前端了，打印一下日志即可
+//            return;
+//        }
+//        try {
+//            // 5.1.查询订单
+//            int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
+//            if (count > 0) {
+//                log.error("不允许重复下单！");
+//                return;
+//            }
+//            // 6.扣减库存
+//            boolean success = seckillVoucherService.update()
+//                    .setSql("stock = stock - 1") // set stock = stock - 1
+//                    .eq("voucher_id", voucherId).gt("stock", 0) // where id = ? and stock > 0
+//                    .update();
+//            if (!success) {
+//                log.error("库存不足！");
+//                return;
+//            }
+//            // 7.创建订单
+//            save(voucherOrder);
+//        } finally {
+//            redisLock.unlock();
+//        }
+//    }
+
 
 //    //**********************************************************5.2.阻塞队列，异步执行阻塞队列里的任务
 //    //*********************************************************** 坑！？：1.阻塞队列大小受内存限制2.服务宕机数据丢失3.取出任务后出现错误，任务丢失
@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
@@ -7,14 +8,24 @@ import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.AfterCommit;
+import com.hmdp.utils.SeckillStockSharding;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_VOUCHER_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_VOUCHER_TTL;
 import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_REFILL_CHANNEL;
 
 /**
  * <p>
@@ -32,14 +43,106 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    //秒杀库存的分片数，1表示单key模式；热点券可以拆成多个分片，分散到不同的slot
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+
+    /**
+     * 店铺的优惠券列表
+     * 1.优惠券的静态字段按店铺缓存在Redis（cache:voucher:shop:{shopId}），不再每次联表查询
+     * 2.秒杀券的库存用Redis里的实时库存覆盖，一次MGET（分片模式的券再多一次MGET）
+     * 新增优惠券时删除这个店铺的缓存
+     */
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
-        // 返回结果
+        // 1.查询优惠券信息
+        List<Voucher> vouchers = queryVoucherOfShopCached(shopId);
+        // 2.覆盖秒杀库存
+        overlaySeckillStock(vouchers);
+        // 3.返回结果
         return Result.ok(vouchers);
     }
 
+    private List<Voucher> queryVoucherOfShopCached(Long shopId) {
+        String key = CACHE_SHOP_VOUCHER_KEY + shopId;
+        // 1.查Redis，命中直接返回（没有优惠券的店铺缓存的是空数组）
+        String json = stringRedisTemplate.opsForValue().get(key);
+        if (json != null) {
+            return JSONUtil.toList(json, Voucher.class);
+        }
+        // 2.未命中，联表查询后写入Redis
+        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(vouchers), CACHE_SHOP_VOUCHER_TTL, TimeUnit.MINUTES);
+        return vouchers;
+    }
+
+    //秒杀券（stock不为null）的库存换成Redis里的实时库存，Redis里没有的保留数据库的值
+    private void overlaySeckillStock(List<Voucher> vouchers) {
+        List<Voucher> seckill = new ArrayList<>();
+        for (Voucher voucher : vouchers) {
+            if (voucher.getStock() != null) {
+                seckill.add(voucher);
+            }
+        }
+        if (seckill.isEmpty()) {
+            return;
+        }
+        // 1.一次MGET：每张券的 单key库存、分片数（只有分片模式才有）
+        List<String> keys = new ArrayList<>(seckill.size() * 2);
+        for (Voucher voucher : seckill) {
+            keys.add(SECKILL_STOCK_KEY + voucher.getId());
+            keys.add(SeckillStockSharding.shardCountKey(voucher.getId()));
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        if (values == null) {
+            return;
+        }
+        List<Voucher> sharded = new ArrayList<>();
+        List<String> shardKeys = new ArrayList<>();
+        List<Integer> shardCounts = new ArrayList<>();
+        for (int i = 0; i < seckill.size(); i++) {
+            Voucher voucher = seckill.get(i);
+            String stock = values.get(2 * i);
+            String shards = values.get(2 * i + 1);
+            if (shards != null) {
+                int n = Integer.parseInt(shards);
+                sharded.add(voucher);
+                shardCounts.add(n);
+                for (int s = 0; s < n; s++) {
+                    shardKeys.add(SeckillStockSharding.shardKey(voucher.getId(), s));
+                }
+            } else if (stock != null) {
+                voucher.setStock(Integer.valueOf(stock));
+            }
+        }
+        if (sharded.isEmpty()) {
+            return;
+        }
+        // 2.分片模式的券：MGET所有分片，按券求和
+        List<String> parts = stringRedisTemplate.opsForValue().multiGet(shardKeys);
+        if (parts == null) {
+            return;
+        }
+        int offset = 0;
+        for (int i = 0; i < sharded.size(); i++) {
+            int stock = 0;
+            for (int s = 0; s < shardCounts.get(i); s++) {
+                String part = parts.get(offset++);
+                stock += part == null ? 0 : Integer.parseInt(part);
+            }
+            sharded.get(i).setStock(stock);
+        }
+    }
+
+    /**
+     * 新增普通券，删除店铺的优惠券缓存
+     */
+    @Override
+    public void addVoucher(Voucher voucher) {
+        save(voucher);
+        stringRedisTemplate.delete(CACHE_SHOP_VOUCHER_KEY + voucher.getShopId());
+    }
+
     @Override
     @Transactional
     public void addSeckillVoucher(Voucher voucher) {
@@ -53,6 +156,26 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
         // 保存秒杀库存到Redis中（可以不设过期时间，等秒杀活动结束后手动删除）
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        saveSeckillStock(voucher.getId(), voucher.getStock());
+        // 事务提交后删除店铺的优惠券缓存，下次查询重新联表
+        String key = CACHE_SHOP_VOUCHER_KEY + voucher.getShopId();
+        AfterCommit.run(() -> stringRedisTemplate.delete(key));
+    }
+
+    private void saveSeckillStock(Long voucherId, int stock) {
+        if (stockShards <= 1) {
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+        } else {
+            // 分片模式：库存拆到K个子key（各在不同的slot），最后写分片数，请求看到分片数时各分片已经有库存了
+            int[] parts = SeckillStockSharding.split(stock, stockShards);
+            Map<String, String> kv = new HashMap<>(stockShards);
+            for (int i = 0; i < stockShards; i++) {
+                kv.put(SeckillStockSharding.shardKey(voucherId, i), String.valueOf(parts[i]));
+            }
+            stringRedisTemplate.opsForValue().multiSet(kv);
+            stringRedisTemplate.opsForValue().set(SeckillStockSharding.shardCountKey(voucherId), String.valueOf(stockShards));
+        }
+        // 通知所有实例清除这张券的本地售罄标记
+        stringRedisTemplate.convertAndSend(SECKILL_STOCK_REFILL_CHANNEL, voucherId.toString());
     }
 }
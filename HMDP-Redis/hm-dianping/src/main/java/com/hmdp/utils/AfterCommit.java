@@ -0,0 +1,25 @@
+package com.hmdp.utils;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * 事务提交之后再做的事（删缓存、发通知）
+ * 在事务里直接删缓存的话，提交前有请求读到旧数据又写回缓存，缓存就一直是旧的；回滚了也白删
+ * 当前没有事务时立即执行
+ */
+public class AfterCommit {
+
+    public static void run(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+}
@@ -0,0 +1,477 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 紧凑的二进制格式，按类的字段顺序直接写值，不写字段名
+ * 格式：魔数(1) 版本(1) 标记(1) | [逻辑过期时间] 是否有值(1) 字段签名(4) 各字段的值
+ *  标记：1 压缩（Deflater，超过阈值且压缩后更小才压缩），2 带逻辑过期时间
+ *  字段签名由类名、字段名和字段类型算出来，类改了签名对不上，解码返回null，相当于缓存未命中
+ *  每个字段先写1字节表示是否为null；整数用变长编码，时间用秒+纳秒
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    private static final byte MAGIC = (byte) 0xB7;
+    private static final byte VERSION = 1;
+    private static final int FLAG_COMPRESSED = 1;
+    private static final int FLAG_EXPIRE = 2;
+    private static final int HEADER_LENGTH = 3;
+    //字段签名对不上时readValue的返回值
+    private static final Object MISMATCH = new Object();
+
+    //超过多少字节才尝试压缩
+    private final int compressThreshold;
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    public BinaryCacheCodec(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+
+    @Override
+    public boolean accepts(byte[] bytes) {
+        return bytes.length >= HEADER_LENGTH && bytes[0] == MAGIC;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return write(value, null);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        Input in = open(bytes);
+        if (in == null || (bytes[2] & FLAG_EXPIRE) != 0) {
+            return null;
+        }
+        Object value = readValue(in, type);
+        return value == MISMATCH ? null : type.cast(value);
+    }
+
+    @Override
+    public byte[] encodeWithExpire(Object value, LocalDateTime expireTime) {
+        return write(value, expireTime);
+    }
+
+    @Override
+    public RedisData decodeWithExpire(byte[] bytes, Class<?> type) {
+        Input in = open(bytes);
+        if (in == null || (bytes[2] & FLAG_EXPIRE) == 0) {
+            return null;
+        }
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(in.readDateTime());
+        Object value = readValue(in, type);
+        if (value == MISMATCH) {
+            return null;
+        }
+        redisData.setData(value);
+        return redisData;
+    }
+
+    //**********************************************************************编码
+    private byte[] write(Object value, LocalDateTime expireTime) {
+        // 1.写内容
+        Output out = new Output(128);
+        int flags = 0;
+        if (expireTime != null) {
+            flags |= FLAG_EXPIRE;
+            out.writeDateTime(expireTime);
+        }
+        if (value == null) {
+            out.writeByte(0);
+        } else {
+            Schema schema = schemaOf(value.getClass());
+            out.writeByte(1);
+            out.writeInt(schema.fingerprint);
+            schema.write(out, value);
+        }
+        byte[] body = out.toByteArray();
+        // 2.超过阈值尝试压缩，压缩后更小才用
+        if (body.length >= compressThreshold) {
+            byte[] compressed = compress(body);
+            if (compressed != null) {
+                flags |= FLAG_COMPRESSED;
+                body = compressed;
+            }
+        }
+        // 3.加上头
+        byte[] bytes = new byte[HEADER_LENGTH + body.length];
+        bytes[0] = MAGIC;
+        bytes[1] = VERSION;
+        bytes[2] = (byte) flags;
+        System.arraycopy(body, 0, bytes, HEADER_LENGTH, body.length);
+        return bytes;
+    }
+
+    //**********************************************************************解码
+    private Input open(byte[] bytes) {
+        if (!accepts(bytes) || bytes[1] != VERSION) {
+            return null;
+        }
+        if ((bytes[2] & FLAG_COMPRESSED) == 0) {
+            return new Input(bytes, HEADER_LENGTH);
+        }
+        byte[] body = decompress(bytes);
+        return body == null ? null : new Input(body, 0);
+    }
+
+    private Object readValue(Input in, Class<?> type) {
+        if (in.readByte() == 0) {
+            return null;
+        }
+        Schema schema = schemaOf(type);
+        if (in.readInt() != schema.fingerprint) {
+            // 类的字段变了，按未命中处理
+            return MISMATCH;
+        }
+        return schema.read(in);
+    }
+
+    //**********************************************************************压缩
+    //压缩后的格式：原长度(变长) + deflate数据
+    private static byte[] compress(byte[] body) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(body);
+            deflater.finish();
+            Output out = new Output(body.length);
+            out.writeVarInt(body.length);
+            byte[] buffer = new byte[body.length];
+            int length = deflater.deflate(buffer);
+            if (!deflater.finished() || out.size() + length >= body.length) {
+                return null;
+            }
+            out.write(buffer, 0, length);
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] decompress(byte[] bytes) {
+        Input header = new Input(bytes, HEADER_LENGTH);
+        int length = header.readVarInt();
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, header.position, bytes.length - header.position);
+            byte[] body = new byte[length];
+            int n = inflater.inflate(body);
+            return n == length ? body : null;
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    //**********************************************************************类的结构
+    private Schema schemaOf(Class<?> type) {
+        return schemas.computeIfAbsent(type, Schema::new);
+    }
+
+    private static class Schema {
+        private final Kind rootKind;
+        private final Constructor<?> constructor;
+        private final Field[] fields;
+        private final Kind[] kinds;
+        private final int fingerprint;
+
+        Schema(Class<?> type) {
+            Kind kind = Kind.of(type);
+            StringBuilder signature = new StringBuilder(type.getName());
+            if (kind != Kind.JSON || type.getName().startsWith("java.") || type.isArray()) {
+                // String、Long这类直接写值，集合等写json
+                this.rootKind = kind;
+                this.constructor = null;
+                this.fields = new Field[0];
+                this.kinds = new Kind[0];
+            } else {
+                // 普通的实体类，按字段名排序逐个写
+                this.rootKind = null;
+                try {
+                    this.constructor = type.getDeclaredConstructor();
+                    this.constructor.setAccessible(true);
+                } catch (NoSuchMethodException e) {
+                    throw new IllegalArgumentException("缓存的类需要无参构造：" + type.getName(), e);
+                }
+                List<Field> list = new ArrayList<>();
+                for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                    for (Field field : c.getDeclaredFields()) {
+                        int modifiers = field.getModifiers();
+                        if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers)) {
+                            field.setAccessible(true);
+                            list.add(field);
+                        }
+                    }
+                }
+                list.sort(Comparator.comparing(Field::getName));
+                this.fields = list.toArray(new Field[0]);
+                this.kinds = new Kind[fields.length];
+                for (int i = 0; i < fields.length; i++) {
+                    kinds[i] = Kind.of(fields[i].getType());
+                    signature.append(';').append(fields[i].getName()).append(':').append(fields[i].getType().getName());
+                }
+            }
+            this.fingerprint = signature.toString().hashCode();
+        }
+
+        void write(Output out, Object value) {
+            if (rootKind != null) {
+                rootKind.write(out, value);
+                return;
+            }
+            try {
+                for (int i = 0; i < fields.length; i++) {
+                    Object fieldValue = fields[i].get(value);
+                    if (fieldValue == null) {
+                        out.writeByte(0);
+                    } else {
+                        out.writeByte(1);
+                        kinds[i].write(out, fieldValue);
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        Object read(Input in) {
+            if (rootKind != null) {
+                return rootKind.read(in, null);
+            }
+            try {
+                Object value = constructor.newInstance();
+                for (int i = 0; i < fields.length; i++) {
+                    if (in.readByte() != 0) {
+                        fields[i].set(value, kinds[i].read(in, fields[i].getType()));
+                    }
+                }
+                return value;
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    //字段类型，决定怎么写值
+    private enum Kind {
+        LONG {
+            void write(Output out, Object v) { out.writeVarLong((Long) v); }
+            Object read(Input in, Class<?> type) { return in.readVarLong(); }
+        },
+        INT {
+            void write(Output out, Object v) { out.writeVarLong((Integer) v); }
+            Object read(Input in, Class<?> type) { return (int) in.readVarLong(); }
+        },
+        DOUBLE {
+            void write(Output out, Object v) { out.writeLong(Double.doubleToRawLongBits((Double) v)); }
+            Object read(Input in, Class<?> type) { return Double.longBitsToDouble(in.readLong()); }
+        },
+        BOOLEAN {
+            void write(Output out, Object v) { out.writeByte((Boolean) v ? 1 : 0); }
+            Object read(Input in, Class<?> type) { return in.readByte() != 0; }
+        },
+        STRING {
+            void write(Output out, Object v) { out.writeString((String) v); }
+            Object read(Input in, Class<?> type) { return in.readString(); }
+        },
+        DATETIME {
+            void write(Output out, Object v) { out.writeDateTime((LocalDateTime) v); }
+            Object read(Input in, Class<?> type) { return in.readDateTime(); }
+        },
+        DECIMAL {
+            void write(Output out, Object v) { out.writeString(v.toString()); }
+            Object read(Input in, Class<?> type) { return new BigDecimal(in.readString()); }
+        },
+        //其他类型（集合、嵌套对象等）写成json字符串
+        JSON {
+            void write(Output out, Object v) { out.writeString(JSONUtil.toJsonStr(v)); }
+            Object read(Input in, Class<?> type) { return JSONUtil.toBean(in.readString(), type); }
+        };
+
+        abstract void write(Output out, Object value);
+
+        abstract Object read(Input in, Class<?> type);
+
+        static Kind of(Class<?> type) {
+            if (type == Long.class || type == long.class) {
+                return LONG;
+            }
+            if (type == Integer.class || type == int.class) {
+                return INT;
+            }
+            if (type == Double.class || type == double.class) {
+                return DOUBLE;
+            }
+            if (type == Boolean.class || type == boolean.class) {
+                return BOOLEAN;
+            }
+            if (type == String.class) {
+                return STRING;
+            }
+            if (type == LocalDateTime.class) {
+                return DATETIME;
+            }
+            if (type == BigDecimal.class) {
+                return DECIMAL;
+            }
+            return JSON;
+        }
+    }
+
+    //**********************************************************************读写字节
+    private static class Output {
+        private byte[] buf;
+        private int count;
+
+        Output(int capacity) {
+            this.buf = new byte[Math.max(16, capacity)];
+        }
+
+        int size() {
+            return count;
+        }
+
+        private void ensure(int n) {
+            if (count + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + n));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[count++] = (byte) b;
+        }
+
+        void write(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, buf, count, length);
+            count += length;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            buf[count++] = (byte) (v >>> 24);
+            buf[count++] = (byte) (v >>> 16);
+            buf[count++] = (byte) (v >>> 8);
+            buf[count++] = (byte) v;
+        }
+
+        void writeLong(long v) {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        void writeVarInt(int v) {
+            ensure(5);
+            while ((v & ~0x7F) != 0) {
+                buf[count++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[count++] = (byte) v;
+        }
+
+        //zigzag + 变长，小的正负数都只占1、2个字节
+        void writeVarLong(long v) {
+            ensure(10);
+            long z = (v << 1) ^ (v >> 63);
+            while ((z & ~0x7FL) != 0) {
+                buf[count++] = (byte) ((z & 0x7F) | 0x80);
+                z >>>= 7;
+            }
+            buf[count++] = (byte) z;
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        void writeDateTime(LocalDateTime time) {
+            writeVarLong(time.toEpochSecond(ZoneOffset.UTC));
+            writeVarInt(time.getNano());
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, count);
+        }
+    }
+
+    private static class Input {
+        private final byte[] buf;
+        private int position;
+
+        Input(byte[] buf, int position) {
+            this.buf = buf;
+            this.position = position;
+        }
+
+        int readByte() {
+            return buf[position++];
+        }
+
+        int readInt() {
+            int v = (buf[position] & 0xFF) << 24 | (buf[position + 1] & 0xFF) << 16
+                    | (buf[position + 2] & 0xFF) << 8 | (buf[position + 3] & 0xFF);
+            position += 4;
+            return v;
+        }
+
+        long readLong() {
+            return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+        }
+
+        int readVarInt() {
+            int v = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buf[position++];
+                v |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+        }
+
+        long readVarLong() {
+            long z = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buf[position++];
+                z |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return (z >>> 1) ^ -(z & 1);
+                }
+            }
+        }
+
+        String readString() {
+            int length = readVarInt();
+            String s = new String(buf, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return s;
+        }
+
+        LocalDateTime readDateTime() {
+            long second = readVarLong();
+            int nano = readVarInt();
+            return LocalDateTime.ofEpochSecond(second, nano, ZoneOffset.UTC);
+        }
+    }
+}
@@ -1,41 +1,101 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
 import static com.hmdp.utils.RedisConstants.CACHE_NULL_TTL;
 import static com.hmdp.utils.RedisConstants.LOCK_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_SHOP_TTL;
 
 /**
  * 封装，获取缓存和新建缓存，序列化与反序列化的工具类
+ * 两级缓存：一级是本机的Caffeine（存反序列化好的对象，命中时不访问Redis也不解析json），二级是Redis
+ * 删除缓存用 delete，会通过Redis的发布订阅通知所有实例清掉一级缓存；一级缓存本身也有过期时间兜底
+ * 注意一级缓存返回的是同一个对象，调用方不要修改它
+ * Redis里的值用 CacheCodec 序列化（hmdp.cache.codec：json / binary），读的时候按内容识别格式，切换后旧数据照样能读
  */
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
 
     private final StringRedisTemplate stringRedisTemplate;
 
-    //线程池，缓存击穿用到的
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    //逻辑过期缓存的重建线程池
+    private final CacheRebuildScheduler rebuildScheduler;
+    //逻辑过期的缓存提前多少秒重建，0表示过期后才重建
+    private final long refreshAheadSeconds;
+
+    //写入Redis用的序列化方式
+    private final CacheCodec codec;
+    //读的时候按顺序找能识别的序列化方式，json放最后（兜底）
+    private final List<CacheCodec> readCodecs;
+    //一级缓存，key和Redis的key相同
+    private final Cache<String, Object> localCache;
+    //二级缓存（Redis）的命中统计
+    private final LongAdder redisHit = new LongAdder();
+    private final LongAdder redisNullHit = new LongAdder();
+    private final LongAdder redisMiss = new LongAdder();
+    //被布隆过滤器挡掉的请求
+    private final LongAdder bloomRejected = new LongAdder();
+    //本机正在进行的缓存重建，key -> 重建结果
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> rebuildFlights = new ConcurrentHashMap<>();
+    //拿不到锁时检查Redis的间隔（毫秒），每个实例只有负责重建的线程在检查
+    private static final long REBUILD_POLL_MILLIS = 10;
 
     //基于构造函数注入
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    public CacheClient(StringRedisTemplate stringRedisTemplate,
+                       CacheRebuildScheduler rebuildScheduler,
+                       @Value("${hmdp.cache.local.maximum-size:10000}") long localMaximumSize,
+                       @Value("${hmdp.cache.local.ttl-seconds:30}") long localTtlSeconds,
+                       @Value("${hmdp.cache.rebuild.refresh-ahead-seconds:0}") long refreshAheadSeconds,
+                       @Value("${hmdp.cache.codec:json}") String codecName,
+                       @Value("${hmdp.cache.compress-threshold:512}") int compressThreshold) {
         this.stringRedisTemplate = stringRedisTemplate;
+        CacheCodec binary = new BinaryCacheCodec(compressThreshold);
+        CacheCodec json = new JsonCacheCodec();
+        this.codec = "binary".equals(codecName) ? binary : json;
+        this.readCodecs = Arrays.asList(binary, json);
+        this.rebuildScheduler = rebuildScheduler;
+        this.refreshAheadSeconds = refreshAheadSeconds;
+        this.localCache = Caffeine.newBuilder()
+                .maximumSize(localMaximumSize)
+                .expireAfterWrite(localTtlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
     }
 
     /**
-     * 普通的新建缓存，接收任意对象序列为String存储到Redis，并增加TTL过期时间
+     * 普通的新建缓存，接收任意对象序列化后存储到Redis，并增加TTL过期时间
      *
      * @param key
      * @param value
@@ -43,11 +103,85 @@ public class CacheClient {
      * @param unit  时间单位
      */
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        setBytes(key, codec.encode(value), time, unit);
+        localCache.put(key, value);
+    }
+
+    /**
+     * 删除缓存（两级），并通知其他实例删除各自的一级缓存
+     * 数据库更新后调用
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        localCache.invalidate(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 收到其他实例的失效通知，消息体是key
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        localCache.invalidate(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 两级缓存的命中统计
+     */
+    public Map<String, Object> stats() {
+        CacheStats local = localCache.stats();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("localSize", localCache.estimatedSize());
+        stats.put("localHit", local.hitCount());
+        stats.put("localMiss", local.missCount());
+        stats.put("localEviction", local.evictionCount());
+        stats.put("redisHit", redisHit.sum());
+        stats.put("redisNullHit", redisNullHit.sum());
+        stats.put("redisMiss", redisMiss.sum());
+        stats.put("bloomRejected", bloomRejected.sum());
+        return stats;
+    }
+
+    //查一级缓存，类型对不上当作没命中
+    private <R> R getLocal(String key, Class<R> type) {
+        Object value = localCache.getIfPresent(key);
+        return type.isInstance(value) ? type.cast(value) : null;
+    }
+
+    //二级缓存命中，解析后放入一级缓存；解析不了（类的字段变了）返回null，当作未命中
+    private <R> R fromRedis(String key, byte[] bytes, Class<R> type) {
+        R r = codecOf(bytes).decode(bytes, type);
+        if (r != null) {
+            redisHit.increment();
+            localCache.put(key, r);
+        }
+        return r;
+    }
+
+    private CacheCodec codecOf(byte[] bytes) {
+        for (CacheCodec c : readCodecs) {
+            if (c.accepts(bytes)) {
+                return c;
+            }
+        }
+        return codec;
+    }
+
+    //直接读写字节，不经过StringRedisTemplate的字符串序列化
+    private byte[] getBytes(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.stringCommands().get(rawKey));
+    }
+
+    private void setBytes(String key, byte[] value, Long time, TimeUnit unit) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        Expiration expiration = time == null ? Expiration.persistent() : Expiration.from(time, unit);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> connection.stringCommands()
+                .set(rawKey, value, expiration, RedisStringCommands.SetOption.upsert()));
     }
 
     /**
-     * 新建防止缓存击穿的缓存，接收任意对象序列为String存储到Redis，并增加逻辑过期时间
+     * 新建防止缓存击穿的缓存，接收任意对象序列化后存储到Redis，并增加逻辑过期时间
      *
      * @param key
      * @param value
@@ -55,12 +189,10 @@ public class CacheClient {
      * @param unit  时间单位
      */
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
-        // 封装拥有逻辑过期时间的对象（到了这个时候就算是过期）
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        // 封装拥有逻辑过期时间的对象（到了这个时候就算是过期），由codec决定怎么和数据一起存
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(unit.toSeconds(time));
         // 写入Redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        setBytes(key, codec.encodeWithExpire(value, expireTime), null, null);
     }
 
     /**
@@ -75,20 +207,45 @@ public class CacheClient {
                                           Function<ID, R> dbFallback, //泛型类查询数据库的方法（有参有返回值的Function）（fallback：后路；后备计划）
                                           Long time,                  //过期时间
                                           TimeUnit unit) {             //时间单位
+        return queryWithPassThrough(keyPrefix, id, type, dbFallback, time, unit, null);
+    }
+
+    /**
+     * 带布隆过滤器的缓存穿透处理
+     * @param mightExist 布隆过滤器，返回false表示id一定不存在，直接返回null，不查Redis也不查数据库
+     */
+    public <R, ID> R queryWithPassThrough(String keyPrefix,
+                                          ID id,
+                                          Class<R> type,
+                                          Function<ID, R> dbFallback,
+                                          Long time,
+                                          TimeUnit unit,
+                                          Predicate<ID> mightExist) {
+        if (rejectedByBloom(id, mightExist)) {
+            return null;
+        }
         //构建key
         String key = keyPrefix + id;
+        // 0.先查本地一级缓存
+        R local = getLocal(key, type);
+        if (local != null) {
+            return local;
+        }
         // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
         // 2.判断是否存在
-        if (StrUtil.isNotBlank(json)) {
+        R cached = bytes == null || bytes.length == 0 ? null : fromRedis(key, bytes, type);
+        if (cached != null) {
             // 3.存在，直接返回
-            return JSONUtil.toBean(json, type);
+            return cached;
         }
         // 判断命中的是否是空值
-        if (json != null) { //因为如果不是null就是"",而""是我们为了防止缓存穿透,而在第一次查询不到数据库存储的
+        if (bytes != null && bytes.length == 0) { //因为如果不是null就是"",而""是我们为了防止缓存穿透,而在第一次查询不到数据库存储的
             // 返回一个错误信息
+            redisNullHit.increment();
             return null;
         }
+        redisMiss.increment();
 
         // 4.不存在，根据id查询数据库（由于工具类时通用方法，具体根据id查询数据库的方法，工具类内部不知道，所以需要作为参数传入）
         R r = dbFallback.apply(id);
@@ -117,49 +274,66 @@ public class CacheClient {
                                             TimeUnit unit) {
         String key = keyPrefix + id;
         // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
         // 2.判断是否存在
-        if (StrUtil.isBlank(json)) {
-            // 3.存在，直接返回
+        if (bytes == null || bytes.length == 0) {
+            // 3.不存在，直接返回
+            return null;
+        }
+        // 4.命中，反序列化（json格式要解析两次，二进制格式一次）
+        RedisData redisData = codecOf(bytes).decodeWithExpire(bytes, type);
+        if (redisData == null) {
+            // 解析不了（类的字段变了），重建后再读
+            rebuildScheduler.submit(key, () -> rebuildLogicalExpire(key, id, type, dbFallback, time, unit));
             return null;
         }
-        // 4.命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        R r = type.cast(redisData.getData());
         LocalDateTime expireTime = redisData.getExpireTime();
-        // 5.判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
+        // 5.判断是否过期（开启提前刷新时，快过期的也算）
+        if (!needRebuild(expireTime)) {
             // 5.1.未过期，直接返回店铺信息
             return r;
         }
-        // 5.2.已过期，需要缓存重建
-        // 6.缓存重建
-        // 6.1.获取互斥锁
+        // 5.2.已过期（或快过期），需要缓存重建
+        // 6.提交给重建线程池，同一个key本机只提交一次，队列满了就不重建，都继续返回旧的信息
+        rebuildScheduler.submit(key, () -> rebuildLogicalExpire(key, id, type, dbFallback, time, unit));
+        // 7.返回旧的信息
+        return r;
+    }
+
+    //逻辑过期时间到了，或者开启了提前刷新且快到了
+    private boolean needRebuild(LocalDateTime expireTime) {
+        return !expireTime.isAfter(LocalDateTime.now().plusSeconds(refreshAheadSeconds));
+    }
+
+    /**
+     * 在重建线程中执行：多个实例之间用互斥锁，拿到锁后再确认一次是否还需要重建
+     */
+    private <ID> void rebuildLogicalExpire(String key, ID id, Class<?> type, Function<ID, ?> dbFallback, Long time, TimeUnit unit) {
+        // 1.获取互斥锁，拿不到说明别的实例在重建
         String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        // 6.2.判断是否获取锁成功
-        if (isLock) {
-            // 6.3.成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    // 查询数据库
-                    R newR = dbFallback.apply(id);
-                    // 重建缓存
-                    this.setWithLogicalExpire(key, newR, time, unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    // 释放锁
-                    unlock(lockKey);
-                }
-            });
+        if (!tryLock(lockKey)) {
+            return;
+        }
+        try {
+            // 2.可能在排队期间已经被别人重建了
+            byte[] bytes = getBytes(key);
+            RedisData redisData = bytes == null || bytes.length == 0 ? null : codecOf(bytes).decodeWithExpire(bytes, type);
+            if (redisData != null && !needRebuild(redisData.getExpireTime())) {
+                return;
+            }
+            // 3.查询数据库，重建缓存
+            this.setWithLogicalExpire(key, dbFallback.apply(id), time, unit);
+        } finally {
+            // 4.释放锁
+            unlock(lockKey);
         }
-        // 6.4.获取锁失败返回旧的信息
-        return r;
     }
 
     /**
-     * 加互斥锁,解决缓存击穿,会导致大量线程阻塞
+     * 加互斥锁,解决缓存击穿
+     * 本机内同一个key的并发未命中共用一次重建（single-flight），只有一个线程去抢Redis锁、查数据库，
+     * 其他线程等重建结果，不再 sleep+递归
      */
     public <R, ID> R queryWithMutex(String keyPrefix,
                                     ID id,
@@ -167,51 +341,226 @@ public class CacheClient {
                                     Function<ID, R> dbFallback,
                                     Long time,
                                     TimeUnit unit) {
+        return queryWithMutex(keyPrefix, id, type, dbFallback, time, unit, null);
+    }
+
+    /**
+     * 带布隆过滤器的互斥锁查询
+     * @param mightExist 布隆过滤器，返回false表示id一定不存在，直接返回null，不查Redis也不查数据库
+     */
+    public <R, ID> R queryWithMutex(String keyPrefix,
+                                    ID id,
+                                    Class<R> type,
+                                    Function<ID, R> dbFallback,
+                                    Long time,
+                                    TimeUnit unit,
+                                    Predicate<ID> mightExist) {
+        if (rejectedByBloom(id, mightExist)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        // 0.先查本地一级缓存
+        R local = getLocal(key, type);
+        if (local != null) {
+            return local;
+        }
         // 1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
         // 2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
+        R cached = bytes == null || bytes.length == 0 ? null : fromRedis(key, bytes, type);
+        if (cached != null) {
             // 3.存在，直接返回
-            return JSONUtil.toBean(shopJson, type);
+            return cached;
         }
         // 判断命中的是否是空值
-        if (shopJson != null) {
+        if (bytes != null && bytes.length == 0) {
             // 返回一个错误信息
+            redisNullHit.increment();
             return null;
         }
+        redisMiss.increment();
 
         // 4.实现缓存重建
-        // 4.1.获取互斥锁(使用redis实现)
-        String lockKey = LOCK_SHOP_KEY + id;
-        R r = null;
+        // 4.1.本机同一个key只让一个线程去重建，其他线程等它的结果（single-flight）
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> running = rebuildFlights.putIfAbsent(key, flight);
+        if (running != null) {
+            // 4.2.已经有线程在重建，等结果，重建完立刻返回（不用再轮询Redis）
+            return type.cast(awaitFlight(running));
+        }
+        // 4.3.本线程负责重建
         try {
-            boolean isLock = tryLock(lockKey);
-            // 4.2.判断是否获取成功
-            if (!isLock) {
-                // 4.3.获取锁失败，休眠并重试
-                Thread.sleep(50);
-                return queryWithMutex(keyPrefix, id, type, dbFallback, time, unit);
+            R r = rebuildWithMutex(key, id, type, dbFallback, time, unit);
+            flight.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            rebuildFlights.remove(key, flight);
+        }
+    }
+
+    /**
+     * 批量查询（列表页用），和单个查询用同样的key和格式，缓存互通
+     * 1.查本地一级缓存
+     * 2.未命中的一次 MGET
+     * 3.Redis也没有的，调用一次 dbBatchFallback（一条 IN 查询），一个管道写回Redis，不存在的写空值
+     * 批量查询不加互斥锁：一批里的key分散，同时未命中的概率小，数据库也只多一条IN查询
+     * @return id -> 对象，不存在的id不在返回的map中
+     */
+    public <R, ID> Map<ID, R> queryBatch(String keyPrefix,
+                                         Collection<ID> ids,
+                                         Class<R> type,
+                                         Function<Collection<ID>, Map<ID, R>> dbBatchFallback,
+                                         Long time,
+                                         TimeUnit unit) {
+        Map<ID, R> result = new HashMap<>(ids.size() * 2);
+        // 1.本地一级缓存
+        List<ID> missed = new ArrayList<>();
+        for (ID id : ids) {
+            R local = getLocal(keyPrefix + id, type);
+            if (local != null) {
+                result.put(id, local);
+            } else {
+                missed.add(id);
             }
-            // 4.4.获取锁成功，根据id查询数据库
-            r = dbFallback.apply(id);
-            // 5.不存在，返回错误
-            if (r == null) {
-                // 将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                // 返回错误信息
+        }
+        if (missed.isEmpty()) {
+            return result;
+        }
+        // 2.Redis MGET
+        byte[][] rawKeys = new byte[missed.size()][];
+        for (int i = 0; i < rawKeys.length; i++) {
+            rawKeys[i] = (keyPrefix + missed.get(i)).getBytes(StandardCharsets.UTF_8);
+        }
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.stringCommands().mGet(rawKeys));
+        List<ID> dbIds = new ArrayList<>();
+        for (int i = 0; i < missed.size(); i++) {
+            ID id = missed.get(i);
+            byte[] bytes = values == null ? null : values.get(i);
+            if (bytes != null && bytes.length == 0) {
+                // 空值，数据库里也没有
+                redisNullHit.increment();
+                continue;
+            }
+            R cached = bytes == null ? null : fromRedis(keyPrefix + id, bytes, type);
+            if (cached != null) {
+                result.put(id, cached);
+            } else {
+                redisMiss.increment();
+                dbIds.add(id);
+            }
+        }
+        if (dbIds.isEmpty()) {
+            return result;
+        }
+        // 3.数据库批量查询，一个管道写回Redis
+        Map<ID, R> loaded = dbBatchFallback.apply(dbIds);
+        Expiration expiration = Expiration.from(time, unit);
+        Expiration nullExpiration = Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : dbIds) {
+                R r = loaded.get(id);
+                byte[] rawKey = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+                connection.stringCommands().set(rawKey, r == null ? new byte[0] : codec.encode(r),
+                        r == null ? nullExpiration : expiration, RedisStringCommands.SetOption.upsert());
+            }
+            return null;
+        });
+        for (ID id : dbIds) {
+            R r = loaded.get(id);
+            if (r != null) {
+                localCache.put(keyPrefix + id, r);
+                result.put(id, r);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 本机负责重建的线程执行：多个实例之间用Redis的互斥锁，只有一个实例查数据库
+     * 拿不到锁说明别的实例在重建，短间隔检查Redis，等它写好了直接用（每个实例只有这一个线程在等）
+     */
+    private <R, ID> R rebuildWithMutex(String key,
+                                       ID id,
+                                       Class<R> type,
+                                       Function<ID, R> dbFallback,
+                                       Long time,
+                                       TimeUnit unit) {
+        String lockKey = LOCK_SHOP_KEY + id;
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LOCK_SHOP_TTL);
+        while (true) {
+            // 1.获取互斥锁(使用redis实现)
+            if (tryLock(lockKey)) {
+                try {
+                    // 2.拿到锁后再查一次，可能别的实例刚重建完
+                    byte[] bytes = getBytes(key);
+                    if (bytes != null && bytes.length == 0) {
+                        return null;
+                    }
+                    R cached = bytes == null ? null : fromRedis(key, bytes, type);
+                    if (cached != null) {
+                        return cached;
+                    }
+                    // 3.根据id查询数据库
+                    R r = dbFallback.apply(id);
+                    if (r == null) {
+                        // 4.不存在，将空值写入redis
+                        stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+                        return null;
+                    }
+                    // 5.存在，写入redis
+                    this.set(key, r, time, unit);
+                    return r;
+                } finally {
+                    // 6.释放锁（只有拿到锁才会走到这里）
+                    unlock(lockKey);
+                }
+            }
+            // 7.别的实例在重建，看看写好了没有
+            byte[] bytes = getBytes(key);
+            if (bytes != null && bytes.length == 0) {
                 return null;
             }
-            // 6.存在，写入redis
-            this.set(key, r, time, unit);
+            R cached = bytes == null ? null : fromRedis(key, bytes, type);
+            if (cached != null) {
+                return cached;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                // 锁的过期时间都过了还没写好，对方多半挂了，等锁过期后自己抢
+                deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LOCK_SHOP_TTL);
+                log.warn("等待其他实例重建缓存超时：{}", key);
+            }
+            try {
+                Thread.sleep(REBUILD_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    //等待本机正在进行的重建
+    private Object awaitFlight(CompletableFuture<Object> flight) {
+        try {
+            return flight.get(LOCK_SHOP_TTL, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
-        } finally {
-            // 7.释放锁
-            unlock(lockKey);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("缓存重建失败", e.getCause());
+        } catch (TimeoutException e) {
+            throw new RuntimeException("等待缓存重建超时", e);
         }
-        // 8.返回
-        return r;
+    }
+
+    private <ID> boolean rejectedByBloom(ID id, Predicate<ID> mightExist) {
+        if (mightExist == null || mightExist.test(id)) {
+            return false;
+        }
+        bloomRejected.increment();
+        return true;
     }
 
     //获取锁（要保证设置kv和过期时间是一个原子操作set）
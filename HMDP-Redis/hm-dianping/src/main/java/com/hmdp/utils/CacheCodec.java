@@ -0,0 +1,32 @@
+package com.hmdp.utils;
+
+import java.time.LocalDateTime;
+
+/**
+ * 缓存值的序列化方式，CacheClient通过它读写Redis里的字节
+ * 实现类：JsonCacheCodec（原来的Hutool json）、BinaryCacheCodec（紧凑的二进制格式）
+ */
+public interface CacheCodec {
+
+    /**
+     * 这段字节是不是本编码写的（读的时候按内容选择编码，切换编码后旧数据还能读）
+     */
+    boolean accepts(byte[] bytes);
+
+    byte[] encode(Object value);
+
+    /**
+     * 解析失败（比如类的字段变了）返回null，调用方当作缓存未命中
+     */
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    /**
+     * 带逻辑过期时间的编码，对应 RedisData
+     */
+    byte[] encodeWithExpire(Object value, LocalDateTime expireTime);
+
+    /**
+     * 带逻辑过期时间的解码，返回的 RedisData 中 data 已经是 type 类型
+     */
+    RedisData decodeWithExpire(byte[] bytes, Class<?> type);
+}
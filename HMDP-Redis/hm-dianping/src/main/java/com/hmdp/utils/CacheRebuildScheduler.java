@@ -0,0 +1,117 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 逻辑过期缓存的重建线程池
+ * 队列有界；同一个key已经在排队或重建时不重复提交；队列满了直接放弃这次重建，调用方继续返回旧数据
+ * 记录队列长度、重建耗时和失败次数
+ */
+@Slf4j
+@Component
+public class CacheRebuildScheduler {
+
+    private final ThreadPoolExecutor executor;
+    //已经提交还没执行完的key
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder totalMillis = new LongAdder();
+    private final LongAccumulator maxMillis = new LongAccumulator(Math::max, 0);
+
+    public CacheRebuildScheduler(@Value("${hmdp.cache.rebuild.threads:10}") int threads,
+                                 @Value("${hmdp.cache.rebuild.queue-capacity:1000}") int queueCapacity) {
+        AtomicInteger index = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread thread = new Thread(r, "cache-rebuild-" + index.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                // 队列满了抛异常，由submit统计并放弃
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * 提交一个key的重建任务
+     * @return 是否真的提交了（重复的key、队列已满都返回false，调用方继续用旧数据）
+     */
+    public boolean submit(String key, Runnable rebuild) {
+        // 1.同一个key正在排队或重建，不重复提交
+        if (!pending.add(key)) {
+            deduplicated.increment();
+            return false;
+        }
+        try {
+            // 2.提交，任务结束时把key移出pending
+            executor.execute(() -> run(key, rebuild));
+            submitted.increment();
+            return true;
+        } catch (RejectedExecutionException e) {
+            // 3.队列满了，这次不重建
+            pending.remove(key);
+            rejected.increment();
+            log.debug("缓存重建队列已满，放弃重建：{}", key);
+            return false;
+        }
+    }
+
+    private void run(String key, Runnable rebuild) {
+        long begin = System.currentTimeMillis();
+        try {
+            rebuild.run();
+            succeeded.increment();
+        } catch (Exception e) {
+            failed.increment();
+            log.error("缓存重建失败：{}", key, e);
+        } finally {
+            long cost = System.currentTimeMillis() - begin;
+            totalMillis.add(cost);
+            maxMillis.accumulate(cost);
+            pending.remove(key);
+        }
+    }
+
+    /**
+     * 重建线程池的运行指标
+     */
+    public Map<String, Object> stats() {
+        long done = succeeded.sum() + failed.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("queueDepth", executor.getQueue().size());
+        stats.put("active", executor.getActiveCount());
+        stats.put("submitted", submitted.sum());
+        stats.put("deduplicated", deduplicated.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("succeeded", succeeded.sum());
+        stats.put("failed", failed.sum());
+        stats.put("avgMillis", done == 0 ? 0 : totalMillis.sum() / done);
+        stats.put("maxMillis", maxMillis.get());
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,175 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.entity.Follow;
+import com.hmdp.mapper.FollowMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.FOLLOWS_INVALIDATE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.FOLLOWS_KEY;
+import static com.hmdp.utils.RedisConstants.FOLLOWS_TTL;
+import static com.hmdp.utils.RedisConstants.FOLLOWS_VERSION_KEY;
+
+/**
+ * 关注关系缓存：每个用户关注的人
+ * 1.本地：排好序的 long[] 快照（Caffeine，只留常用的用户），是否关注用二分查找，共同关注用归并求交集，都不用访问Redis
+ * 2.Redis：set follows:{userId}，本地未命中时读取；不存在就从 tb_follow 加载并写回（以前只有关注接口会写，老数据没有）
+ * 关注/取关后删掉Redis的set和本地快照，并通知其他实例，下次读取时重新加载
+ * 写回Redis和关注/取关有竞争：查数据库在提交之前、写回在删除之后，旧的列表会在Redis里留一天
+ * 所以每个用户有一个版本号 follows:version:{userId}，关注/取关时先加1再删除set；
+ * 加载时查数据库之前记下版本号，变了就不写回，写回之后再检查一次，变了就把刚写的删掉
+ */
+@Slf4j
+@Component
+public class FollowGraphCache implements MessageListener {
+
+    private static final long[] EMPTY = new long[0];
+
+    private final FollowMapper followMapper;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final Cache<Long, long[]> cache;
+
+    public FollowGraphCache(FollowMapper followMapper,
+                            StringRedisTemplate stringRedisTemplate,
+                            @Value("${hmdp.follow.local.maximum-size:10000}") long maximumSize,
+                            @Value("${hmdp.follow.local.ttl-seconds:60}") long ttlSeconds) {
+        this.followMapper = followMapper;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * 用户关注的所有人的id，从小到大排好序，不要修改返回的数组
+     */
+    public long[] follows(Long userId) {
+        return cache.get(userId, this::load);
+    }
+
+    public boolean isFollowing(Long userId, Long followUserId) {
+        return Arrays.binarySearch(follows(userId), followUserId) >= 0;
+    }
+
+    /**
+     * 两个用户的共同关注
+     */
+    public List<Long> common(Long userId, Long otherUserId) {
+        return intersect(follows(userId), follows(otherUserId));
+    }
+
+    /**
+     * 关注/取关后调用：删除Redis的set和本地快照，并通知其他实例
+     */
+    public void invalidate(Long userId) {
+        // 先加版本号再删除，正在加载的一方不管在哪一步都能发现
+        String versionKey = FOLLOWS_VERSION_KEY + userId;
+        stringRedisTemplate.opsForValue().increment(versionKey);
+        stringRedisTemplate.expire(versionKey, FOLLOWS_TTL, TimeUnit.MINUTES);
+        stringRedisTemplate.delete(FOLLOWS_KEY + userId);
+        cache.invalidate(userId);
+        stringRedisTemplate.convertAndSend(FOLLOWS_INVALIDATE_CHANNEL, userId.toString());
+    }
+
+    /**
+     * 收到其他实例关注关系变化的通知，消息体是用户id
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            cache.invalidate(Long.parseLong(body));
+        } catch (NumberFormatException e) {
+            log.warn("无效的关注关系失效消息：{}", body);
+        }
+    }
+
+    //两个有序数组归并求交集
+    static List<Long> intersect(long[] a, long[] b) {
+        List<Long> result = new ArrayList<>();
+        int i = 0, j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result.add(a[i]);
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    private long[] load(Long userId) {
+        String key = FOLLOWS_KEY + userId;
+        // 1.先读Redis SMEMBERS follows:{userId}
+        Set<String> members = stringRedisTemplate.opsForSet().members(key);
+        if (members != null && !members.isEmpty()) {
+            return toSortedArray(members);
+        }
+        // 2.Redis没有，记下版本号，再查数据库 select follow_user_id from tb_follow where user_id = ?
+        String versionKey = FOLLOWS_VERSION_KEY + userId;
+        String version = stringRedisTemplate.opsForValue().get(versionKey);
+        List<Object> ids = followMapper.selectObjs(new QueryWrapper<Follow>()
+                .select("follow_user_id")
+                .eq("user_id", userId));
+        if (ids.isEmpty()) {
+            // 没关注任何人，Redis里放不了空set，只缓存在本地
+            return EMPTY;
+        }
+        long[] follows = new long[ids.size()];
+        for (int i = 0; i < follows.length; i++) {
+            follows[i] = ((Number) ids.get(i)).longValue();
+        }
+        Arrays.sort(follows);
+        if (!Objects.equals(version, stringRedisTemplate.opsForValue().get(versionKey))) {
+            // 查数据库期间关注关系变了，查到的可能是旧的，不写回
+            return follows;
+        }
+        // 3.写回Redis，一个管道 SADD + EXPIRE
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[][] values = new byte[follows.length][];
+        for (int i = 0; i < follows.length; i++) {
+            values[i] = String.valueOf(follows[i]).getBytes(StandardCharsets.UTF_8);
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.setCommands().sAdd(rawKey, values);
+            connection.keyCommands().expire(rawKey, TimeUnit.MINUTES.toSeconds(FOLLOWS_TTL));
+            return null;
+        });
+        // 4.写回之后再检查一次版本号，期间关注/取关过（删除可能在写回之前）就把刚写的删掉
+        if (!Objects.equals(version, stringRedisTemplate.opsForValue().get(versionKey))) {
+            stringRedisTemplate.delete(key);
+        }
+        return follows;
+    }
+
+    private static long[] toSortedArray(Set<String> members) {
+        long[] result = new long[members.size()];
+        int i = 0;
+        for (String member : members) {
+            result[i++] = Long.parseLong(member);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+}
@@ -0,0 +1,220 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 内存里的经纬度网格索引（一个店铺类型一个）
+ * 按固定经纬度步长切成格子，每个格子用三个数组保存 id、经度、纬度，查询只扫描范围内的格子
+ * 格子不可变，修改时复制一份替换（店铺位置很少变化），查询不加锁
+ * 没有处理180度经线两侧的跨越
+ */
+public class GeoGrid {
+
+    private static final double METERS_PER_DEGREE = Math.toRadians(1) * NearbyShopIndex.EARTH_RADIUS_IN_METERS;
+
+    //格子的经纬度步长
+    private final double cellDegrees;
+    private final Map<Long, Bucket> buckets = new ConcurrentHashMap<>();
+
+    public GeoGrid(double cellDegrees) {
+        this.cellDegrees = cellDegrees;
+    }
+
+    /**
+     * 批量构建，比逐个 put 少复制数组
+     */
+    public static GeoGrid build(double cellDegrees, long[] ids, double[] xs, double[] ys) {
+        GeoGrid grid = new GeoGrid(cellDegrees);
+        // 1.数每个格子的店铺数
+        Map<Long, int[]> counts = new HashMap<>();
+        long[] cells = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            cells[i] = grid.cellKey(grid.row(ys[i]), grid.col(xs[i]));
+            counts.computeIfAbsent(cells[i], k -> new int[1])[0]++;
+        }
+        // 2.分配数组再填进去
+        Map<Long, Bucket> filling = new HashMap<>(counts.size() * 2);
+        counts.forEach((cell, count) -> filling.put(cell, new Bucket(new long[count[0]], new double[count[0]], new double[count[0]])));
+        for (int i = 0; i < ids.length; i++) {
+            Bucket bucket = filling.get(cells[i]);
+            int n = --counts.get(cells[i])[0];
+            bucket.ids[n] = ids[i];
+            bucket.xs[n] = xs[i];
+            bucket.ys[n] = ys[i];
+        }
+        grid.buckets.putAll(filling);
+        return grid;
+    }
+
+    /**
+     * 添加店铺，已经在这个格子里的更新坐标
+     */
+    public synchronized void put(long id, double x, double y) {
+        long cell = cellKey(row(y), col(x));
+        Bucket old = buckets.get(cell);
+        if (old == null) {
+            buckets.put(cell, new Bucket(new long[]{id}, new double[]{x}, new double[]{y}));
+            return;
+        }
+        int index = old.indexOf(id);
+        int size = old.ids.length + (index < 0 ? 1 : 0);
+        Bucket bucket = new Bucket(Arrays.copyOf(old.ids, size), Arrays.copyOf(old.xs, size), Arrays.copyOf(old.ys, size));
+        int at = index < 0 ? size - 1 : index;
+        bucket.ids[at] = id;
+        bucket.xs[at] = x;
+        bucket.ys[at] = y;
+        buckets.put(cell, bucket);
+    }
+
+    /**
+     * 删除店铺，(x, y) 是它在索引里的坐标
+     */
+    public synchronized void remove(long id, double x, double y) {
+        long cell = cellKey(row(y), col(x));
+        Bucket old = buckets.get(cell);
+        int index = old == null ? -1 : old.indexOf(id);
+        if (index < 0) {
+            return;
+        }
+        int size = old.ids.length - 1;
+        if (size == 0) {
+            buckets.remove(cell);
+            return;
+        }
+        // 最后一个挪到删除的位置
+        Bucket bucket = new Bucket(Arrays.copyOf(old.ids, size), Arrays.copyOf(old.xs, size), Arrays.copyOf(old.ys, size));
+        if (index < size) {
+            bucket.ids[index] = old.ids[size];
+            bucket.xs[index] = old.xs[size];
+            bucket.ys[index] = old.ys[size];
+        }
+        buckets.put(cell, bucket);
+    }
+
+    /**
+     * 距离 (x, y) 不超过 radiusMeters 的店铺，按距离从近到远，距离相同按id
+     */
+    public List<NearbyShopIndex.Nearby> within(double x, double y, double radiusMeters) {
+        List<NearbyShopIndex.Nearby> result = new ArrayList<>();
+        double dLat = radiusMeters / METERS_PER_DEGREE;
+        double dLon = dLat / Math.cos(Math.toRadians(Math.min(89, Math.abs(y) + dLat)));
+        int minRow = row(y - dLat), maxRow = row(y + dLat);
+        int minCol = col(x - dLon), maxCol = col(x + dLon);
+        for (int r = minRow; r <= maxRow; r++) {
+            for (int c = minCol; c <= maxCol; c++) {
+                Bucket bucket = buckets.get(cellKey(r, c));
+                if (bucket == null) {
+                    continue;
+                }
+                for (int i = 0; i < bucket.ids.length; i++) {
+                    double distance = NearbyShopIndex.distance(x, y, bucket.xs[i], bucket.ys[i]);
+                    if (distance <= radiusMeters) {
+                        result.add(new NearbyShopIndex.Nearby(bucket.ids[i], distance));
+                    }
+                }
+            }
+        }
+        result.sort(NearbyShopIndex.Nearby.ORDER);
+        return result;
+    }
+
+    /**
+     * 离 (x, y) 最近的k个店铺（不超过 maxRadiusMeters），按距离从近到远
+     * 从所在格子一圈一圈往外扫，已经找到k个、并且第k个比下一圈可能的最近距离还近就停止
+     */
+    public List<NearbyShopIndex.Nearby> nearest(double x, double y, int k, double maxRadiusMeters) {
+        if (k <= 0) {
+            return Collections.emptyList();
+        }
+        // 堆顶是目前第k近的
+        PriorityQueue<NearbyShopIndex.Nearby> heap = new PriorityQueue<>(k + 1, NearbyShopIndex.Nearby.ORDER.reversed());
+        double dLat = maxRadiusMeters / METERS_PER_DEGREE;
+        double cos = Math.cos(Math.toRadians(Math.min(89, Math.abs(y) + dLat)));
+        int maxRing = (int) Math.ceil(dLat / cos / cellDegrees) + 1;
+        int row = row(y), col = col(x);
+        for (int ring = 0; ring <= maxRing; ring++) {
+            for (int r = row - ring; r <= row + ring; r++) {
+                // 第一行和最后一行整行扫描，中间的行只扫两端
+                int step = (r == row - ring || r == row + ring) ? 1 : Math.max(1, 2 * ring);
+                for (int c = col - ring; c <= col + ring; c += step) {
+                    Bucket bucket = buckets.get(cellKey(r, c));
+                    if (bucket == null) {
+                        continue;
+                    }
+                    for (int i = 0; i < bucket.ids.length; i++) {
+                        double distance = NearbyShopIndex.distance(x, y, bucket.xs[i], bucket.ys[i]);
+                        if (distance > maxRadiusMeters) {
+                            continue;
+                        }
+                        NearbyShopIndex.Nearby nearby = new NearbyShopIndex.Nearby(bucket.ids[i], distance);
+                        if (heap.size() < k) {
+                            heap.add(nearby);
+                        } else if (NearbyShopIndex.Nearby.ORDER.compare(nearby, heap.peek()) < 0) {
+                            heap.poll();
+                            heap.add(nearby);
+                        }
+                    }
+                }
+            }
+            // 下一圈的点离 (x, y) 至少隔着 ring 个格子
+            if (heap.size() == k && heap.peek().getDistance() <= ring * cellDegrees * METERS_PER_DEGREE * cos) {
+                break;
+            }
+        }
+        List<NearbyShopIndex.Nearby> result = new ArrayList<>(heap);
+        result.sort(NearbyShopIndex.Nearby.ORDER);
+        return result;
+    }
+
+    public int cells() {
+        return buckets.size();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Bucket bucket : buckets.values()) {
+            size += bucket.ids.length;
+        }
+        return size;
+    }
+
+    private int row(double y) {
+        return (int) Math.floor((y + 90) / cellDegrees);
+    }
+
+    private int col(double x) {
+        return (int) Math.floor((x + 180) / cellDegrees);
+    }
+
+    private long cellKey(int row, int col) {
+        return ((long) row << 32) | (col & 0xffffffffL);
+    }
+
+    private static class Bucket {
+        private final long[] ids;
+        private final double[] xs;
+        private final double[] ys;
+
+        Bucket(long[] ids, double[] xs, double[] ys) {
+            this.ids = ids;
+            this.xs = xs;
+            this.ys = ys;
+        }
+
+        int indexOf(long id) {
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] == id) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Blog;
+import com.hmdp.mapper.BlogMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.BLOG_HOT_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_DELTA_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_FLUSHING_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_BLOG_HOT_RECONCILE_KEY;
+
+/**
+ * 热门笔记排行榜，zset blog:hot，member是笔记id，分数 = 点赞数 + 时间加成
+ * 时间加成 = 发布时间（秒）/ decay-seconds，越新的笔记分数越高（相当于老笔记随时间衰减），0表示不加成
+ * 点赞/取消时增量更新（只更新已经在榜上的），新笔记发布时加入并裁剪到size篇；定时用数据库全量对账，纠正偏差
+ * 榜满了以后，榜外的页从数据库按同样的分数（不含还没写回的点赞增量）排序、排除榜上的笔记后接着分页，同一篇笔记不会重复或漏掉
+ */
+@Slf4j
+@Component
+public class HotBlogRanking {
+
+    //开始时间戳（2022/1/1 0:0:0），时间加成从这里算，分数不会太大
+    private static final long BEGIN_TIMESTAMP = 1640995200L;
+    //对账时每次从数据库读多少条
+    private static final int RECONCILE_PAGE_SIZE = 1000;
+
+    private static final DefaultRedisScript<Double> INCR_IF_PRESENT_SCRIPT = new DefaultRedisScript<>(
+            "if (redis.call('zscore', KEYS[1], ARGV[1])) then return redis.call('zincrby', KEYS[1], ARGV[2], ARGV[1]) end return nil",
+            Double.class);
+    //加入后只保留分数最高的 ARGV[3] 篇
+    private static final DefaultRedisScript<Long> ADD_AND_TRIM_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('zadd', KEYS[1], ARGV[2], ARGV[1]) return redis.call('zremrangebyrank', KEYS[1], 0, -tonumber(ARGV[3]) - 1)",
+            Long.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final BlogMapper blogMapper;
+    private final RedissonClient redissonClient;
+    private final boolean enabled;
+    //排行榜保留多少篇
+    private final int size;
+    //多少秒的发布时间差相当于1个赞，0表示不做时间加成
+    private final long decaySeconds;
+
+    public HotBlogRanking(StringRedisTemplate stringRedisTemplate,
+                          BlogMapper blogMapper,
+                          RedissonClient redissonClient,
+                          @Value("${hmdp.blog.hot.enabled:true}") boolean enabled,
+                          @Value("${hmdp.blog.hot.size:1000}") int size,
+                          @Value("${hmdp.blog.hot.decay-seconds:0}") long decaySeconds) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.blogMapper = blogMapper;
+        this.redissonClient = redissonClient;
+        this.enabled = enabled;
+        this.size = size;
+        this.decaySeconds = decaySeconds;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 一页热门笔记的id，按分数从高到低
+     * 排行榜只保留前size篇，榜满了（还有没上榜的笔记）时榜外的部分从数据库按同样的分数取
+     * @return null 表示排行榜还没建好，调用方回退到数据库查询
+     */
+    public List<Long> page(int current, int pageSize) {
+        if (!enabled) {
+            return null;
+        }
+        long start = (long) (current - 1) * pageSize;
+        // ZCARD blog:hot + ZREVRANGE blog:hot start end，一次往返
+        RedisBatch batch = RedisBatch.of(stringRedisTemplate);
+        CompletableFuture<Long> card = batch.zCard(BLOG_HOT_KEY);
+        CompletableFuture<Set<String>> range = batch.zRevRange(BLOG_HOT_KEY, start, start + pageSize - 1);
+        batch.execute();
+        long total = card.join() == null ? 0 : card.join();
+        if (total == 0) {
+            return null;
+        }
+        Set<String> ids = range.join();
+        int found = ids == null ? 0 : ids.size();
+        List<Long> page = ids == null ? new ArrayList<>() : ids.stream().map(Long::valueOf).collect(Collectors.toList());
+        if (found < pageSize && total >= size) {
+            // 榜满了，这一页（的一部分）在榜外，接着从数据库取
+            page.addAll(pageBeyondBoard(Math.max(0, start - total), pageSize - found));
+        }
+        // 榜没满时所有笔记都在榜上，取不到说明已经翻到最后了
+        return page;
+    }
+
+    /**
+     * 榜外的笔记：SELECT id FROM tb_blog WHERE id NOT IN (榜上的) ORDER BY 分数 DESC, id DESC LIMIT offset, count
+     * 按和排行榜一样的分数排序，排除榜上的笔记，榜上、榜外合起来每篇笔记正好出现一次
+     */
+    private List<Long> pageBeyondBoard(long offset, int count) {
+        Set<String> board = stringRedisTemplate.opsForZSet().range(BLOG_HOT_KEY, 0, -1);
+        List<Long> onBoard = board == null ? Collections.emptyList()
+                : board.stream().map(Long::valueOf).collect(Collectors.toList());
+        return blogMapper.selectList(new QueryWrapper<Blog>()
+                        .select("id")
+                        .notIn(!onBoard.isEmpty(), "id", onBoard)
+                        .orderByDesc(scoreColumn())
+                        .orderByDesc("id")
+                        .last("LIMIT " + offset + "," + count))
+                .stream().map(Blog::getId).collect(Collectors.toList());
+    }
+
+    /**
+     * 点赞数变化，只更新已经在榜上的笔记（不在榜上的等对账时再进来）
+     */
+    public void incrementLiked(Long blogId, int delta) {
+        if (!enabled) {
+            return;
+        }
+        stringRedisTemplate.execute(INCR_IF_PRESENT_SCRIPT, Collections.singletonList(BLOG_HOT_KEY),
+                blogId.toString(), String.valueOf(delta));
+    }
+
+    /**
+     * 新发布的笔记加入排行榜
+     */
+    public void add(Long blogId, LocalDateTime createTime) {
+        if (!enabled) {
+            return;
+        }
+        // ZADD + ZREMRANGEBYRANK，排行榜不会超过size篇，榜内、榜外的分界不变
+        stringRedisTemplate.execute(ADD_AND_TRIM_SCRIPT, Collections.singletonList(BLOG_HOT_KEY),
+                blogId.toString(), String.valueOf(score(0, createTime)), String.valueOf(size));
+    }
+
+    /**
+     * 和数据库对账：按 tb_blog 的点赞数（加上还没写回数据库的增量）重新计算分数，整体替换排行榜
+     * 启动后马上执行一次，之后定时执行
+     */
+    @Scheduled(initialDelayString = "${hmdp.blog.hot.reconcile-delay:10000}",
+            fixedDelayString = "${hmdp.blog.hot.reconcile-interval:600000}")
+    public void reconcile() {
+        if (!enabled) {
+            return;
+        }
+        RLock lock = redissonClient.getLock(LOCK_BLOG_HOT_RECONCILE_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            // 1.还没写回数据库的点赞数增量（write-behind模式）
+            Map<Long, Long> pending = pendingLikeDeltas();
+            // 2.分页读出所有笔记，算分数，只保留分数最高的size篇
+            List<ZSetOperations.TypedTuple<String>> top = new ArrayList<>();
+            long lastId = 0;
+            while (true) {
+                List<Blog> blogs = blogMapper.selectList(new QueryWrapper<Blog>()
+                        .select("id", "liked", "create_time")
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("LIMIT " + RECONCILE_PAGE_SIZE));
+                for (Blog blog : blogs) {
+                    long liked = (blog.getLiked() == null ? 0 : blog.getLiked()) + pending.getOrDefault(blog.getId(), 0L);
+                    top.add(ZSetOperations.TypedTuple.of(blog.getId().toString(), score(liked, blog.getCreateTime())));
+                }
+                if (blogs.size() < RECONCILE_PAGE_SIZE) {
+                    break;
+                }
+                lastId = blogs.get(blogs.size() - 1).getId();
+                if (top.size() > size * 2) {
+                    trim(top);
+                }
+            }
+            trim(top);
+            // 3.统计偏差
+            int drift = countDrift(top);
+            // 4.写到临时key，再改名替换，读的一方不会看到建了一半的排行榜
+            if (top.isEmpty()) {
+                stringRedisTemplate.delete(BLOG_HOT_KEY);
+            } else {
+                String tmpKey = BLOG_HOT_KEY + ":tmp";
+                stringRedisTemplate.delete(tmpKey);
+                stringRedisTemplate.opsForZSet().add(tmpKey, new HashSet<>(top));
+                stringRedisTemplate.rename(tmpKey, BLOG_HOT_KEY);
+            }
+            log.info("热门笔记排行榜对账完成，上榜：{}，纠正：{}", top.size(), drift);
+        } catch (Exception e) {
+            log.error("热门笔记排行榜对账失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private double score(long liked, LocalDateTime createTime) {
+        if (decaySeconds <= 0) {
+            return liked;
+        }
+        LocalDateTime time = createTime == null ? LocalDateTime.now() : createTime;
+        return liked + (double) (time.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP) / decaySeconds;
+    }
+
+    //数据库里按分数排序用的表达式，和score()一致：liked + (create_time - 2022/1/1)秒 / decaySeconds
+    private String scoreColumn() {
+        if (decaySeconds <= 0) {
+            return "liked";
+        }
+        return "liked + TIMESTAMPDIFF(SECOND, '2022-01-01 00:00:00', create_time) / " + decaySeconds;
+    }
+
+    //只保留分数最高的size篇
+    private void trim(List<ZSetOperations.TypedTuple<String>> tuples) {
+        tuples.sort((a, b) -> Double.compare(b.getScore(), a.getScore()));
+        if (tuples.size() > size) {
+            tuples.subList(size, tuples.size()).clear();
+        }
+    }
+
+    //和当前排行榜相比，分数不一致或者不在榜上的个数
+    private int countDrift(List<ZSetOperations.TypedTuple<String>> expected) {
+        Set<ZSetOperations.TypedTuple<String>> current = stringRedisTemplate.opsForZSet().rangeWithScores(BLOG_HOT_KEY, 0, -1);
+        Map<String, Double> scores = new HashMap<>();
+        if (current != null) {
+            current.forEach(t -> scores.put(t.getValue(), t.getScore()));
+        }
+        int drift = 0;
+        for (ZSetOperations.TypedTuple<String> tuple : expected) {
+            Double score = scores.get(tuple.getValue());
+            if (score == null || Math.abs(score - tuple.getScore()) > 1e-6) {
+                drift++;
+            }
+        }
+        return drift;
+    }
+
+    private Map<Long, Long> pendingLikeDeltas() {
+        Map<Long, Long> pending = new HashMap<>();
+        for (String key : new String[]{BLOG_LIKED_DELTA_KEY, BLOG_LIKED_FLUSHING_KEY}) {
+            stringRedisTemplate.opsForHash().entries(key).forEach((blogId, delta) ->
+                    pending.merge(Long.valueOf(blogId.toString()), Long.valueOf(delta.toString()), Long::sum));
+        }
+        return pending;
+    }
+}
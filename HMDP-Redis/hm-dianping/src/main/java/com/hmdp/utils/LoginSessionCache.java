@@ -0,0 +1,117 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_INVALIDATE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_TTL;
+
+/**
+ * 登录信息（token -> 用户）的本地缓存，RefreshTokenInterceptor 每个请求都要用
+ * 1.本地命中就不查Redis（原来每个请求都要 HGETALL login:token:{token}）
+ * 2.刷新token有效期（EXPIRE）每个token每 refresh-interval 秒最多发一次（原来每个请求都发）
+ * 登出、修改用户信息时删除本地缓存，并通知其他实例
+ */
+@Slf4j
+@Component
+public class LoginSessionCache implements MessageListener {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    //token -> 用户
+    private final Cache<String, UserDTO> sessions;
+    //刷新过有效期的token，过期了就需要再刷新一次
+    private final Cache<String, Boolean> refreshed;
+    private final LongAdder redisLoad = new LongAdder();
+    private final LongAdder refreshCount = new LongAdder();
+
+    public LoginSessionCache(StringRedisTemplate stringRedisTemplate,
+                             @Value("${hmdp.login.session.maximum-size:100000}") long maximumSize,
+                             @Value("${hmdp.login.session.ttl-seconds:300}") long ttlSeconds,
+                             @Value("${hmdp.login.session.refresh-interval-seconds:300}") long refreshIntervalSeconds) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.sessions = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        this.refreshed = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(refreshIntervalSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * 根据token获取登录用户，并按需刷新token有效期
+     * @return null 表示未登录或者登录已过期
+     */
+    public UserDTO get(String token) {
+        String key = LOGIN_USER_KEY + token;
+        // 1.查本地，未命中查Redis HGETALL login:token:{token}（Caffeine不缓存null，无效的token每次都会查Redis）
+        UserDTO user = sessions.get(token, t -> {
+            redisLoad.increment();
+            Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(key);
+            return userMap.isEmpty() ? null : BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
+        });
+        if (user == null) {
+            return null;
+        }
+        // 2.刷新token有效期，一段时间内只刷新一次
+        if (refreshed.asMap().putIfAbsent(token, Boolean.TRUE) == null) {
+            refreshCount.increment();
+            stringRedisTemplate.expire(key, LOGIN_USER_TTL, TimeUnit.MINUTES);
+        }
+        return user;
+    }
+
+    /**
+     * 登出：删除Redis里的登录信息，并通知所有实例清除本地缓存
+     */
+    public void remove(String token) {
+        stringRedisTemplate.delete(LOGIN_USER_KEY + token);
+        evict(token);
+    }
+
+    /**
+     * Redis里的登录信息修改后调用，所有实例清除本地缓存，下次请求重新读取
+     */
+    public void evict(String token) {
+        sessions.invalidate(token);
+        refreshed.invalidate(token);
+        stringRedisTemplate.convertAndSend(LOGIN_USER_INVALIDATE_CHANNEL, token);
+    }
+
+    /**
+     * 收到其他实例的通知，消息体是token
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String token = new String(message.getBody(), StandardCharsets.UTF_8);
+        sessions.invalidate(token);
+        refreshed.invalidate(token);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("localSize", sessions.estimatedSize());
+        stats.put("requests", sessions.stats().requestCount());
+        stats.put("localHitRate", sessions.stats().hitRate());
+        stats.put("redisLoad", redisLoad.sum());
+        stats.put("expireRefresh", refreshCount.sum());
+        return stats;
+    }
+}
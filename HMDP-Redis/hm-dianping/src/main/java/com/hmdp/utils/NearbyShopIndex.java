@@ -0,0 +1,260 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResult;
+import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.domain.geo.GeoReference;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
+
+/**
+ * 附近的店铺：按（店铺类型, 坐标所在的geohash格子）缓存候选店铺，翻页时从缓存里切片，不再每页重新GEOSEARCH
+ * 1.格子未命中：以格子中心为圆心，半径 = 搜索半径 + 格子中心到角的距离，GEOSEARCH WITHCOORD 一次取出候选（id、坐标）
+ *   格子里任何一点的搜索范围都在这个圆内，同一个格子里的用户共用这份候选
+ * 2.每次请求：用请求的坐标算候选的准确距离（和Redis一样的公式），过滤掉超出半径的，按（距离, id）排序
+ * 候选数达到 max-candidates 时只取到了离格子中心最近的一部分，只有离中心 + 搜索半径 在最后一个候选的距离以内的请求能用，
+ * 其他请求（密集区域离中心远的用户）以请求的坐标直接 GEOSEARCH，保证结果完整
+ * 候选只在本机缓存很短的时间，店铺位置变化最多延迟 cell-ttl-seconds 生效
+ * 启用了本机店铺位置索引（ShopGeoIndex）时直接查本机索引，不访问Redis
+ */
+@Component
+public class NearbyShopIndex {
+
+    private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+    //和Redis GEO计算距离用的地球半径一致
+    static final double EARTH_RADIUS_IN_METERS = 6372797.560856;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ShopGeoIndex shopGeoIndex;
+    //geohash的位数，6位的格子大约 1.2km x 0.6km
+    private final int cellPrecision;
+    //每个格子最多取多少个候选
+    private final int maxCandidates;
+    //类型:格子 -> 候选（按到格子中心的距离排序）
+    private final Cache<String, Cell> cells;
+    private final LongAdder geoSearch = new LongAdder();
+    //候选被截断、以请求坐标直接查询的次数
+    private final LongAdder truncatedFallback = new LongAdder();
+
+    public NearbyShopIndex(StringRedisTemplate stringRedisTemplate,
+                           ShopGeoIndex shopGeoIndex,
+                           @Value("${hmdp.shop.nearby.cell-precision:6}") int cellPrecision,
+                           @Value("${hmdp.shop.nearby.max-candidates:1000}") int maxCandidates,
+                           @Value("${hmdp.shop.nearby.cell-ttl-seconds:30}") long cellTtlSeconds,
+                           @Value("${hmdp.shop.nearby.maximum-cells:10000}") long maximumCells) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.shopGeoIndex = shopGeoIndex;
+        this.cellPrecision = cellPrecision;
+        this.maxCandidates = maxCandidates;
+        this.cells = Caffeine.newBuilder()
+                .maximumSize(maximumCells)
+                .expireAfterWrite(cellTtlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * 距离 (x, y) 不超过 radiusMeters 的店铺，按距离从近到远，距离相同按id
+     */
+    public List<Nearby> search(Integer typeId, double x, double y, double radiusMeters) {
+        if (shopGeoIndex.isReady()) {
+            return shopGeoIndex.within(typeId, x, y, radiusMeters);
+        }
+        double[] bounds = cellOf(x, y);
+        String cellKey = typeId + ":" + Math.round(radiusMeters) + ":" + geohash(x, y);
+        Cell cell = cells.get(cellKey, k -> load(typeId, bounds, radiusMeters));
+        if (distance(cell.centerX, cell.centerY, x, y) + radiusMeters > cell.completeRadius) {
+            // 候选被截断，搜索范围超出了取全的部分
+            truncatedFallback.increment();
+            return searchFrom(typeId, x, y, radiusMeters);
+        }
+        List<Nearby> result = new ArrayList<>();
+        for (Candidate candidate : cell.candidates) {
+            double distance = distance(x, y, candidate.x, candidate.y);
+            if (distance <= radiusMeters) {
+                result.add(new Nearby(candidate.id, distance));
+            }
+        }
+        result.sort(Nearby.ORDER);
+        return result;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("cells", cells.estimatedSize());
+        stats.put("cellHitRate", cells.stats().hitRate());
+        stats.put("geoSearch", geoSearch.sum());
+        stats.put("truncatedFallback", truncatedFallback.sum());
+        return stats;
+    }
+
+    // GEOSEARCH shop:geo:{typeId} FROMLONLAT x y BYRADIUS r m ASC COUNT n WITHCOORD
+    private Cell load(Integer typeId, double[] bounds, double radiusMeters) {
+        geoSearch.increment();
+        double centerX = (bounds[0] + bounds[1]) / 2;
+        double centerY = (bounds[2] + bounds[3]) / 2;
+        // 南北两边的角到中心的距离不一样（纬度高的一边窄），取远的
+        double radius = radiusMeters + Math.max(distance(centerX, centerY, bounds[1], bounds[3]),
+                distance(centerX, centerY, bounds[1], bounds[2]));
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().search(
+                SHOP_GEO_KEY + typeId,
+                GeoReference.fromCoordinate(centerX, centerY),
+                new Distance(radius),
+                RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeCoordinates().sortAscending().limit(maxCandidates));
+        List<Candidate> candidates = new ArrayList<>();
+        if (results != null) {
+            for (GeoResult<RedisGeoCommands.GeoLocation<String>> result : results.getContent()) {
+                Point point = result.getContent().getPoint();
+                candidates.add(new Candidate(Long.parseLong(result.getContent().getName()), point.getX(), point.getY()));
+            }
+        }
+        double completeRadius = radius;
+        if (candidates.size() >= maxCandidates) {
+            // 截断了：只有比最后一个候选更近的店铺一定都取到了（留1米余量，和最后一个距离相同的可能没取到）
+            Candidate last = candidates.get(candidates.size() - 1);
+            completeRadius = distance(centerX, centerY, last.x, last.y) - 1;
+        }
+        return new Cell(candidates.toArray(new Candidate[0]), centerX, centerY, completeRadius);
+    }
+
+    // GEOSEARCH shop:geo:{typeId} FROMLONLAT x y BYRADIUS r m WITHCOORD，以请求的坐标查询，结果是完整的
+    private List<Nearby> searchFrom(Integer typeId, double x, double y, double radiusMeters) {
+        geoSearch.increment();
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().search(
+                SHOP_GEO_KEY + typeId,
+                GeoReference.fromCoordinate(x, y),
+                new Distance(radiusMeters),
+                RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeCoordinates());
+        List<Nearby> result = new ArrayList<>();
+        if (results != null) {
+            for (GeoResult<RedisGeoCommands.GeoLocation<String>> r : results.getContent()) {
+                Point point = r.getContent().getPoint();
+                double distance = distance(x, y, point.getX(), point.getY());
+                if (distance <= radiusMeters) {
+                    result.add(new Nearby(Long.parseLong(r.getContent().getName()), distance));
+                }
+            }
+        }
+        result.sort(Nearby.ORDER);
+        return result;
+    }
+
+    // 格子的经纬度范围 {minX, maxX, minY, maxY}
+    private double[] cellOf(double x, double y) {
+        double[] lon = {-180, 180};
+        double[] lat = {-90, 90};
+        boolean even = true;
+        for (int bit = 0; bit < cellPrecision * 5; bit++) {
+            double[] range = even ? lon : lat;
+            double value = even ? x : y;
+            double mid = (range[0] + range[1]) / 2;
+            if (value >= mid) {
+                range[0] = mid;
+            } else {
+                range[1] = mid;
+            }
+            even = !even;
+        }
+        return new double[]{lon[0], lon[1], lat[0], lat[1]};
+    }
+
+    private String geohash(double x, double y) {
+        double[] lon = {-180, 180};
+        double[] lat = {-90, 90};
+        StringBuilder hash = new StringBuilder(cellPrecision);
+        boolean even = true;
+        int ch = 0;
+        for (int bit = 0; bit < cellPrecision * 5; bit++) {
+            double[] range = even ? lon : lat;
+            double value = even ? x : y;
+            double mid = (range[0] + range[1]) / 2;
+            ch <<= 1;
+            if (value >= mid) {
+                ch |= 1;
+                range[0] = mid;
+            } else {
+                range[1] = mid;
+            }
+            even = !even;
+            if (bit % 5 == 4) {
+                hash.append(BASE32.charAt(ch));
+                ch = 0;
+            }
+        }
+        return hash.toString();
+    }
+
+    //两点距离（米），haversine，和Redis的geohashGetDistance一致
+    static double distance(double x1, double y1, double x2, double y2) {
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double u = Math.sin((lat2 - lat1) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2.0 * EARTH_RADIUS_IN_METERS * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+    }
+
+    private static class Cell {
+        private final Candidate[] candidates;
+        private final double centerX;
+        private final double centerY;
+        //离格子中心这么远以内的店铺都在候选里
+        private final double completeRadius;
+
+        Cell(Candidate[] candidates, double centerX, double centerY, double completeRadius) {
+            this.candidates = candidates;
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.completeRadius = completeRadius;
+        }
+    }
+
+    private static class Candidate {
+        private final long id;
+        private final double x;
+        private final double y;
+
+        Candidate(long id, double x, double y) {
+            this.id = id;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    /**
+     * 店铺id和距离（米）
+     */
+    public static class Nearby {
+        public static final Comparator<Nearby> ORDER = Comparator.comparingDouble(Nearby::getDistance).thenComparingLong(Nearby::getId);
+
+        private final long id;
+        private final double distance;
+
+        public Nearby(long id, double distance) {
+            this.id = id;
+            this.distance = distance;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public double getDistance() {
+            return distance;
+        }
+    }
+}
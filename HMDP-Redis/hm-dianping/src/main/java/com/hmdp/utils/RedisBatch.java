@@ -0,0 +1,202 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 批量读取Redis：一个阶段里要读的先登记，拿到future，execute() 时一个管道发出去，一次往返后所有future完成
+ * 用法（每次请求/每个阶段新建一个，不要跨线程共享）：
+ * <pre>
+ *     RedisBatch batch = RedisBatch.of(stringRedisTemplate);
+ *     CompletableFuture&lt;Double&gt; liked = batch.zScore(BLOG_LIKED_KEY + id, userId);
+ *     CompletableFuture&lt;String&gt; delta = batch.hGet(BLOG_LIKED_DELTA_KEY, id);
+ *     batch.execute();
+ *     liked.join() ...
+ * </pre>
+ * 发送方式可以替换（Transport），测试时用内存实现统计往返次数
+ */
+public class RedisBatch {
+
+    /**
+     * 一次往返执行一批命令，按顺序返回结果
+     */
+    public interface Transport {
+        List<Object> execute(List<Command> commands);
+    }
+
+    /**
+     * 登记的一条命令
+     */
+    public static final class Command {
+        private final String name;
+        private final String key;
+        private final String[] args;
+
+        Command(String name, String key, String... args) {
+            this.name = name;
+            this.key = key;
+            this.args = args;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String[] getArgs() {
+            return args;
+        }
+    }
+
+    private final Transport transport;
+    private final List<Command> commands = new ArrayList<>();
+    private final List<CompletableFuture<Object>> futures = new ArrayList<>();
+
+    public RedisBatch(Transport transport) {
+        this.transport = transport;
+    }
+
+    public static RedisBatch of(StringRedisTemplate stringRedisTemplate) {
+        return new RedisBatch(new TemplateTransport(stringRedisTemplate));
+    }
+
+    public CompletableFuture<String> get(String key) {
+        return add("GET", key);
+    }
+
+    public CompletableFuture<Boolean> exists(String key) {
+        return add("EXISTS", key);
+    }
+
+    public CompletableFuture<String> hGet(String key, Object field) {
+        return add("HGET", key, field.toString());
+    }
+
+    public CompletableFuture<Map<String, String>> hGetAll(String key) {
+        return add("HGETALL", key);
+    }
+
+    public CompletableFuture<Double> zScore(String key, Object member) {
+        return add("ZSCORE", key, member.toString());
+    }
+
+    public CompletableFuture<Long> zCard(String key) {
+        return add("ZCARD", key);
+    }
+
+    public CompletableFuture<Set<String>> zRevRange(String key, long start, long end) {
+        return add("ZREVRANGE", key, String.valueOf(start), String.valueOf(end));
+    }
+
+    public CompletableFuture<Boolean> sIsMember(String key, Object member) {
+        return add("SISMEMBER", key, member.toString());
+    }
+
+    public CompletableFuture<Set<String>> sMembers(String key) {
+        return add("SMEMBERS", key);
+    }
+
+    /**
+     * 已登记还没发送的命令数
+     */
+    public int size() {
+        return commands.size();
+    }
+
+    /**
+     * 发送已登记的命令（一次往返）并完成对应的future，之后可以继续登记下一批
+     * 发送失败时所有future都以异常完成，异常也会抛给调用方
+     */
+    public void execute() {
+        if (commands.isEmpty()) {
+            return;
+        }
+        List<Command> sending = new ArrayList<>(commands);
+        List<CompletableFuture<Object>> waiting = new ArrayList<>(futures);
+        commands.clear();
+        futures.clear();
+        List<Object> results;
+        try {
+            results = transport.execute(sending);
+        } catch (RuntimeException e) {
+            waiting.forEach(f -> f.completeExceptionally(e));
+            throw e;
+        }
+        for (int i = 0; i < waiting.size(); i++) {
+            waiting.get(i).complete(results.get(i));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> add(String name, String key, String... args) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        commands.add(new Command(name, key, args));
+        futures.add(future);
+        return (CompletableFuture<T>) future;
+    }
+
+    /**
+     * 默认实现：StringRedisTemplate 管道
+     */
+    static class TemplateTransport implements Transport {
+
+        private final StringRedisTemplate stringRedisTemplate;
+
+        TemplateTransport(StringRedisTemplate stringRedisTemplate) {
+            this.stringRedisTemplate = stringRedisTemplate;
+        }
+
+        @Override
+        public List<Object> execute(List<Command> commands) {
+            return stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Command command : commands) {
+                    String key = command.getKey();
+                    String[] args = command.getArgs();
+                    switch (command.getName()) {
+                        case "GET":
+                            conn.get(key);
+                            break;
+                        case "EXISTS":
+                            conn.exists(key);
+                            break;
+                        case "HGET":
+                            conn.hGet(key, args[0]);
+                            break;
+                        case "HGETALL":
+                            conn.hGetAll(key);
+                            break;
+                        case "ZSCORE":
+                            conn.zScore(key, args[0]);
+                            break;
+                        case "ZCARD":
+                            conn.zCard(key);
+                            break;
+                        case "ZREVRANGE":
+                            conn.zRevRange(key, Long.parseLong(args[0]), Long.parseLong(args[1]));
+                            break;
+                        case "SISMEMBER":
+                            conn.sIsMember(key, args[0]);
+                            break;
+                        case "SMEMBERS":
+                            conn.sMembers(key);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("不支持的命令：" + command.getName());
+                    }
+                }
+                return null;
+            });
+        }
+    }
+}
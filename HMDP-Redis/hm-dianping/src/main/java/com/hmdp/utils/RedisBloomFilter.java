@@ -0,0 +1,202 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 布隆过滤器，位图同时存在Redis（共享、持久）和本机内存（判断时不用访问Redis）
+ * 只支持添加，不支持删除；判断不存在就一定不存在，判断存在有一定误判率
+ * 本机位图的位顺序和Redis的BITMAP一致（第0位是第0个字节的最高位），可以直接整段读写
+ */
+public class RedisBloomFilter {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    //Redis的key，带上位数和哈希次数，参数变了自动换一个新key，不会和旧位图混用
+    private final String key;
+    private final long expectedInsertions;
+    private final double fpp;
+    //位数（64的整数倍）
+    private final long bits;
+    //哈希函数个数
+    private final int hashes;
+    private final AtomicLongArray words;
+    //判断为一定不存在的次数
+    private final LongAdder rejected = new LongAdder();
+
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate, String keyPrefix, long expectedInsertions, double fpp) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.expectedInsertions = expectedInsertions;
+        this.fpp = fpp;
+        // m = -n*ln(p)/(ln2)^2，k = m/n*ln2
+        long m = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.bits = Math.max(64, (m + 63) / 64 * 64);
+        this.hashes = Math.max(1, (int) Math.round((double) bits / expectedInsertions * Math.log(2)));
+        this.words = new AtomicLongArray((int) (bits / 64));
+        this.key = keyPrefix + bits + ":" + hashes;
+    }
+
+    /**
+     * 本机判断，不访问Redis
+     */
+    public boolean mightContain(long value) {
+        long h1 = mix(value);
+        long h2 = mix(h1) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long index = Math.floorMod(h1 + i * h2, bits);
+            if ((words.get((int) (index >>> 6)) & mask(index)) == 0) {
+                rejected.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 添加到本机位图和Redis位图
+     */
+    public void put(long value) {
+        long[] indexes = putLocal(value);
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long index : indexes) {
+                connection.stringCommands().setBit(rawKey, index, true);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 只添加到本机位图（收到其他实例的添加通知时用）
+     */
+    public long[] putLocal(long value) {
+        long h1 = mix(value);
+        long h2 = mix(h1) | 1;
+        long[] indexes = new long[hashes];
+        for (int i = 0; i < hashes; i++) {
+            long index = Math.floorMod(h1 + i * h2, bits);
+            indexes[i] = index;
+            setLocal(index);
+        }
+        return indexes;
+    }
+
+    /**
+     * 用全量数据构建：先在本机建好，再整段写到临时key，和Redis里的位图做OR合并
+     * 用OR而不是覆盖，构建期间别的实例新加的位不会丢
+     */
+    public void build(Iterable<Long> values) {
+        for (Long value : values) {
+            putLocal(value);
+        }
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] tmpKey = (key + ":tmp:" + System.nanoTime()).getBytes(StandardCharsets.UTF_8);
+        byte[] bitmap = toBytes();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.stringCommands().set(tmpKey, bitmap);
+            connection.stringCommands().bitOp(RedisStringCommands.BitOperation.OR, rawKey, rawKey, tmpKey);
+            connection.keyCommands().del(tmpKey);
+            return null;
+        });
+    }
+
+    /**
+     * 从Redis拉取位图合并到本机，兜底丢失的添加通知
+     * @return Redis里有没有这个位图
+     */
+    public boolean syncFromRedis() {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] bitmap = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.stringCommands().get(rawKey));
+        if (bitmap == null) {
+            return false;
+        }
+        // Redis的位图可能比本机短（后面的位都是0），按8字节一个long合并
+        ByteBuffer buffer = ByteBuffer.wrap(bitmap);
+        for (int i = 0; i < words.length() && buffer.hasRemaining(); i++) {
+            long word;
+            if (buffer.remaining() >= 8) {
+                word = buffer.getLong();
+            } else {
+                word = 0;
+                for (int shift = 56; buffer.hasRemaining(); shift -= 8) {
+                    word |= (buffer.get() & 0xFFL) << shift;
+                }
+            }
+            if (word != 0) {
+                orLocal(i, word);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Redis位图在这个时间（秒）之后删除，只在一段时间内使用的过滤器用
+     */
+    public void expireAt(long epochSeconds) {
+        stringRedisTemplate.expireAt(key, new Date(TimeUnit.SECONDS.toMillis(epochSeconds)));
+    }
+
+    /**
+     * 参数、内存占用和当前的误判率估计
+     */
+    public Map<String, Object> stats() {
+        long bitsSet = 0;
+        for (int i = 0; i < words.length(); i++) {
+            bitsSet += Long.bitCount(words.get(i));
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("key", key);
+        stats.put("expectedInsertions", expectedInsertions);
+        stats.put("fpp", fpp);
+        stats.put("bits", bits);
+        stats.put("hashes", hashes);
+        stats.put("memoryBytes", bits / 8);
+        stats.put("bitsSet", bitsSet);
+        // 随机一个值的k个位都是1的概率
+        stats.put("estimatedFpp", Math.pow((double) bitsSet / bits, hashes));
+        // 反推已经加入的元素个数：n = -m/k*ln(1-X/m)
+        stats.put("estimatedInsertions", Math.round(-(double) bits / hashes * Math.log(1 - (double) bitsSet / bits)));
+        stats.put("rejected", rejected.sum());
+        return stats;
+    }
+
+    private byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(words.length() * 8);
+        for (int i = 0; i < words.length(); i++) {
+            buffer.putLong(words.get(i));
+        }
+        return buffer.array();
+    }
+
+    private void setLocal(long index) {
+        orLocal((int) (index >>> 6), mask(index));
+    }
+
+    private void orLocal(int i, long bitsToSet) {
+        long old;
+        do {
+            old = words.get(i);
+        } while ((old & bitsToSet) != bitsToSet && !words.compareAndSet(i, old, old | bitsToSet));
+    }
+
+    //第index位在long里的掩码，高位在前，和Redis的位顺序一致
+    private static long mask(long index) {
+        return 1L << (63 - (index & 63));
+    }
+
+    //64位混淆（splitmix64），相邻的id也能打散
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+}
@@ -5,18 +5,51 @@ public class RedisConstants {
     public static final Long LOGIN_CODE_TTL = 2L;
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final Long LOGIN_USER_TTL = 36000L;
+    public static final String LOGIN_USER_INVALIDATE_CHANNEL = "login:token:invalidate";
+    public static final String LOGIN_REVOKED_KEY = "login:revoked";
+    public static final String LOGIN_REVOKED_BLOOM_KEY = "bloom:login:revoked:";
+    public static final String LOGIN_REVOKED_CHANNEL = "login:revoked";
 
     public static final Long CACHE_NULL_TTL = 2L;
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final Long CACHE_SHOP_VOUCHER_TTL = 30L;
+    public static final String CACHE_SHOP_VOUCHER_KEY = "cache:voucher:shop:";
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+
+    public static final String SHOP_TYPE_CHANGED_CHANNEL = "shop-type:changed";
+
+    public static final String BLOOM_SHOP_KEY = "bloom:shop:";
+    public static final String BLOOM_SHOP_ADD_CHANNEL = "bloom:shop:add";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_STOCK_REFILL_CHANNEL = "seckill:stock:refill";
+    public static final String LOCK_SECKILL_RECONCILE_KEY = "lock:seckill:reconcile";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    public static final String BLOG_LIKED_DELTA_KEY = "blog:liked:delta";
+    public static final String BLOG_LIKED_FLUSHING_KEY = "blog:liked:delta:flushing";
+    public static final String LOCK_BLOG_LIKE_FLUSH_KEY = "lock:blog:like:flush";
+    public static final String BLOG_HOT_KEY = "blog:hot";
+    public static final String LOCK_BLOG_HOT_RECONCILE_KEY = "lock:blog:hot:reconcile";
+    public static final String USER_SUMMARY_KEY = "user:summary:";
+    public static final Long USER_SUMMARY_TTL = 60L;
+    public static final String USER_SUMMARY_INVALIDATE_CHANNEL = "user:summary:invalidate";
+    public static final String FOLLOWS_KEY = "follows:";
+    public static final Long FOLLOWS_TTL = 1440L;
+    public static final String FOLLOWS_VERSION_KEY = "follows:version:";
+    public static final String FOLLOWS_INVALIDATE_CHANNEL = "follows:invalidate";
     public static final String FEED_KEY = "feed:";
+    public static final String FEED_OUTBOX_KEY = "feed:outbox:";
+    public static final String FEED_BIG_AUTHORS_KEY = "feed:big-authors";
+    public static final String FEED_FANOUT_PROGRESS_KEY = "feed:fanout:progress";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String SHOP_GEO_CHANGED_CHANNEL = "shop:geo:changed";
     public static final String USER_SIGN_KEY = "sign:";
 }
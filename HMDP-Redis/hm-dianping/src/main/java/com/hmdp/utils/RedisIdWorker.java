@@ -1,16 +1,31 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 使用redis实现分布式全局唯一id
+ * id结构：时间戳（秒，32位）+ 当天的序列号（32位），序列号来自Redis的 icr:业务:yyyy:MM:dd 计数器
+ * 三种模式：
+ *  redis     每个id一次INCR
+ *  segment   号段模式，一次INCRBY预留一段序列号在本地发放，用到一定比例时后台提前取下一段（双buffer）
+ *  snowflake 纯本地生成，启动时租一个机器号，之后生成id不访问Redis，见 SnowflakeIdGenerator
  */
-
+@Slf4j
 @Component
 public class RedisIdWorker {
 
@@ -18,11 +33,61 @@ public class RedisIdWorker {
     private static final long BEGIN_TIMESTAMP = 1640995200L;
     //同一秒内区分不同id的序列号的位数
     private static final int COUNT_BITS = 32;
+    //一天的秒数
+    private static final long SECONDS_PER_DAY = 86400L;
+    //日期格式只创建一次，不用每次生成id都new
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    private static final TimeZone TIME_ZONE = TimeZone.getDefault();
+    //后台加载下一个号段的线程
+    private static final ExecutorService SEGMENT_LOADER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     //redisTemplate
-    private StringRedisTemplate stringRedisTemplate;
+    private final StringRedisTemplate stringRedisTemplate;
+    //生成模式：redis / segment / snowflake
+    private final String mode;
+    //号段模式下每次预留的序列号个数
+    private final int segmentStep;
+    //每个业务一个号段缓冲
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    //snowflake模式的本地生成器
+    private final SnowflakeIdGenerator snowflake;
+    //缓存当天的日期字符串，跨天才重新格式化
+    private volatile CachedDate cachedDate = new CachedDate(Long.MIN_VALUE, null);
+
     //构造方法注入
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate,
+                         @Value("${hmdp.id.mode:redis}") String mode,
+                         @Value("${hmdp.id.segment-step:1000}") int segmentStep) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.mode = mode;
+        this.segmentStep = segmentStep;
+        this.snowflake = "snowflake".equals(mode)
+                ? new SnowflakeIdGenerator(stringRedisTemplate, () -> localEpochSecond() - BEGIN_TIMESTAMP)
+                : null;
+    }
+
+    @PostConstruct
+    public void init() {
+        // snowflake模式启动时就租好机器号；租不到（Redis暂时不可用）第一次发号时再租
+        if (snowflake != null) {
+            try {
+                snowflake.start();
+            } catch (Exception e) {
+                log.error("启动时租用机器号失败，第一次生成id时重试", e);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        // 归还机器号，下次启动的实例可以马上用
+        if (snowflake != null) {
+            snowflake.release();
+        }
     }
 
     /**
@@ -30,22 +95,134 @@ public class RedisIdWorker {
      * @param keyPrefix     不同业务的用于生成id的标识
      */
     public long nextId(String keyPrefix) {
-        // 1.生成时间戳
-        //当前的时间
-        LocalDateTime now = LocalDateTime.now();
-        //当前的秒数
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
-        //获取的时间戳
+        if (snowflake != null) {
+            // 本地生成，不区分业务，也不访问Redis
+            return snowflake.nextId();
+        }
+        // 1.生成时间戳（当前时区的本地时间按UTC换算成秒，和原来 LocalDateTime.now().toEpochSecond(UTC) 一致）
+        long nowSecond = localEpochSecond();
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
+        long day = Math.floorDiv(nowSecond, SECONDS_PER_DAY);
 
         // 2.生成序列号
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
         // Redis自增长，有上限（2的64次方），而且标识id的序列号只有32位，
         // 所以如果项目一下子用了好几年而且业务量很大，就放不下了是吧
         // 不能用同一个key，可以加一个date标识解决，这样将来还可以统计当天生成的id（当然使用年月日都可以）
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date );
+        long count = "segment".equals(mode)
+                ? nextSequenceFromSegment(keyPrefix, day)
+                : stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, day));
 
         // 3.数字拼接(时间戳32位，空出32个0用序列号补充（或运算）)
         return timestamp << COUNT_BITS | count;
     }
+
+    //**********************************************************************号段模式
+    private long nextSequenceFromSegment(String keyPrefix, long day) {
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new);
+        while (true) {
+            Segment segment = buffer.current;
+            if (segment != null && segment.day == day) {
+                // 无锁发号
+                long seq = segment.cursor.getAndIncrement();
+                if (seq <= segment.max) {
+                    // 剩余不到20%，后台预取下一个号段
+                    if (segment.max - seq == segmentStep / 5) {
+                        buffer.prefetch(day);
+                    }
+                    return seq;
+                }
+            }
+            // 当前号段用完了或者跨天了，切换号段
+            buffer.switchSegment(segment, day);
+        }
+    }
+
+    private Segment loadSegment(String keyPrefix, long day) {
+        // INCRBY icr:order:2022:01:01 1000，拿到这一段的最大值
+        Long max = stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, day), segmentStep);
+        if (max == null) {
+            throw new IllegalStateException("号段获取失败：" + keyPrefix);
+        }
+        return new Segment(day, max - segmentStep + 1, max);
+    }
+
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        //正在发号的号段
+        private volatile Segment current;
+        //预取好的下一个号段
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean(false);
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        void prefetch(long day) {
+            if (next != null || !loading.compareAndSet(false, true)) {
+                return;
+            }
+            SEGMENT_LOADER.execute(() -> {
+                try {
+                    next = loadSegment(keyPrefix, day);
+                } catch (Exception e) {
+                    log.error("预取号段失败，用完后同步获取：{}", keyPrefix, e);
+                } finally {
+                    loading.set(false);
+                }
+            });
+        }
+
+        synchronized void switchSegment(Segment exhausted, long day) {
+            if (current != exhausted) {
+                // 别的线程已经切换过了
+                return;
+            }
+            Segment segment = next;
+            next = null;
+            if (segment == null || segment.day != day || (exhausted != null && segment.max <= exhausted.max)) {
+                // 没有预取到、是昨天的号段、或者预取比同步获取晚回来（号段比当前的小，用了会破坏递增），同步获取
+                segment = loadSegment(keyPrefix, day);
+            }
+            current = segment;
+        }
+    }
+
+    private static class Segment {
+        //号段所属的日期（epoch day），跨天必须换新号段，否则会和新一天的计数器重复
+        private final long day;
+        private final long max;
+        private final AtomicLong cursor;
+
+        Segment(long day, long begin, long max) {
+            this.day = day;
+            this.max = max;
+            this.cursor = new AtomicLong(begin);
+        }
+    }
+
+    //**********************************************************************时间与计数器key
+    private static long localEpochSecond() {
+        long millis = System.currentTimeMillis();
+        return (millis + TIME_ZONE.getOffset(millis)) / 1000;
+    }
+
+    private String counterKey(String keyPrefix, long day) {
+        CachedDate date = cachedDate;
+        if (date.day != day) {
+            date = new CachedDate(day, LocalDate.ofEpochDay(day).format(DATE_FORMATTER));
+            cachedDate = date;
+        }
+        return "icr:" + keyPrefix + ":" + date.text;
+    }
+
+    private static class CachedDate {
+        private final long day;
+        private final String text;
+
+        CachedDate(long day, String text) {
+            this.day = day;
+            this.text = text;
+        }
+    }
 }
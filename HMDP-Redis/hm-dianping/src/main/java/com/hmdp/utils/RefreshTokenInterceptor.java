@@ -1,18 +1,11 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.HandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
-
-import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
-import static com.hmdp.utils.RedisConstants.LOGIN_USER_TTL;
 
 /**
  * 登录拦截器(实现接口,重写方法)
@@ -20,10 +13,13 @@ import static com.hmdp.utils.RedisConstants.LOGIN_USER_TTL;
  */
 public class RefreshTokenInterceptor implements HandlerInterceptor {
 
-    private StringRedisTemplate stringRedisTemplate;
+    private LoginSessionCache loginSessionCache;
+
+    private SignedTokenService signedTokenService;
 
-    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate) {
-        this.stringRedisTemplate = stringRedisTemplate;
+    public RefreshTokenInterceptor(LoginSessionCache loginSessionCache, SignedTokenService signedTokenService) {
+        this.loginSessionCache = loginSessionCache;
+        this.signedTokenService = signedTokenService;
     }
 
     @Override
@@ -33,20 +29,30 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         if (StrUtil.isBlank(token)) {
             return true;
         }
-        // 2.基于TOKEN获取redis中的用户
-        String key  = LOGIN_USER_KEY + token;
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(key);
+        // 签名token模式：验签即可，不访问Redis
+        if (signedTokenService.isEnabled()) {
+            SignedTokenService.Session session = signedTokenService.verify(token);
+            if (session == null) {
+                return true;
+            }
+            UserHolder.saveUser(session.getUser());
+            // 滑动过期，签发较久的token换一个新的，前端用响应头里的token替换旧的
+            String refreshed = signedTokenService.refreshIfNeeded(session);
+            if (refreshed != null) {
+                response.setHeader("authorization", refreshed);
+            }
+            return true;
+        }
+        // 2.基于TOKEN获取用户（先查本地缓存，再查redis），顺便刷新token有效期（一段时间内只刷新一次）
+        //   原来每个请求都 HGETALL login:token:{token} 再 EXPIRE，两次Redis往返
+        UserDTO userDTO = loginSessionCache.get(token);
         // 3.判断用户是否存在
-        if (userMap.isEmpty()) {
+        if (userDTO == null) {
             return true;
         }
-        // 5.将查询到的hash数据转为UserDTO
-        UserDTO userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
-        // 6.存在，保存用户信息到 ThreadLocal
+        // 4.存在，保存用户信息到 ThreadLocal
         UserHolder.saveUser(userDTO);
-        // 7.刷新token有效期
-        stringRedisTemplate.expire(key, LOGIN_USER_TTL, TimeUnit.MINUTES);
-        // 8.放行
+        // 5.放行
         return true;
     }
 
@@ -0,0 +1,61 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 本地售罄标记
+ * 秒杀结束后大量请求还在抢，lua脚本返回1（库存不足）后在本机记下来，后续请求直接拒绝，不再访问Redis
+ * 库存补充时通过Redis的发布订阅通知所有实例清除标记；标记本身也有过期时间，即使丢了通知也能自己恢复
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry implements MessageListener {
+
+    //优惠券id -> 标记的过期时间戳
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    //售罄标记的有效期（毫秒），过期后放一个请求去Redis确认
+    @Value("${hmdp.seckill.sold-out-ttl:60000}")
+    private long soldOutTtl;
+
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    public void markSoldOut(Long voucherId) {
+        soldOut.put(voucherId, System.currentTimeMillis() + soldOutTtl);
+    }
+
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+    }
+
+    /**
+     * 收到库存补充的消息，消息体是优惠券id
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            clear(Long.valueOf(body));
+        } catch (NumberFormatException e) {
+            log.warn("无效的库存补充消息：{}", body);
+        }
+    }
+}
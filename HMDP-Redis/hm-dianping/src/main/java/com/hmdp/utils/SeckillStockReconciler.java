@@ -0,0 +1,532 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.LOCK_SECKILL_RECONCILE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_REFILL_CHANNEL;
+
+/**
+ * 秒杀库存的预热和对账
+ * 对象：开始时间在 preheat-ahead-seconds 之内、结束不超过 keep-after-end-seconds 的秒杀券
+ * 以数据库为准，Redis里应该是：
+ *   库存 = tb_seckill_voucher.stock - 还在消息队列里没落库的订单数
+ *   订单集合 = tb_voucher_order里的用户 + 还在消息队列里的用户
+ * 1.启动时执行一次（预热），Redis被清空、key不存在的按数据库重建，开卖的第一个请求不会碰到空key
+ * 2.定时执行：先用一个管道读出所有券的库存和订单数，和数据库的两条统计查询比较计数；
+ *   计数对不上的再逐个比较订单用户，算出应有的库存，用lua脚本比较后写入（期间库存变了说明有人下单，放弃，下一轮再对）
+ *   分片模式每个分片单独比较写入（不在同一个slot），先写减少库存的分片，有一个失败就不再写增加库存的分片，不会多出库存
+ * 读取顺序是 Redis -> 消息队列 -> 数据库：Redis里有的订单，要么还在队列里，要么已经落库（落库后才ACK），都不是就是丢了
+ * 落库和ACK之间读到的订单既在队列里又已经落库，按已落库算，不重复扣库存
+ * 分片模式记下用户和发消息不是原子的，刚记下用户的请求看起来也像丢了，所以连续两轮都是丢了才删除，第一轮按在途订单算
+ * 多实例部署时用分布式锁，同一时间只有一个实例对账
+ */
+@Slf4j
+@Component
+public class SeckillStockReconciler {
+
+    private static final String GROUP_NAME = "g1";
+    private static final DefaultRedisScript<Long> REPAIR_SCRIPT;
+
+    static {
+        REPAIR_SCRIPT = new DefaultRedisScript<>();
+        REPAIR_SCRIPT.setLocation(new ClassPathResource("seckill_repair.lua"));
+        REPAIR_SCRIPT.setResultType(Long.class);
+    }
+
+    private final SeckillVoucherMapper seckillVoucherMapper;
+    private final VoucherOrderMapper voucherOrderMapper;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedissonClient redissonClient;
+    //订单消息队列
+    private final String streamKey;
+    private final boolean enabled;
+    //Redis里没有分片数时，重建用的分片数（和新建秒杀券一致）
+    private final int stockShards;
+    //开始前多久预热（秒）
+    private final long preheatAheadSeconds;
+    //结束后还对账多久（秒），兜底结束前最后一批订单
+    private final long keepAfterEndSeconds;
+    //消息队列里没落库的订单超过这么多时只重建空key，不修复（消费者积压，对不准）
+    private final int maxInFlight;
+
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder coldRebuilt = new LongAdder();
+    private final LongAdder repaired = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder lostOrders = new LongAdder();
+    private final LongAdder missingOrders = new LongAdder();
+    private final LongAdder backlogSkipped = new LongAdder();
+    private volatile long lastRunAt;
+    private volatile long lastRunMillis;
+    private volatile int lastChecked;
+    //上一轮有偏差的券：券id -> 偏差明细
+    private volatile Map<Long, Map<String, Object>> lastDrift = Collections.emptyMap();
+    //上一轮看起来丢了的订单用户：券id -> 用户id，这一轮还是丢的才删除
+    private final Map<Long, Set<String>> suspects = new ConcurrentHashMap<>();
+
+    public SeckillStockReconciler(SeckillVoucherMapper seckillVoucherMapper,
+                                  VoucherOrderMapper voucherOrderMapper,
+                                  StringRedisTemplate stringRedisTemplate,
+                                  RedissonClient redissonClient,
+                                  @Value("${hmdp.seckill.reconcile.enabled:true}") boolean enabled,
+                                  @Value("${hmdp.seckill.stock-shards:1}") int stockShards,
+                                  @Value("${hmdp.seckill.reconcile.preheat-ahead-seconds:600}") long preheatAheadSeconds,
+                                  @Value("${hmdp.seckill.reconcile.keep-after-end-seconds:3600}") long keepAfterEndSeconds,
+                                  @Value("${hmdp.seckill.reconcile.max-in-flight:10000}") int maxInFlight,
+                                  @Value("${hmdp.seckill.reconcile.stream-key:stream.orders}") String streamKey) {
+        this.seckillVoucherMapper = seckillVoucherMapper;
+        this.voucherOrderMapper = voucherOrderMapper;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redissonClient = redissonClient;
+        this.streamKey = streamKey;
+        this.enabled = enabled;
+        this.stockShards = stockShards;
+        this.preheatAheadSeconds = preheatAheadSeconds;
+        this.keepAfterEndSeconds = keepAfterEndSeconds;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * 启动预热：在开始接收请求之前把即将开卖的券写进Redis
+     */
+    @PostConstruct
+    public void preheat() {
+        reconcile();
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval:60000}",
+            initialDelayString = "${hmdp.seckill.reconcile.interval:60000}")
+    public void reconcile() {
+        if (!enabled) {
+            return;
+        }
+        RLock lock = redissonClient.getLock(LOCK_SECKILL_RECONCILE_KEY);
+        try {
+            if (!lock.tryLock()) {
+                // 别的实例正在对账
+                return;
+            }
+        } catch (Exception e) {
+            log.error("秒杀库存对账获取锁失败", e);
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        try {
+            // 1.需要对账的券
+            LocalDateTime now = LocalDateTime.now();
+            List<SeckillVoucher> vouchers = seckillVoucherMapper.selectList(new QueryWrapper<SeckillVoucher>()
+                    .le("begin_time", now.plusSeconds(preheatAheadSeconds))
+                    .ge("end_time", now.minusSeconds(keepAfterEndSeconds)));
+            runs.increment();
+            lastChecked = vouchers.size();
+            if (vouchers.isEmpty()) {
+                lastDrift = Collections.emptyMap();
+                return;
+            }
+            reconcile(vouchers);
+        } catch (Exception e) {
+            log.error("秒杀库存对账失败", e);
+        } finally {
+            lastRunAt = begin;
+            lastRunMillis = System.currentTimeMillis() - begin;
+            lock.unlock();
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("runs", runs.sum());
+        stats.put("lastRunAt", lastRunAt);
+        stats.put("lastRunMillis", lastRunMillis);
+        stats.put("lastChecked", lastChecked);
+        stats.put("lastDriftVouchers", lastDrift.size());
+        stats.put("lastDrift", lastDrift);
+        stats.put("coldRebuilt", coldRebuilt.sum());
+        stats.put("repaired", repaired.sum());
+        stats.put("conflicts", conflicts.sum());
+        stats.put("lostOrders", lostOrders.sum());
+        stats.put("missingOrders", missingOrders.sum());
+        stats.put("backlogSkipped", backlogSkipped.sum());
+        return stats;
+    }
+
+    private void reconcile(List<SeckillVoucher> vouchers) {
+        List<Long> ids = vouchers.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toList());
+        // 1.Redis：一个管道读所有券的分片数、库存、订单数
+        List<Snapshot> snapshots = snapshot(ids, false);
+        // 2.消息队列里还没落库的订单
+        Map<Long, Set<String>> inFlight = inFlight();
+        boolean backlog = inFlight == null;
+        // 3.数据库：各券的订单数，一条 group by 查询
+        Map<Long, Long> dbOrders = new HashMap<>();
+        for (Map<String, Object> row : voucherOrderMapper.selectMaps(new QueryWrapper<VoucherOrder>()
+                .select("voucher_id", "count(*) AS total").in("voucher_id", ids).groupBy("voucher_id"))) {
+            dbOrders.put(((Number) row.get("voucher_id")).longValue(), ((Number) row.get("total")).longValue());
+        }
+        // 4.比较计数：库存 + 订单数 应该和数据库一致
+        Map<Long, Map<String, Object>> drift = new LinkedHashMap<>();
+        for (int i = 0; i < vouchers.size(); i++) {
+            SeckillVoucher voucher = vouchers.get(i);
+            Snapshot s = snapshots.get(i);
+            Set<String> flying = backlog ? Collections.emptySet() : inFlight.getOrDefault(voucher.getVoucherId(), Collections.emptySet());
+            long dbCount = dbOrders.getOrDefault(voucher.getVoucherId(), 0L);
+            long expectedStock = Math.max(0, voucher.getStock() - flying.size());
+            long expectedOrders = dbCount + flying.size();
+            if (!s.cold && s.stock() == expectedStock && s.orders == expectedOrders) {
+                suspects.remove(voucher.getVoucherId());
+                continue;
+            }
+            Map<String, Object> detail = new LinkedHashMap<>();
+            detail.put("redisStock", s.cold ? null : s.stock());
+            detail.put("expectedStock", expectedStock);
+            detail.put("redisOrders", s.orders);
+            detail.put("expectedOrders", expectedOrders);
+            drift.put(voucher.getVoucherId(), detail);
+            if (backlog && !s.cold) {
+                // 积压太多对不准，只记录偏差
+                backlogSkipped.increment();
+                continue;
+            }
+            // 5.计数对不上的逐个比较订单用户，修复
+            String result = repair(voucher, s.cold, flying);
+            if (result == null) {
+                // 重新读取后是一致的（第一轮读取期间有人下单）
+                drift.remove(voucher.getVoucherId());
+            } else {
+                detail.put("result", result);
+            }
+        }
+        lastDrift = drift;
+        if (!drift.isEmpty()) {
+            log.warn("秒杀库存对账：{} 张券和数据库不一致 {}", drift.size(), drift);
+        }
+    }
+
+    //重新读取Redis和数据库，算出应有的库存和订单集合，比较后写入；返回null表示其实是一致的
+    private String repair(SeckillVoucher voucher, boolean cold, Set<String> flying) {
+        Long voucherId = voucher.getVoucherId();
+        // 1.重新读取Redis（带订单用户），读取顺序和第一轮一样：Redis -> 消息队列 -> 数据库
+        Snapshot s = snapshot(Collections.singletonList(voucherId), true).get(0);
+        if (!cold) {
+            Map<Long, Set<String>> latest = inFlight();
+            if (latest == null) {
+                backlogSkipped.increment();
+                return "backlog";
+            }
+            flying = latest.getOrDefault(voucherId, Collections.emptySet());
+        }
+        SeckillVoucher latest = seckillVoucherMapper.selectById(voucherId);
+        if (latest == null) {
+            return "deleted";
+        }
+        Set<String> dbUsers = voucherOrderMapper.selectObjs(new QueryWrapper<VoucherOrder>()
+                        .select("user_id").eq("voucher_id", voucherId))
+                .stream().map(String::valueOf).collect(Collectors.toSet());
+        // 已经落库还没ACK的（先提交事务再确认）不算在途，数据库库存里已经扣过了
+        flying = flying.stream().filter(user -> !dbUsers.contains(user)).collect(Collectors.toSet());
+        // 2.订单集合：数据库里有、Redis里没有的补回；Redis里有，但既没落库也不在队列里的连续两轮就删掉（订单丢了）
+        List<String> missing = new ArrayList<>();
+        for (String user : dbUsers) {
+            if (!s.members.contains(user)) {
+                missing.add(user);
+            }
+        }
+        Set<String> candidates = new HashSet<>();
+        for (String user : s.members) {
+            if (!dbUsers.contains(user) && !flying.contains(user)) {
+                candidates.add(user);
+            }
+        }
+        Set<String> previous = suspects.getOrDefault(voucherId, Collections.emptySet());
+        List<String> lost = candidates.stream().filter(previous::contains).collect(Collectors.toList());
+        if (candidates.isEmpty()) {
+            suspects.remove(voucherId);
+        } else {
+            suspects.put(voucherId, candidates);
+        }
+        // 3.应有的库存：数据库库存减去还在队列里的订单，第一次看到丢了的也先当成在途
+        long expectedStock = Math.max(0, latest.getStock() - flying.size() - (candidates.size() - lost.size()));
+        if (!s.cold && s.stock() == expectedStock && missing.isEmpty() && lost.isEmpty()) {
+            return null;
+        }
+        // 4.比较后写入，期间库存变了就放弃
+        boolean sharded = s.shards > 0 || (s.cold && stockShards > 1);
+        boolean ok = sharded
+                ? repairShards(voucherId, s, expectedStock, missing, lost)
+                : repairKey(SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId,
+                s.values.get(0), String.valueOf(expectedStock), missing, lost);
+        if (!ok) {
+            conflicts.increment();
+            return "conflict";
+        }
+        if (s.cold) {
+            coldRebuilt.increment();
+        } else {
+            repaired.increment();
+        }
+        missingOrders.add(missing.size());
+        lostOrders.add(lost.size());
+        lost.forEach(candidates::remove);
+        log.warn("秒杀库存已修复，券：{}，库存：{} -> {}，补回订单用户：{}，删除丢失订单的用户：{}",
+                voucherId, s.cold ? null : s.stock(), expectedStock, missing.size(), lost.size());
+        // 5.库存可能变多了，通知所有实例清除本地售罄标记
+        if (expectedStock > 0) {
+            stringRedisTemplate.convertAndSend(SECKILL_STOCK_REFILL_CHANNEL, voucherId.toString());
+        }
+        return s.cold ? "rebuilt" : "repaired";
+    }
+
+    /**
+     * 分片模式：应有的库存平均分到各分片，每个分片和它的订单集合（同一个slot）单独比较写入
+     * 先写减少库存的分片，全部成功后再写增加库存的分片，中途失败不会让总库存比应有的多
+     * 分片数key不存在（按配置新建分片）时最后写入，请求看到分片数时各分片已经有库存了
+     */
+    private boolean repairShards(Long voucherId, Snapshot s, long expectedStock, List<String> missing, List<String> lost) {
+        int shards = s.shards > 0 ? s.shards : stockShards;
+        int[] parts = SeckillStockSharding.split((int) expectedStock, shards);
+        List<List<String>> adds = new ArrayList<>();
+        List<List<String>> removes = new ArrayList<>();
+        for (int i = 0; i < shards; i++) {
+            adds.add(new ArrayList<>());
+            removes.add(new ArrayList<>());
+        }
+        missing.forEach(user -> adds.get((int) (Long.parseLong(user) % shards)).add(user));
+        lost.forEach(user -> removes.get((int) (Long.parseLong(user) % shards)).add(user));
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < shards; i++) {
+            order.add(i);
+        }
+        order.sort((a, b) -> Long.compare(parts[a] - observed(s, a), parts[b] - observed(s, b)));
+        for (int i : order) {
+            String value = i < s.values.size() ? s.values.get(i) : null;
+            if (value != null && parts[i] == Long.parseLong(value) && adds.get(i).isEmpty() && removes.get(i).isEmpty()) {
+                continue;
+            }
+            if (!repairKey(SeckillStockSharding.shardKey(voucherId, i), SeckillStockSharding.shardOrderKey(voucherId, i),
+                    value, String.valueOf(parts[i]), adds.get(i), removes.get(i))) {
+                return false;
+            }
+        }
+        if (s.shards == 0) {
+            stringRedisTemplate.opsForValue().set(SeckillStockSharding.shardCountKey(voucherId), String.valueOf(shards));
+        }
+        return true;
+    }
+
+    //一个库存key和它的订单集合：库存还是读到的值才写入
+    private boolean repairKey(String stockKey, String orderKey, String observed, String stock, List<String> missing, List<String> lost) {
+        List<String> args = new ArrayList<>(missing.size() + lost.size() + 3);
+        args.add(observed == null ? "" : observed);
+        args.add(stock);
+        args.add(String.valueOf(missing.size()));
+        args.addAll(missing);
+        args.addAll(lost);
+        Long ok = stringRedisTemplate.execute(REPAIR_SCRIPT, Arrays.asList(stockKey, orderKey), args.toArray());
+        return ok != null && ok == 1;
+    }
+
+    private static long observed(Snapshot s, int shard) {
+        String value = shard < s.values.size() ? s.values.get(shard) : null;
+        return value == null ? 0 : Long.parseLong(value);
+    }
+
+    /**
+     * 一个管道读出每张券的分片数、库存和订单集合（withMembers为false时只读数量，分片模式是各分片订单集合的合计）
+     * 分片数先单独读一次，才知道要读哪些库存key；库存在订单集合之前读，期间有人下单时库存一定对不上，修复会放弃
+     */
+    private List<Snapshot> snapshot(List<Long> ids, boolean withMembers) {
+        List<String> shardCounts = stringRedisTemplate.opsForValue().multiGet(
+                ids.stream().map(SeckillStockSharding::shardCountKey).collect(Collectors.toList()));
+        int[] shards = new int[ids.size()];
+        for (int i = 0; i < ids.size(); i++) {
+            String count = shardCounts == null ? null : shardCounts.get(i);
+            shards[i] = count == null ? 0 : Integer.parseInt(count);
+        }
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < ids.size(); i++) {
+                Long id = ids.get(i);
+                if (shards[i] > 0) {
+                    for (int s = 0; s < shards[i]; s++) {
+                        connection.stringCommands().get(bytes(SeckillStockSharding.shardKey(id, s)));
+                    }
+                } else {
+                    connection.stringCommands().get(bytes(SECKILL_STOCK_KEY + id));
+                }
+                for (int s = 0; s < Math.max(1, shards[i]); s++) {
+                    byte[] orderKey = bytes(shards[i] > 0 ? SeckillStockSharding.shardOrderKey(id, s) : SECKILL_ORDER_KEY + id);
+                    if (withMembers) {
+                        connection.setCommands().sMembers(orderKey);
+                    } else {
+                        connection.setCommands().sCard(orderKey);
+                    }
+                }
+            }
+            return null;
+        });
+        List<Snapshot> snapshots = new ArrayList<>(ids.size());
+        int offset = 0;
+        for (int i = 0; i < ids.size(); i++) {
+            Snapshot s = new Snapshot();
+            s.shards = shards[i];
+            int n = Math.max(1, shards[i]);
+            for (int k = 0; k < n; k++) {
+                s.values.add((String) results.get(offset++));
+            }
+            if (withMembers) {
+                s.members = new HashSet<>();
+            }
+            for (int k = 0; k < n; k++) {
+                Object orders = results.get(offset++);
+                if (withMembers) {
+                    @SuppressWarnings("unchecked")
+                    Set<String> members = (Set<String>) orders;
+                    if (members != null) {
+                        s.members.addAll(members);
+                    }
+                    s.orders = s.members.size();
+                } else {
+                    s.orders += orders == null ? 0 : (Long) orders;
+                }
+            }
+            s.cold = s.values.stream().allMatch(v -> v == null);
+            snapshots.add(s);
+        }
+        return snapshots;
+    }
+
+    /**
+     * 消息队列里还没落库的订单：券id -> 用户id，超过 max-in-flight 条返回null
+     * = 所有消费者pending-list里的消息（已读取未确认）+ 最后投递的id之后还没读取的消息
+     * 不能从最早的未确认消息往后整段读：多个消费者乱序确认，中间已经确认（落库）的消息也会被算成在途
+     */
+    private Map<Long, Set<String>> inFlight() {
+        String lastDelivered;
+        PendingMessages pending;
+        try {
+            // 1.最后投递的id XINFO GROUPS stream.orders
+            //   先读它再读pending-list，期间新投递的消息会出现在pending-list里，不会漏（重复的按用户去重）
+            StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(streamKey);
+            lastDelivered = groups.stream()
+                    .filter(g -> GROUP_NAME.equals(g.groupName()))
+                    .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                    .findFirst().orElse("0-0");
+            // 2.pending-list里的消息id XPENDING stream.orders g1 - + max+1
+            pending = stringRedisTemplate.opsForStream().pending(streamKey, GROUP_NAME, Range.unbounded(), maxInFlight + 1);
+        } catch (Exception e) {
+            // 队列不存在（Redis被清空），没有在途订单
+            return new HashMap<>();
+        }
+        if (pending.size() > maxInFlight) {
+            return null;
+        }
+        // 3.一个管道按id读出pending消息的内容 XRANGE stream.orders id id（期间确认了的读不到，已经落库）
+        List<MapRecord<String, Object, Object>> records = new ArrayList<>(pending.size());
+        if (!pending.isEmpty()) {
+            List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (PendingMessage message : pending) {
+                    String id = message.getIdAsString();
+                    connection.streamCommands().xRange(bytes(streamKey), Range.closed(id, id));
+                }
+                return null;
+            });
+            for (Object result : results) {
+                if (result instanceof List) {
+                    for (Object record : (List<?>) result) {
+                        records.add(toMapRecord((ByteRecord) record));
+                    }
+                }
+            }
+        }
+        // 4.还没读取的消息 XRANGE stream.orders (lastDelivered + COUNT n
+        List<MapRecord<String, Object, Object>> undelivered = stringRedisTemplate.opsForStream().range(streamKey,
+                Range.rightUnbounded(Range.Bound.exclusive(lastDelivered)),
+                RedisZSetCommands.Limit.limit().count(maxInFlight + 1 - records.size()));
+        if (undelivered != null) {
+            records.addAll(undelivered);
+        }
+        if (records.size() > maxInFlight) {
+            return null;
+        }
+        Map<Long, Set<String>> result = new HashMap<>();
+        for (MapRecord<String, Object, Object> record : records) {
+            Object voucherId = record.getValue().get("voucherId");
+            Object userId = record.getValue().get("userId");
+            if (voucherId != null && userId != null) {
+                result.computeIfAbsent(Long.valueOf(voucherId.toString()), k -> new HashSet<>()).add(userId.toString());
+            }
+        }
+        return result;
+    }
+
+    private static MapRecord<String, Object, Object> toMapRecord(ByteRecord record) {
+        Map<Object, Object> value = new HashMap<>();
+        record.getValue().forEach((k, v) -> value.put(new String(k, StandardCharsets.UTF_8), new String(v, StandardCharsets.UTF_8)));
+        return StreamRecords.newRecord().in(new String(record.getStream(), StandardCharsets.UTF_8))
+                .withId(record.getId()).ofMap(value);
+    }
+
+    private static byte[] bytes(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    //Redis里一张券的状态
+    private static class Snapshot {
+        //分片数，0表示单key模式
+        private int shards;
+        //各库存key的值，不存在为null
+        private final List<String> values = new ArrayList<>();
+        private long orders;
+        private Set<String> members = Collections.emptySet();
+        //库存key都不存在
+        private boolean cold;
+
+        long stock() {
+            long stock = 0;
+            for (String value : values) {
+                stock += value == null ? 0 : Long.parseLong(value);
+            }
+            return stock;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SHARDS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 秒杀库存分片
+ * 单key模式：seckill:stock:10、seckill:order:10，seckill.lua 一个脚本完成
+ * 分片模式：分片数 seckill:shards:10，第i个分片有自己的库存 seckill:stock:{10:i} 和订单集合 seckill:order:{10:i}
+ *          hash tag 是 {券id:分片}，每个分片落在不同的slot，集群里可以分散到不同节点
+ * 用户固定属于 userId % K 号分片，一人一单只需要查自己分片的订单集合
+ * 1.自己的分片（seckill_shard.lua，一个slot内原子）：已下单返回2；有库存就扣减并记下用户；没库存也先记下用户（占位，防止同一用户并发重复下单）再去借
+ * 2.借库存（seckill_borrow.lua）：依次在其他分片上 有库存才扣减，借到为止
+ * 3.扣到库存后发消息到 stream.orders；所有分片都空了把占位的用户删掉，返回库存不足
+ * 第3步和前两步不是原子的，中途宕机留下的 扣了库存/记了用户但没有消息 由秒杀库存对账（SeckillStockReconciler）发现后还回去
+ */
+@Slf4j
+@Component
+public class SeckillStockSharding {
+
+    private static final DefaultRedisScript<Long> SHARD_SCRIPT;
+    private static final DefaultRedisScript<Long> BORROW_SCRIPT;
+
+    static {
+        SHARD_SCRIPT = new DefaultRedisScript<>();
+        SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SHARD_SCRIPT.setResultType(Long.class);
+        BORROW_SCRIPT = new DefaultRedisScript<>();
+        BORROW_SCRIPT.setLocation(new ClassPathResource("seckill_borrow.lua"));
+        BORROW_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    //订单消息队列
+    private final String streamKey;
+    //券id -> 分片数，分片数创建后不会变
+    private final Cache<Long, Integer> shardCounts = Caffeine.newBuilder().maximumSize(10000).build();
+
+    @Autowired
+    public SeckillStockSharding(StringRedisTemplate stringRedisTemplate) {
+        this(stringRedisTemplate, "stream.orders");
+    }
+
+    public SeckillStockSharding(StringRedisTemplate stringRedisTemplate, String streamKey) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.streamKey = streamKey;
+    }
+
+    /**
+     * 本机记住的分片数，0表示不知道（当成单key模式，seckill.lua 发现是分片模式会返回3）
+     */
+    public int cachedShards(Long voucherId) {
+        Integer shards = shardCounts.getIfPresent(voucherId);
+        return shards == null ? 0 : shards;
+    }
+
+    /**
+     * 分片模式下单，返回值和 seckill.lua 一样：0成功，1库存不足，2重复下单
+     */
+    public int seckill(Long voucherId, Long userId, long orderId) {
+        int shards = shards(voucherId);
+        if (shards <= 0) {
+            // 分片数被删了（Redis被清空），等对账重建
+            return 1;
+        }
+        int home = (int) (userId % shards);
+        String user = userId.toString();
+        // 1.自己的分片：查重、扣减、记下用户
+        Long r = stringRedisTemplate.execute(SHARD_SCRIPT,
+                Arrays.asList(shardKey(voucherId, home), shardOrderKey(voucherId, home)), user);
+        int result = r == null ? 1 : r.intValue();
+        if (result == 2) {
+            return 2;
+        }
+        int taken = result == 0 ? home : -1;
+        try {
+            // 2.自己的分片空了，依次借用后面的分片
+            for (int i = 1; taken < 0 && i < shards; i++) {
+                int shard = (home + i) % shards;
+                Long ok = stringRedisTemplate.execute(BORROW_SCRIPT, Collections.singletonList(shardKey(voucherId, shard)));
+                if (ok != null && ok == 1) {
+                    taken = shard;
+                }
+            }
+            if (taken < 0) {
+                // 3.所有分片都空了，删掉占位的用户
+                stringRedisTemplate.opsForSet().remove(shardOrderKey(voucherId, home), user);
+                return 1;
+            }
+            // 4.发送消息到队列中 XADD stream.orders * userId x voucherId x id x
+            Map<String, String> message = new HashMap<>(4);
+            message.put("userId", user);
+            message.put("voucherId", voucherId.toString());
+            message.put("id", String.valueOf(orderId));
+            stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(streamKey).ofMap(message));
+            return 0;
+        } catch (RuntimeException e) {
+            // 尽量还回去，还不回去的由对账处理
+            try {
+                if (taken >= 0) {
+                    stringRedisTemplate.opsForValue().increment(shardKey(voucherId, taken));
+                }
+                stringRedisTemplate.opsForSet().remove(shardOrderKey(voucherId, home), user);
+            } catch (RuntimeException ex) {
+                log.error("秒杀分片下单失败后还回库存失败，券：{}，用户：{}", voucherId, userId, ex);
+            }
+            throw e;
+        }
+    }
+
+    private int shards(Long voucherId) {
+        Integer shards = shardCounts.getIfPresent(voucherId);
+        if (shards != null) {
+            return shards;
+        }
+        String count = stringRedisTemplate.opsForValue().get(shardCountKey(voucherId));
+        if (count == null) {
+            return 0;
+        }
+        shards = Integer.valueOf(count);
+        shardCounts.put(voucherId, shards);
+        return shards;
+    }
+
+    /**
+     * 分片数量的key，不存在说明是单key模式
+     */
+    public static String shardCountKey(Long voucherId) {
+        return SECKILL_SHARDS_KEY + voucherId;
+    }
+
+    /**
+     * 第i个库存分片的key
+     */
+    public static String shardKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 第i个分片的订单集合，保存 userId % K == i 的用户
+     */
+    public static String shardOrderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 把库存尽量平均的拆到每个分片上，前 stock % shards 个分片多分一个
+     */
+    public static int[] split(int stock, int shards) {
+        int[] parts = new int[shards];
+        for (int i = 0; i < shards; i++) {
+            parts[i] = stock / shards + (i < stock % shards ? 1 : 0);
+        }
+        return parts;
+    }
+}
@@ -0,0 +1,129 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_SHOP_ADD_CHANNEL;
+import static com.hmdp.utils.RedisConstants.BLOOM_SHOP_KEY;
+
+/**
+ * 店铺id的布隆过滤器，解决缓存穿透
+ * 启动时用tb_shop的全部id构建，新增店铺时添加并通知其他实例；定时从Redis同步兜底
+ * 构建完成之前一律放行，不会把存在的店铺挡掉
+ */
+@Slf4j
+@Component
+public class ShopBloomFilter implements MessageListener {
+
+    private final ShopMapper shopMapper;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisBloomFilter filter;
+    private final boolean enabled;
+    //是否已经构建完成
+    private volatile boolean ready;
+
+    public ShopBloomFilter(ShopMapper shopMapper,
+                           StringRedisTemplate stringRedisTemplate,
+                           @Value("${hmdp.bloom.shop.enabled:true}") boolean enabled,
+                           @Value("${hmdp.bloom.shop.expected-insertions:100000}") long expectedInsertions,
+                           @Value("${hmdp.bloom.shop.fpp:0.001}") double fpp) {
+        this.shopMapper = shopMapper;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.enabled = enabled;
+        this.filter = new RedisBloomFilter(stringRedisTemplate, BLOOM_SHOP_KEY, expectedInsertions, fpp);
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            // 1.查出所有店铺id
+            List<Long> ids = shopMapper.selectObjs(new QueryWrapper<Shop>().select("id")).stream()
+                    .map(id -> ((Number) id).longValue())
+                    .collect(Collectors.toList());
+            // 2.构建本机位图，合并到Redis
+            filter.build(ids);
+            // 3.再把Redis里别的实例加的合并回来
+            filter.syncFromRedis();
+            ready = true;
+            log.info("店铺布隆过滤器构建完成，店铺数：{}，{}", ids.size(), filter.stats());
+        } catch (Exception e) {
+            // 构建失败不影响启动，只是不拦截
+            log.error("店铺布隆过滤器构建失败，暂不拦截", e);
+        }
+    }
+
+    /**
+     * 店铺是否可能存在，false表示一定不存在
+     */
+    public boolean mightContain(Long id) {
+        if (!enabled || !ready) {
+            return true;
+        }
+        return id != null && filter.mightContain(id);
+    }
+
+    /**
+     * 新增店铺后调用
+     */
+    public void add(Long id) {
+        if (!enabled) {
+            return;
+        }
+        filter.put(id);
+        stringRedisTemplate.convertAndSend(BLOOM_SHOP_ADD_CHANNEL, id.toString());
+    }
+
+    /**
+     * 收到其他实例新增店铺的通知，消息体是店铺id
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            filter.putLocal(Long.parseLong(body));
+        } catch (NumberFormatException e) {
+            log.warn("无效的布隆过滤器消息：{}", body);
+        }
+    }
+
+    /**
+     * 定时从Redis同步，兜底丢失的通知；Redis里的位图丢了就重新构建
+     */
+    @Scheduled(fixedDelayString = "${hmdp.bloom.shop.sync-interval:60000}")
+    public void sync() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            if (!ready || !filter.syncFromRedis()) {
+                init();
+            }
+        } catch (Exception e) {
+            log.error("店铺布隆过滤器同步失败", e);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = filter.stats();
+        stats.put("enabled", enabled);
+        stats.put("ready", ready);
+        return stats;
+    }
+}
@@ -0,0 +1,239 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_CHANGED_CHANNEL;
+
+/**
+ * 店铺位置的本机索引（hmdp.shop.nearby.source=local 时启用），附近店铺查询不再访问Redis GEO
+ * 启动时从tb_shop加载，每个类型一个 GeoGrid；新增、修改店铺后重新读取这一个店铺并通知其他实例
+ * 定时全量重新加载，兜底丢失的通知
+ * 加载完成之前返回未就绪，调用方继续用Redis GEO
+ */
+@Slf4j
+@Component
+public class ShopGeoIndex implements MessageListener {
+
+    private final ShopMapper shopMapper;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final boolean enabled;
+    //格子的经纬度步长，0.01度约1.1km
+    private final double gridDegrees;
+    //类型 -> 网格
+    private volatile Map<Integer, GeoGrid> grids = new ConcurrentHashMap<>();
+    //店铺id -> 在索引里的位置，修改时从旧格子删除
+    private volatile Map<Long, Location> locations = new ConcurrentHashMap<>();
+    //是否已经加载完成
+    private volatile boolean ready;
+    //全量加载期间变化过的店铺，替换之后重新读取，不被加载开始时的旧数据覆盖（由this保护）
+    private Set<Long> changedWhileLoading;
+    //同一时间只有一个全量加载
+    private final Object loadLock = new Object();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder changes = new LongAdder();
+
+    public ShopGeoIndex(ShopMapper shopMapper,
+                        StringRedisTemplate stringRedisTemplate,
+                        @Value("${hmdp.shop.nearby.source:redis}") String source,
+                        @Value("${hmdp.shop.nearby.grid-degrees:0.01}") double gridDegrees) {
+        this.shopMapper = shopMapper;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.enabled = "local".equals(source);
+        this.gridDegrees = gridDegrees;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        synchronized (loadLock) {
+            load();
+        }
+    }
+
+    private void load() {
+        synchronized (this) {
+            changedWhileLoading = new HashSet<>();
+        }
+        try {
+            // 1.查出所有店铺的 id、类型、坐标
+            List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>().select("id", "type_id", "x", "y"));
+            // 2.按类型分组，构建网格
+            Map<Integer, List<Shop>> byType = new HashMap<>();
+            Map<Long, Location> loaded = new ConcurrentHashMap<>(shops.size() * 2);
+            for (Shop shop : shops) {
+                if (shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+                    continue;
+                }
+                byType.computeIfAbsent(shop.getTypeId().intValue(), k -> new ArrayList<>()).add(shop);
+                loaded.put(shop.getId(), new Location(shop.getTypeId().intValue(), shop.getX(), shop.getY()));
+            }
+            Map<Integer, GeoGrid> built = new ConcurrentHashMap<>(byType.size() * 2);
+            byType.forEach((typeId, list) -> {
+                long[] ids = new long[list.size()];
+                double[] xs = new double[list.size()];
+                double[] ys = new double[list.size()];
+                for (int i = 0; i < list.size(); i++) {
+                    ids[i] = list.get(i).getId();
+                    xs[i] = list.get(i).getX();
+                    ys[i] = list.get(i).getY();
+                }
+                built.put(typeId, GeoGrid.build(gridDegrees, ids, xs, ys));
+            });
+            // 3.整体替换
+            Set<Long> changed;
+            synchronized (this) {
+                grids = built;
+                locations = loaded;
+                changed = changedWhileLoading;
+                changedWhileLoading = null;
+            }
+            // 4.加载期间变化的店铺，查出来的可能是旧位置，重新读取
+            changed.forEach(this::reload);
+            ready = true;
+            log.info("店铺位置索引加载完成，店铺数：{}，类型数：{}，加载期间变化：{}", loaded.size(), built.size(), changed.size());
+        } catch (Exception e) {
+            synchronized (this) {
+                changedWhileLoading = null;
+            }
+            log.error("店铺位置索引加载失败，继续使用Redis GEO", e);
+        }
+    }
+
+    /**
+     * 是否可以用本机索引查询
+     */
+    public boolean isReady() {
+        return enabled && ready;
+    }
+
+    /**
+     * 距离 (x, y) 不超过 radiusMeters 的店铺，按距离从近到远，距离相同按id
+     */
+    public List<NearbyShopIndex.Nearby> within(Integer typeId, double x, double y, double radiusMeters) {
+        queries.increment();
+        GeoGrid grid = grids.get(typeId);
+        return grid == null ? Collections.emptyList() : grid.within(x, y, radiusMeters);
+    }
+
+    /**
+     * 离 (x, y) 最近的k个店铺（不超过 maxRadiusMeters）
+     */
+    public List<NearbyShopIndex.Nearby> nearest(Integer typeId, double x, double y, int k, double maxRadiusMeters) {
+        queries.increment();
+        GeoGrid grid = grids.get(typeId);
+        return grid == null ? Collections.emptyList() : grid.nearest(x, y, k, maxRadiusMeters);
+    }
+
+    /**
+     * 新增、修改店铺后调用：事务提交后更新本机索引，并通知其他实例
+     * 提交之前重新读取，读到的还是旧位置
+     */
+    public void changed(Long id) {
+        if (!enabled) {
+            return;
+        }
+        AfterCommit.run(() -> {
+            reload(id);
+            stringRedisTemplate.convertAndSend(SHOP_GEO_CHANGED_CHANNEL, id.toString());
+        });
+    }
+
+    /**
+     * 收到其他实例店铺变化的通知，消息体是店铺id
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        if (!enabled) {
+            return;
+        }
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            reload(Long.parseLong(body));
+        } catch (NumberFormatException e) {
+            log.warn("无效的店铺位置变化消息：{}", body);
+        }
+    }
+
+    /**
+     * 定时全量重新加载，兜底丢失的通知
+     */
+    @Scheduled(fixedDelayString = "${hmdp.shop.nearby.reload-interval:600000}",
+            initialDelayString = "${hmdp.shop.nearby.reload-interval:600000}")
+    public void sync() {
+        if (enabled) {
+            init();
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("ready", ready);
+        stats.put("shops", locations.size());
+        stats.put("types", grids.size());
+        stats.put("cells", grids.values().stream().mapToInt(GeoGrid::cells).sum());
+        stats.put("queries", queries.sum());
+        stats.put("changes", changes.sum());
+        return stats;
+    }
+
+    //重新读取一个店铺，从旧位置删除，加到新位置
+    private void reload(Long id) {
+        changes.increment();
+        Shop shop = shopMapper.selectOne(new QueryWrapper<Shop>().select("id", "type_id", "x", "y").eq("id", id));
+        synchronized (this) {
+            if (changedWhileLoading != null) {
+                changedWhileLoading.add(id);
+            }
+            Location old = locations.remove(id);
+            if (old != null) {
+                GeoGrid grid = grids.get(old.typeId);
+                if (grid != null) {
+                    grid.remove(id, old.x, old.y);
+                }
+            }
+            if (shop == null || shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+                return;
+            }
+            int typeId = shop.getTypeId().intValue();
+            grids.computeIfAbsent(typeId, k -> new GeoGrid(gridDegrees)).put(id, shop.getX(), shop.getY());
+            locations.put(id, new Location(typeId, shop.getX(), shop.getY()));
+        }
+    }
+
+    private static class Location {
+        private final int typeId;
+        private final double x;
+        private final double y;
+
+        Location(int typeId, double x, double y) {
+            this.typeId = typeId;
+            this.x = x;
+            this.y = y;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.hmdp.utils;
+
+import cn.hutool.crypto.digest.DigestUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.ShopType;
+import com.hmdp.mapper.ShopTypeMapper;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SHOP_TYPE_CHANGED_CHANNEL;
+
+/**
+ * 店铺类型列表的本机缓存：保存序列化好的响应JSON和它的版本（内容的MD5，用作ETag）
+ * 请求时直接返回这份字节，不查数据库也不序列化；客户端带着相同的 If-None-Match 时返回304
+ * 版本由内容决定，多个实例加载到相同数据时ETag一致
+ * 修改店铺类型后重新加载并通知其他实例；定时重新加载兜底丢失的通知
+ */
+@Slf4j
+@Component
+public class ShopTypeCatalog implements MessageListener {
+
+    private final ShopTypeMapper shopTypeMapper;
+    private final StringRedisTemplate stringRedisTemplate;
+    //和Spring MVC写响应用的是同一个，格式一致
+    private final ObjectMapper objectMapper;
+    private volatile Snapshot snapshot;
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+
+    public ShopTypeCatalog(ShopTypeMapper shopTypeMapper,
+                           StringRedisTemplate stringRedisTemplate,
+                           ObjectMapper objectMapper) {
+        this.shopTypeMapper = shopTypeMapper;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * 当前的列表，还没加载过就先加载
+     */
+    public Snapshot get() {
+        Snapshot s = snapshot;
+        if (s != null) {
+            return s;
+        }
+        synchronized (this) {
+            if (snapshot == null) {
+                load();
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * 客户端缓存的版本还是最新的，记一次304
+     */
+    public void notModified() {
+        notModified.increment();
+    }
+
+    /**
+     * 店铺类型修改后调用：重新加载，并通知其他实例
+     */
+    public void refresh() {
+        load();
+        stringRedisTemplate.convertAndSend(SHOP_TYPE_CHANGED_CHANNEL, snapshot.getEtag());
+    }
+
+    /**
+     * 收到其他实例店铺类型修改的通知，消息体是新的ETag
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        load();
+    }
+
+    /**
+     * 定时重新加载，兜底丢失的通知（内容没变ETag也不变）
+     */
+    @Scheduled(fixedDelayString = "${hmdp.shop-type.reload-interval:600000}",
+            initialDelayString = "${hmdp.shop-type.reload-interval:600000}")
+    public void sync() {
+        try {
+            load();
+        } catch (Exception e) {
+            log.error("店铺类型列表重新加载失败，继续使用旧数据", e);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Snapshot s = snapshot;
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("etag", s == null ? null : s.getEtag());
+        stats.put("bytes", s == null ? 0 : s.getJson().length);
+        stats.put("loads", loads.sum());
+        stats.put("notModified", notModified.sum());
+        return stats;
+    }
+
+    // select * from tb_shop_type order by sort，序列化成和 Result.ok(list) 一样的响应
+    private synchronized void load() {
+        loads.increment();
+        List<ShopType> types = shopTypeMapper.selectList(new QueryWrapper<ShopType>().orderByAsc("sort"));
+        byte[] json;
+        try {
+            json = objectMapper.writeValueAsBytes(Result.ok(types));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+        String etag = "\"" + DigestUtil.md5Hex(json) + "\"";
+        Snapshot old = snapshot;
+        if (old == null || !old.getEtag().equals(etag)) {
+            snapshot = new Snapshot(json, etag);
+            log.info("店铺类型列表已加载，类型数：{}，ETag：{}", types.size(), etag);
+        }
+    }
+
+    /**
+     * 序列化好的响应和它的ETag
+     */
+    @Getter
+    public static class Snapshot {
+        private final byte[] json;
+        private final String etag;
+
+        Snapshot(byte[] json, String etag) {
+            this.json = json;
+            this.etag = etag;
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.UserDTO;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_REVOKED_BLOOM_KEY;
+import static com.hmdp.utils.RedisConstants.LOGIN_REVOKED_CHANNEL;
+import static com.hmdp.utils.RedisConstants.LOGIN_REVOKED_KEY;
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_TTL;
+
+/**
+ * 签名token登录（hmdp.login.token.mode=signed 时启用），和Redis hash保存登录信息二选一
+ * token = base64url(内容).base64url(HMAC-SHA256签名前16字节)，内容是 版本、用户id、token id、过期时间、昵称、头像
+ * 1.校验只需要验签和看过期时间，不访问Redis
+ * 2.滑动过期：签发超过 refresh-interval 的token，请求时重新签发一个（同一个token id），通过响应头 authorization 返回
+ * 3.登出：token id 加到Redis的 zset login:revoked（分数是过期时间）和布隆过滤器；校验时本机布隆过滤器判断可能吊销才查Redis
+ *   布隆过滤器不能删除，按吊销时间分代，每代长度是token有效期：第g代吊销的token在第g+1代结束前一定过期
+ *   所以只需要查当前代和上一代，更早的整代丢掉（Redis位图 bloom:login:revoked:{g}:... 到期自动删除），过滤器不会越来越满
+ */
+@Slf4j
+@Component
+public class SignedTokenService implements MessageListener {
+
+    private static final byte VERSION = 1;
+    private static final int SIGNATURE_BYTES = 16;
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+    //一代过滤器在Redis里多保留的时间（秒），容忍各实例的时钟误差
+    private static final long GENERATION_GRACE_SECONDS = 3600;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final UserSummaryCache userSummaryCache;
+    private final boolean enabled;
+    private final byte[] secret;
+    //token有效期（秒）
+    private final long ttlSeconds;
+    //签发多久之后重新签发（秒）
+    private final long refreshIntervalSeconds;
+    private final long revokedExpectedInsertions;
+    private final double revokedFpp;
+    //吊销的token id，当前代和上一代
+    private volatile Generation current;
+    private volatile Generation previous;
+    private final ThreadLocal<Mac> macs;
+    //布隆过滤器是否已经构建完成，没完成之前每次都查Redis
+    private volatile boolean ready;
+    private final LongAdder verified = new LongAdder();
+    private final LongAdder revokedCheck = new LongAdder();
+    private final LongAdder reissued = new LongAdder();
+
+    public SignedTokenService(StringRedisTemplate stringRedisTemplate,
+                              UserSummaryCache userSummaryCache,
+                              @Value("${hmdp.login.token.mode:redis}") String mode,
+                              @Value("${hmdp.login.token.secret:}") String secret,
+                              @Value("${hmdp.login.token.refresh-interval-seconds:3600}") long refreshIntervalSeconds,
+                              @Value("${hmdp.login.token.revoked-expected-insertions:100000}") long revokedExpectedInsertions,
+                              @Value("${hmdp.login.token.revoked-fpp:0.001}") double revokedFpp) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.userSummaryCache = userSummaryCache;
+        this.enabled = "signed".equals(mode);
+        if (StrUtil.isBlank(secret)) {
+            // 没配置密钥就随机生成一个，只能单实例用，重启后之前的token全部失效
+            secret = RandomUtil.randomString(32);
+            if (enabled) {
+                log.warn("没有配置 hmdp.login.token.secret，使用随机密钥，多实例部署时必须配置");
+            }
+        }
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.ttlSeconds = TimeUnit.MINUTES.toSeconds(LOGIN_USER_TTL);
+        this.refreshIntervalSeconds = refreshIntervalSeconds;
+        this.revokedExpectedInsertions = revokedExpectedInsertions;
+        this.revokedFpp = revokedFpp;
+        byte[] key = this.secret;
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(new SecretKeySpec(key, ALGORITHM));
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            // 本机重新构建当前代和上一代，丢掉更早的
+            long generation = generation(nowSeconds());
+            Generation prev = load(generation - 1);
+            Generation cur = load(generation);
+            synchronized (this) {
+                previous = prev;
+                current = cur;
+            }
+            ready = true;
+        } catch (Exception e) {
+            ready = false;
+            log.error("token吊销布隆过滤器构建失败，暂时每次查Redis", e);
+        }
+    }
+
+    /**
+     * 登录时签发新token
+     */
+    public String issue(UserDTO user) {
+        return sign(user, RandomUtil.getRandom().nextLong(), nowSeconds() + ttlSeconds);
+    }
+
+    /**
+     * 校验token
+     * @return null 表示token无效、过期或者已吊销
+     */
+    public Session verify(String token) {
+        // 1.验签，解析内容
+        Session session = decode(token);
+        if (session == null || session.getExpireAt() <= nowSeconds()) {
+            return null;
+        }
+        verified.increment();
+        // 2.布隆过滤器判断可能吊销了，才查Redis ZSCORE login:revoked tokenId
+        if (mightBeRevoked(session.getTokenId())) {
+            revokedCheck.increment();
+            if (stringRedisTemplate.opsForZSet().score(LOGIN_REVOKED_KEY, String.valueOf(session.getTokenId())) != null) {
+                return null;
+            }
+        }
+        return session;
+    }
+
+    /**
+     * 滑动过期：签发超过 refresh-interval 的token重新签发（昵称、头像取最新的）
+     * @return null 表示不需要重新签发
+     */
+    public String refreshIfNeeded(Session session) {
+        long issuedAt = session.getExpireAt() - ttlSeconds;
+        if (nowSeconds() - issuedAt < refreshIntervalSeconds) {
+            return null;
+        }
+        reissued.increment();
+        return reissue(session);
+    }
+
+    /**
+     * 用同一个token id重新签发，用户信息取最新的
+     */
+    public String reissue(Session session) {
+        UserDTO user = userSummaryCache.get(session.getUser().getId());
+        return sign(user == null ? session.getUser() : user, session.getTokenId(), nowSeconds() + ttlSeconds);
+    }
+
+    /**
+     * 登出：吊销token id（之后用同一个id重新签发的token也一起失效），并通知其他实例
+     */
+    public void revoke(Session session) {
+        String tokenId = String.valueOf(session.getTokenId());
+        // 过期时间取最晚的可能值（期间还可能被重新签发），过期之后就可以删掉
+        stringRedisTemplate.opsForZSet().add(LOGIN_REVOKED_KEY, tokenId, nowSeconds() + ttlSeconds);
+        Generation generation = currentGeneration();
+        if (generation != null) {
+            generation.filter.put(session.getTokenId());
+        }
+        stringRedisTemplate.convertAndSend(LOGIN_REVOKED_CHANNEL, tokenId);
+    }
+
+    /**
+     * 收到其他实例吊销token的通知，消息体是token id
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            long tokenId = Long.parseLong(body);
+            Generation generation = currentGeneration();
+            if (generation != null) {
+                generation.filter.putLocal(tokenId);
+            }
+        } catch (NumberFormatException e) {
+            log.warn("无效的token吊销消息：{}", body);
+        }
+    }
+
+    /**
+     * 定时从Redis同步布隆过滤器，兜底丢失的通知；顺便删掉已经过期的吊销记录
+     * Redis里的位图没了（被清空）就按没过期的记录重建
+     */
+    @Scheduled(fixedDelayString = "${hmdp.login.token.sync-interval:60000}")
+    public void sync() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            stringRedisTemplate.opsForZSet().removeRangeByScore(LOGIN_REVOKED_KEY, 0, nowSeconds());
+            Generation cur = ready ? currentGeneration() : null;
+            Generation prev = previous;
+            if (cur == null || !cur.filter.syncFromRedis() || !prev.filter.syncFromRedis()) {
+                init();
+            }
+        } catch (Exception e) {
+            log.error("token吊销布隆过滤器同步失败", e);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Generation cur = current;
+        Map<String, Object> stats = cur == null ? new LinkedHashMap<>() : cur.filter.stats();
+        stats.put("generation", cur == null ? null : cur.number);
+        stats.put("enabled", enabled);
+        stats.put("ready", ready);
+        stats.put("verified", verified.sum());
+        stats.put("revokedCheck", revokedCheck.sum());
+        stats.put("reissued", reissued.sum());
+        return stats;
+    }
+
+    //当前代或上一代的布隆过滤器判断可能吊销了；过滤器不可用时返回true，由调用方查Redis
+    private boolean mightBeRevoked(long tokenId) {
+        if (!ready) {
+            return true;
+        }
+        Generation cur = currentGeneration();
+        if (cur == null) {
+            return true;
+        }
+        Generation prev = previous;
+        return cur.filter.mightContain(tokenId) || prev.filter.mightContain(tokenId);
+    }
+
+    //当前代，跨代时切换：当前代变成上一代，新建当前代；切换失败返回null
+    private Generation currentGeneration() {
+        long generation = generation(nowSeconds());
+        Generation cur = current;
+        if (cur != null && cur.number == generation) {
+            return cur;
+        }
+        synchronized (this) {
+            if (current != null && current.number == generation) {
+                return current;
+            }
+            try {
+                Generation prev = current != null && current.number == generation - 1 ? current : load(generation - 1);
+                cur = load(generation);
+                previous = prev;
+                current = cur;
+                return cur;
+            } catch (Exception e) {
+                ready = false;
+                log.error("token吊销布隆过滤器切换失败，暂时每次查Redis", e);
+                return null;
+            }
+        }
+    }
+
+    //第g代：吊销时间在 [g * ttl, (g + 1) * ttl) 的token，也就是吊销记录的分数在 [(g + 1) * ttl, (g + 2) * ttl)
+    private Generation load(long generation) {
+        RedisBloomFilter filter = new RedisBloomFilter(stringRedisTemplate,
+                LOGIN_REVOKED_BLOOM_KEY + generation + ":", revokedExpectedInsertions, revokedFpp);
+        // 1.用这一代的吊销记录构建，再合并Redis里的位图（其他实例加的）
+        Set<String> ids = stringRedisTemplate.opsForZSet().rangeByScore(LOGIN_REVOKED_KEY,
+                (generation + 1) * ttlSeconds, (generation + 2) * ttlSeconds - 1);
+        filter.build(ids == null ? Collections.emptyList() : ids.stream().map(Long::valueOf).collect(Collectors.toList()));
+        filter.syncFromRedis();
+        // 2.第g+1代结束后不再使用
+        filter.expireAt((generation + 2) * ttlSeconds + GENERATION_GRACE_SECONDS);
+        return new Generation(generation, filter);
+    }
+
+    private long generation(long epochSeconds) {
+        return epochSeconds / ttlSeconds;
+    }
+
+    private String sign(UserDTO user, long tokenId, long expireAt) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            out.writeLong(user.getId());
+            out.writeLong(tokenId);
+            out.writeLong(expireAt);
+            out.writeUTF(StrUtil.nullToEmpty(user.getNickName()));
+            out.writeUTF(StrUtil.nullToEmpty(user.getIcon()));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] payload = bytes.toByteArray();
+        return ENCODER.encodeToString(payload) + "." + ENCODER.encodeToString(signature(payload));
+    }
+
+    private Session decode(String token) {
+        int dot = token.indexOf('.');
+        if (dot <= 0) {
+            return null;
+        }
+        try {
+            byte[] payload = DECODER.decode(token.substring(0, dot));
+            byte[] signature = DECODER.decode(token.substring(dot + 1));
+            // 常量时间比较，避免按耗时猜签名
+            if (!MessageDigest.isEqual(signature, signature(payload))) {
+                return null;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            if (in.readByte() != VERSION) {
+                return null;
+            }
+            UserDTO user = new UserDTO();
+            user.setId(in.readLong());
+            long tokenId = in.readLong();
+            long expireAt = in.readLong();
+            user.setNickName(StrUtil.emptyToNull(in.readUTF()));
+            user.setIcon(StrUtil.emptyToNull(in.readUTF()));
+            return new Session(user, tokenId, expireAt);
+        } catch (IllegalArgumentException | IOException e) {
+            // base64格式不对、内容不完整
+            return null;
+        }
+    }
+
+    private byte[] signature(byte[] payload) {
+        return Arrays.copyOf(macs.get().doFinal(payload), SIGNATURE_BYTES);
+    }
+
+    private static long nowSeconds() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    /**
+     * 一代吊销布隆过滤器
+     */
+    private static class Generation {
+        private final long number;
+        private final RedisBloomFilter filter;
+
+        Generation(long number, RedisBloomFilter filter) {
+            this.number = number;
+            this.filter = filter;
+        }
+    }
+
+    /**
+     * 解析出来的token内容
+     */
+    @Getter
+    public static class Session {
+        private final UserDTO user;
+        private final long tokenId;
+        //过期时间（秒）
+        private final long expireAt;
+
+        Session(UserDTO user, long tokenId, long expireAt) {
+            this.user = user;
+            this.tokenId = tokenId;
+            this.expireAt = expireAt;
+        }
+    }
+}
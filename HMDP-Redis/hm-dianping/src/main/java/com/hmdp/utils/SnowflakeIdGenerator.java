@@ -0,0 +1,190 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * 纯本地生成id（雪花算法的思路），生成id不访问Redis
+ * id结构和RedisIdWorker保持一致，高32位是秒级时间戳，低32位拆成：
+ *  1位标记（恒为1，和Redis计数器生成的序列号区分开，计数器一天到不了2的31次方）
+ *  10位机器号（启动时从Redis租一个，心跳续期；连续两次没续上就不再用它发号，重新租，防止过期后被别人租走发出重复的id）
+ *  21位序列号（每台机器每秒200万个）
+ * 时钟回拨或者这一秒的序列号用完时，借用后面的秒继续发号，借得太多就等时钟追上来
+ */
+@Slf4j
+class SnowflakeIdGenerator {
+
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 21;
+    private static final int MAX_WORKER_ID = (1 << WORKER_BITS) - 1;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+    private static final long LOCAL_FLAG = 1L << 31;
+    private static final int COUNT_BITS = 32;
+    //最多借用多少秒的未来时间
+    private static final long MAX_BORROW_SECONDS = 3;
+    //借用超过上限后最多等多少秒，再久说明时钟回拨太大，直接报错
+    private static final long MAX_WAIT_SECONDS = 5;
+    //机器号租约
+    private static final String WORKER_KEY_PREFIX = "id:worker:";
+    private static final long LEASE_TTL_SECONDS = 30;
+    //距离上次续期成功超过这么久（漏了两次心跳）就不再相信租约，留出10秒余量给时钟误差和网络延迟
+    private static final long LEASE_TRUST_NANOS = TimeUnit.SECONDS.toNanos(LEASE_TTL_SECONDS * 2 / 3);
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if (redis.call('get', KEYS[1]) == ARGV[1]) then return redis.call('expire', KEYS[1], ARGV[2]) end return 0",
+            Long.class);
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if (redis.call('get', KEYS[1]) == ARGV[1]) then return redis.call('del', KEYS[1]) end return 0",
+            Long.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    //当前时间戳（秒，已经减去了开始时间）
+    private final LongSupplier clock;
+    //租约的持有者标识
+    private final String leaseToken = UUID.randomUUID().toString(true);
+    private ScheduledExecutorService heartbeat;
+
+    private volatile int workerId = -1;
+    //上次租到或续期成功的时间（System.nanoTime，取发送命令之前的时间，比Redis上的过期时间算得早）
+    private volatile long lastRenewed;
+    private long lastTimestamp = -1;
+    private long sequence = 0;
+
+    SnowflakeIdGenerator(StringRedisTemplate stringRedisTemplate, LongSupplier clock) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.clock = clock;
+    }
+
+    synchronized long nextId() {
+        int worker = workerId;
+        if (worker >= 0 && System.nanoTime() - lastRenewed > LEASE_TRUST_NANOS) {
+            // 续期一直失败（比如Redis连不上），租约快过期了，别人可能会租到同一个机器号，不能再用它发号
+            log.error("机器号 {} 已经 {} 秒没有续期成功，重新租用", worker,
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - lastRenewed));
+            workerId = -1;
+            worker = -1;
+        }
+        if (worker < 0) {
+            leaseWorkerId();
+            worker = workerId;
+        }
+        long now = clock.getAsLong();
+        long timestamp = Math.max(now, lastTimestamp);
+        if (timestamp == lastTimestamp) {
+            // 同一秒（或者时钟回拨了，继续用上次的秒）
+            if (++sequence > MAX_SEQUENCE) {
+                // 这一秒的序列号用完了，借用下一秒
+                timestamp++;
+                sequence = 0;
+            }
+        } else {
+            sequence = 0;
+        }
+        // 借用的太多了，等时钟追上来
+        if (timestamp - now > MAX_BORROW_SECONDS) {
+            waitUntil(timestamp - MAX_BORROW_SECONDS, now);
+        }
+        lastTimestamp = timestamp;
+        return timestamp << COUNT_BITS | LOCAL_FLAG | (long) worker << SEQUENCE_BITS | sequence;
+    }
+
+    private void waitUntil(long target, long now) {
+        if (target - now > MAX_WAIT_SECONDS) {
+            throw new IllegalStateException("时钟回拨过大，拒绝生成id，回拨了 " + (target - now) + " 秒");
+        }
+        log.warn("时钟回拨或序列号耗尽，等待 {} 秒", target - now);
+        while (clock.getAsLong() < target) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待时钟时被中断", e);
+            }
+        }
+    }
+
+    //**********************************************************************机器号租约
+    /**
+     * 启动时就租好机器号，第一次发号不用在锁里挨个SETNX
+     */
+    synchronized void start() {
+        leaseWorkerId();
+    }
+
+    private synchronized void leaseWorkerId() {
+        if (workerId >= 0) {
+            return;
+        }
+        // 从随机位置开始找空闲的机器号，减少多台机器同时启动时的冲突
+        int start = ThreadLocalRandom.current().nextInt(MAX_WORKER_ID + 1);
+        for (int i = 0; i <= MAX_WORKER_ID; i++) {
+            int id = (start + i) & MAX_WORKER_ID;
+            long begin = System.nanoTime();
+            Boolean ok = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(WORKER_KEY_PREFIX + id, leaseToken, LEASE_TTL_SECONDS, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(ok)) {
+                lastRenewed = begin;
+                workerId = id;
+                log.info("租到机器号 {}", id);
+                startHeartbeat();
+                return;
+            }
+        }
+        throw new IllegalStateException("没有空闲的机器号");
+    }
+
+    private void startHeartbeat() {
+        if (heartbeat != null) {
+            return;
+        }
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "id-worker-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = LEASE_TTL_SECONDS / 3;
+        heartbeat.scheduleAtFixedRate(this::renew, period, period, TimeUnit.SECONDS);
+    }
+
+    private void renew() {
+        int id = workerId;
+        if (id < 0) {
+            return;
+        }
+        try {
+            long begin = System.nanoTime();
+            Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT,
+                    Collections.singletonList(WORKER_KEY_PREFIX + id), leaseToken, String.valueOf(LEASE_TTL_SECONDS));
+            if (renewed == null || renewed == 0) {
+                // 租约丢了（比如Redis卡顿太久过期后被别人租走），下次发号时重新租
+                log.error("机器号 {} 的租约已失效，重新租用", id);
+                workerId = -1;
+            } else {
+                lastRenewed = begin;
+            }
+        } catch (Exception e) {
+            // 没续上，超过 LEASE_TRUST_NANOS 还没续上的话 nextId 会停止使用这个机器号
+            log.error("机器号 {} 续期失败", id, e);
+        }
+    }
+
+    void release() {
+        int id = workerId;
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+        }
+        if (id >= 0) {
+            workerId = -1;
+            stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(WORKER_KEY_PREFIX + id), leaseToken);
+        }
+    }
+}
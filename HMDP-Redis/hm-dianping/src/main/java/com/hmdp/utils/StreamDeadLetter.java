@@ -0,0 +1,80 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 消息队列的死信处理
+ * 单条消息处理失败时不确认，留在pending-list重试；投递次数（XPENDING里的delivery count）达到上限后
+ * 把原消息转存到死信队列 {stream}.dead（附上失败原因），再确认原消息，不再阻塞后面的消息
+ * 数据库、Redis连接失败这类暂时性故障不算消息本身的问题，直接抛出，由调用方稍后整批重试
+ */
+@Slf4j
+@Component
+public class StreamDeadLetter {
+
+    public static final String DEAD_SUFFIX = ".dead";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final LongAdder deadLetters = new LongAdder();
+
+    public StreamDeadLetter(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 单条消息处理失败后调用
+     *
+     * @return true 已经转入死信队列并确认；false 留在pending-list等待重试
+     */
+    public boolean onFailure(Consumer consumer, MapRecord<String, Object, Object> record, Exception e, int maxDeliveries) {
+        if (isTransient(e)) {
+            throw e instanceof RuntimeException ? (RuntimeException) e : new IllegalStateException(e);
+        }
+        String stream = record.getStream();
+        // 1.查询投递次数 XPENDING stream group id id 1 consumer
+        PendingMessages pending = stringRedisTemplate.opsForStream().pending(
+                stream, consumer, Range.closed(record.getId().getValue(), record.getId().getValue()), 1);
+        long deliveries = pending.isEmpty() ? 0 : pending.get(0).getTotalDeliveryCount();
+        if (deliveries < maxDeliveries) {
+            log.warn("消息处理失败，稍后重试，stream：{}，id：{}，第{}次", stream, record.getId(), deliveries, e);
+            return false;
+        }
+        // 2.转存到死信队列 XADD {stream}.dead * 原字段... error x consumer x
+        Map<String, String> message = new HashMap<>();
+        record.getValue().forEach((k, v) -> message.put(k.toString(), v == null ? "" : v.toString()));
+        message.put("sourceId", record.getId().getValue());
+        message.put("consumer", consumer.getName());
+        message.put("error", String.valueOf(e));
+        stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(stream + DEAD_SUFFIX).ofMap(message));
+        // 3.确认原消息
+        stringRedisTemplate.opsForStream().acknowledge(stream, consumer.getGroup(), record.getId());
+        deadLetters.increment();
+        log.error("消息处理失败{}次，转入死信队列 {}，id：{}，内容：{}", deliveries, stream + DEAD_SUFFIX, record.getId(), record.getValue(), e);
+        return true;
+    }
+
+    public long deadLetters() {
+        return deadLetters.sum();
+    }
+
+    //连接失败（包括Redis）、超时、死锁这类重试可能成功的异常
+    private boolean isTransient(Exception e) {
+        return e instanceof TransientDataAccessException
+                || e instanceof RecoverableDataAccessException
+                || e instanceof DataAccessResourceFailureException;
+    }
+}
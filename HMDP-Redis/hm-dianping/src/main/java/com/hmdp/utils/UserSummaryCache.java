@@ -0,0 +1,189 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.User;
+import com.hmdp.mapper.UserMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.USER_SUMMARY_INVALIDATE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.USER_SUMMARY_KEY;
+import static com.hmdp.utils.RedisConstants.USER_SUMMARY_TTL;
+
+/**
+ * 用户简要信息（id、昵称、头像）的两级缓存
+ * 1.本地Caffeine
+ * 2.Redis hash user:summary:{id}（nickName、icon）
+ * 列表页一次取一批用户：本地未命中的用一个管道 HGETALL，Redis也没有的用一条 IN 查询补齐，再用一个管道写回Redis
+ * 用户修改昵称、头像后删除两级缓存，并通知其他实例清除本地缓存
+ */
+@Slf4j
+@Component
+public class UserSummaryCache implements MessageListener {
+
+    private static final String FIELD_NICK_NAME = "nickName";
+    private static final String FIELD_ICON = "icon";
+
+    private final UserMapper userMapper;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final Cache<Long, UserDTO> cache;
+    //Redis命中、查数据库的用户数
+    private final LongAdder redisHit = new LongAdder();
+    private final LongAdder dbLoad = new LongAdder();
+
+    public UserSummaryCache(UserMapper userMapper,
+                            StringRedisTemplate stringRedisTemplate,
+                            @Value("${hmdp.user-summary.maximum-size:10000}") long maximumSize,
+                            @Value("${hmdp.user-summary.ttl-seconds:300}") long ttlSeconds) {
+        this.userMapper = userMapper;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * 批量获取，不存在的用户不在返回的map中
+     */
+    public Map<Long, UserDTO> getAll(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return new HashMap<>();
+        }
+        return cache.getAll(ids, this::loadAll);
+    }
+
+    /**
+     * 按给定的id顺序返回，跳过不存在的用户
+     */
+    public List<UserDTO> list(List<Long> ids) {
+        Map<Long, UserDTO> users = getAll(ids);
+        List<UserDTO> result = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            UserDTO user = users.get(id);
+            if (user != null) {
+                result.add(user);
+            }
+        }
+        return result;
+    }
+
+    public UserDTO get(Long id) {
+        return cache.get(id, key -> loadAll(Collections.singleton(key)).get(key));
+    }
+
+    /**
+     * 用户信息修改后调用：删除Redis和本地缓存，并通知其他实例
+     */
+    public void invalidate(Long id) {
+        stringRedisTemplate.delete(USER_SUMMARY_KEY + id);
+        cache.invalidate(id);
+        stringRedisTemplate.convertAndSend(USER_SUMMARY_INVALIDATE_CHANNEL, id.toString());
+    }
+
+    /**
+     * 收到其他实例用户信息修改的通知，消息体是用户id
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            cache.invalidate(Long.parseLong(body));
+        } catch (NumberFormatException e) {
+            log.warn("无效的用户缓存失效消息：{}", body);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("localSize", cache.estimatedSize());
+        stats.put("localHitRate", cache.stats().hitRate());
+        stats.put("redisHit", redisHit.sum());
+        stats.put("dbLoad", dbLoad.sum());
+        return stats;
+    }
+
+    //本地未命中的：先查Redis，再查数据库
+    private Map<Long, UserDTO> loadAll(Iterable<? extends Long> keys) {
+        List<Long> ids = new ArrayList<>();
+        keys.forEach(ids::add);
+        // 1.一个管道 HGETALL user:summary:{id} ...
+        List<Object> hashes = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long id : ids) {
+                connection.hashCommands().hGetAll((USER_SUMMARY_KEY + id).getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        Map<Long, UserDTO> result = new HashMap<>(ids.size() * 2);
+        List<Long> missed = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            Map<?, ?> hash = (Map<?, ?>) hashes.get(i);
+            if (hash == null || hash.isEmpty()) {
+                missed.add(ids.get(i));
+                continue;
+            }
+            UserDTO dto = new UserDTO();
+            dto.setId(ids.get(i));
+            dto.setNickName(StrUtil.emptyToNull((String) hash.get(FIELD_NICK_NAME)));
+            dto.setIcon(StrUtil.emptyToNull((String) hash.get(FIELD_ICON)));
+            result.put(dto.getId(), dto);
+        }
+        redisHit.add(result.size());
+        if (missed.isEmpty()) {
+            return result;
+        }
+        // 2.Redis也没有的一次查出来 select id, nick_name, icon from tb_user where id in (...)
+        List<User> users = userMapper.selectList(new QueryWrapper<User>()
+                .select("id", "nick_name", "icon")
+                .in("id", missed));
+        dbLoad.add(users.size());
+        if (users.isEmpty()) {
+            return result;
+        }
+        for (User user : users) {
+            UserDTO dto = new UserDTO();
+            dto.setId(user.getId());
+            dto.setNickName(user.getNickName());
+            dto.setIcon(user.getIcon());
+            result.put(user.getId(), dto);
+        }
+        // 3.一个管道写回Redis HSET + EXPIRE，null写成空串（读取时再转回null）
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (User user : users) {
+                byte[] key = (USER_SUMMARY_KEY + user.getId()).getBytes(StandardCharsets.UTF_8);
+                Map<byte[], byte[]> hash = new HashMap<>(4);
+                hash.put(FIELD_NICK_NAME.getBytes(StandardCharsets.UTF_8), bytes(user.getNickName()));
+                hash.put(FIELD_ICON.getBytes(StandardCharsets.UTF_8), bytes(user.getIcon()));
+                connection.hashCommands().hMSet(key, hash);
+                connection.keyCommands().expire(key, TimeUnit.MINUTES.toSeconds(USER_SUMMARY_TTL));
+            }
+            return null;
+        });
+        return result;
+    }
+
+    private static byte[] bytes(String value) {
+        return (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,36 @@
+-- 点赞/取消点赞（write-behind模式），一次往返完成：ZSET记录点赞的人，增量hash记录还没写入数据库的点赞数变化
+-- 1.参数列表
+-- 笔记id
+local blogId = ARGV[1]
+-- 用户id
+local userId = ARGV[2]
+-- 点赞时间
+local now = ARGV[3]
+
+-- 2.数据key
+-- 点赞用户的zset
+local likedKey = 'blog:liked:' .. blogId
+-- 点赞数增量hash（field是笔记id）
+local deltaKey = 'blog:liked:delta'
+-- 热门笔记排行榜
+local hotKey = 'blog:hot'
+
+-- 3.脚本业务
+if (redis.call('zscore', likedKey, userId)) then
+    -- 3.1.已点赞，取消 zrem likedKey userId
+    redis.call('zrem', likedKey, userId)
+    redis.call('hincrby', deltaKey, blogId, -1)
+    -- 3.2.在排行榜上的同步减分
+    if (redis.call('zscore', hotKey, blogId)) then
+        redis.call('zincrby', hotKey, -1, blogId)
+    end
+    return -1
+end
+-- 3.3.未点赞，点赞 zadd likedKey now userId
+redis.call('zadd', likedKey, now, userId)
+redis.call('hincrby', deltaKey, blogId, 1)
+-- 3.4.在排行榜上的同步加分
+if (redis.call('zscore', hotKey, blogId)) then
+    redis.call('zincrby', hotKey, 1, blogId)
+end
+return 1
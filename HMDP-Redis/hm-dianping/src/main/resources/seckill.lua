@@ -11,10 +11,14 @@ local orderId = ARGV[3]
 local stockKey = 'seckill:stock:' .. voucherId
 -- 订单key
 local orderKey = 'seckill:order:' .. voucherId
+-- 分片数key（存在说明这张券的库存是分片存储的，分片分布在不同的slot，由 SeckillStockSharding 逐个分片处理）
+if (redis.call('exists', 'seckill:shards:' .. voucherId) == 1) then
+    return 3
+end
 
 -- 3.脚本业务
--- 3.1.判断库存是否充足 get stockKey
-if(tonumber(redis.call('get', stockKey)) <= 0) then
+-- 3.1.判断库存是否充足 get stockKey（key不存在按0算，等对账任务重建）
+if((tonumber(redis.call('get', stockKey)) or 0) <= 0) then
     -- 3.2.库存不足，返回1
     return 1
 end
@@ -29,4 +33,4 @@ redis.call('incrby', stockKey, -1)
 redis.call('sadd', orderKey, userId)
 -- 3.6.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
 redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
-return 0
\ No newline at end of file
+return 0
@@ -0,0 +1,8 @@
+-- 分片模式：从其他分片借一个库存
+-- KEYS[1] 分片库存 seckill:stock:{券id:分片}
+-- 返回 1借到了，0这个分片也没有库存
+if ((tonumber(redis.call('get', KEYS[1])) or 0) > 0) then
+    redis.call('incrby', KEYS[1], -1)
+    return 1
+end
+return 0
@@ -0,0 +1,25 @@
+-- 秒杀库存修复（对账发现Redis和数据库不一致时执行），先比较再写入，期间有人下单就放弃
+-- KEYS[1] 库存key，KEYS[2] 订单集合（分片模式是同一个分片的库存和订单集合，在同一个slot）
+-- ARGV[1] 对账时读到的库存（空串表示key不存在）
+-- ARGV[2] 修复后的库存
+-- ARGV[3] 要补回订单集合的用户数m，后面m个是要补回的用户，再后面是要删除的用户
+
+-- 1.库存和对账时读到的不一样，说明期间有人下单，放弃这次修复，下一轮重新对账
+local current = redis.call('get', KEYS[1])
+if ((current or '') ~= ARGV[1]) then
+    return 0
+end
+-- 2.写入修复后的库存
+if (ARGV[2] ~= ARGV[1]) then
+    redis.call('set', KEYS[1], ARGV[2])
+end
+-- 3.补回数据库里有订单的用户
+local m = tonumber(ARGV[3])
+for i = 1, m do
+    redis.call('sadd', KEYS[2], ARGV[3 + i])
+end
+-- 4.删除订单丢失的用户（扣了Redis库存但没落库），让他可以重新下单
+for i = 4 + m, #ARGV do
+    redis.call('srem', KEYS[2], ARGV[i])
+end
+return 1
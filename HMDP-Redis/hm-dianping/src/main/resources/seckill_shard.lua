@@ -0,0 +1,17 @@
+-- 分片模式：在用户自己的分片上下单，KEYS都在同一个slot
+-- KEYS[1] 分片库存 seckill:stock:{券id:分片}，KEYS[2] 分片订单集合 seckill:order:{券id:分片}
+-- ARGV[1] 用户id
+-- 返回 0扣减成功，2重复下单，3分片没有库存（已经记下用户占位，需要去其他分片借）
+
+-- 1.判断用户是否已下单
+if (redis.call('sismember', KEYS[2], ARGV[1]) == 1) then
+    return 2
+end
+-- 2.记下用户（没库存也先占位，同一个用户并发的第二个请求会返回2）
+redis.call('sadd', KEYS[2], ARGV[1])
+-- 3.有库存就扣减（key不存在按0算）
+if ((tonumber(redis.call('get', KEYS[1])) or 0) > 0) then
+    redis.call('incrby', KEYS[1], -1)
+    return 0
+end
+return 3
@@ -0,0 +1,117 @@
+package com.hmdp;
+
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.RedisData;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * 缓存序列化对比：Hutool json 与 二进制格式的编解码耗时和体积
+ * 没有引入JMH，用预热+多轮计时粗略对比
+ */
+public class CacheCodecTest {
+
+    private static final int WARMUP = 20000;
+    private static final int ROUNDS = 200000;
+
+    private final CacheCodec json = new JsonCacheCodec();
+    private final CacheCodec binary = new BinaryCacheCodec(512);
+
+    @Test
+    void testRoundTrip() {
+        Shop shop = newShop();
+        Assertions.assertEquals(shop, binary.decode(binary.encode(shop), Shop.class));
+        Assertions.assertEquals(shop, json.decode(json.encode(shop), Shop.class));
+
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(20);
+        RedisData redisData = binary.decodeWithExpire(binary.encodeWithExpire(shop, expireTime), Shop.class);
+        Assertions.assertEquals(expireTime, redisData.getExpireTime());
+        Assertions.assertEquals(shop, redisData.getData());
+
+        // 类型（字段）对不上当作未命中
+        Assertions.assertNull(binary.decode(binary.encode(shop), Blog.class));
+        // 二进制格式只认自己写的，json的数据交给json解析
+        Assertions.assertFalse(binary.accepts(json.encode(shop)));
+    }
+
+    @Test
+    void testCompress() {
+        Shop shop = newShop();
+        StringBuilder images = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            images.append("https://qcloud.dpfile.com/pc/shop-image-").append(i).append(".jpg,");
+        }
+        shop.setImages(images.toString());
+        byte[] plain = new BinaryCacheCodec(Integer.MAX_VALUE).encode(shop);
+        byte[] compressed = binary.encode(shop);
+        System.out.println("plain bytes = " + plain.length + ", compressed bytes = " + compressed.length);
+        Assertions.assertTrue(compressed.length < plain.length);
+        Assertions.assertEquals(shop, binary.decode(compressed, Shop.class));
+    }
+
+    /**
+     * 编解码耗时，耗时较长，默认不执行
+     * mvn test -Dtest=CacheCodecTest#benchmarkCodec -Dbenchmark=true
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    void benchmarkCodec() {
+        Shop shop = newShop();
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(20);
+        for (CacheCodec codec : new CacheCodec[]{json, binary}) {
+            byte[] bytes = codec.encode(shop);
+            byte[] withExpire = codec.encodeWithExpire(shop, expireTime);
+            // 预热
+            for (int i = 0; i < WARMUP; i++) {
+                codec.decode(codec.encode(shop), Shop.class);
+                codec.decodeWithExpire(withExpire, Shop.class);
+            }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                codec.encode(shop);
+            }
+            long t2 = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                codec.decode(bytes, Shop.class);
+            }
+            long t3 = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                codec.decodeWithExpire(withExpire, Shop.class);
+            }
+            long t4 = System.nanoTime();
+            System.out.println(codec.getClass().getSimpleName()
+                    + " bytes = " + bytes.length
+                    + ", encode ns = " + (t2 - t1) / ROUNDS
+                    + ", decode ns = " + (t3 - t2) / ROUNDS
+                    + ", decodeWithExpire ns = " + (t4 - t3) / ROUNDS);
+        }
+    }
+
+    private Shop newShop() {
+        LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(now)
+                .setUpdateTime(now);
+    }
+}
@@ -0,0 +1,78 @@
+package com.hmdp;
+
+import com.hmdp.mapper.FollowMapper;
+import com.hmdp.utils.FollowGraphCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.FOLLOWS_KEY;
+import static com.hmdp.utils.RedisConstants.FOLLOWS_VERSION_KEY;
+
+/**
+ * 关注关系缓存：加载时写回Redis，和关注/取关的删除有竞争时不能留下旧的列表
+ * 数据库用mock代替，需要Redis（见LocalRedis）
+ */
+public class FollowGraphCacheTest {
+
+    private static final long USER_ID = 990301L;
+
+    private final StringRedisTemplate redis = LocalRedis.template();
+    private FollowMapper followMapper;
+    private FollowGraphCache cache;
+    //数据库里关注的人
+    private final List<Object> follows = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        cleanUp();
+        follows.clear();
+        follows.addAll(Arrays.asList(3L, 1L, 2L));
+        followMapper = Mockito.mock(FollowMapper.class);
+        cache = new FollowGraphCache(followMapper, redis, 10000, 60);
+    }
+
+    @AfterEach
+    void tearDown() {
+        cleanUp();
+    }
+
+    @Test
+    void testLoadAndWriteBack() {
+        Mockito.when(followMapper.selectObjs(Mockito.any())).thenAnswer(invocation -> new ArrayList<>(follows));
+        Assertions.assertArrayEquals(new long[]{1, 2, 3}, cache.follows(USER_ID));
+        Assertions.assertEquals(3L, redis.opsForSet().size(FOLLOWS_KEY + USER_ID));
+        Assertions.assertTrue(redis.getExpire(FOLLOWS_KEY + USER_ID) > 0);
+    }
+
+    @Test
+    void testFollowWhileLoading() {
+        // 查数据库时读到的是关注4之前的列表，返回之前另一个实例上关注4的事务提交并删除了缓存
+        FollowGraphCache other = new FollowGraphCache(followMapper, redis, 10000, 60);
+        Mockito.when(followMapper.selectObjs(Mockito.any())).thenAnswer(invocation -> {
+            List<Object> old = new ArrayList<>(follows);
+            follows.add(4L);
+            other.invalidate(USER_ID);
+            return old;
+        });
+        cache.follows(USER_ID);
+        // 旧的列表不能写回Redis
+        Assertions.assertFalse(redis.hasKey(FOLLOWS_KEY + USER_ID));
+        // 下次加载读到新的
+        Mockito.when(followMapper.selectObjs(Mockito.any())).thenAnswer(invocation -> new ArrayList<>(follows));
+        cache.invalidate(USER_ID);
+        Assertions.assertTrue(cache.isFollowing(USER_ID, 4L));
+        Assertions.assertEquals(4L, redis.opsForSet().size(FOLLOWS_KEY + USER_ID));
+    }
+
+    private void cleanUp() {
+        redis.delete(Arrays.asList(FOLLOWS_KEY + USER_ID, FOLLOWS_VERSION_KEY + USER_ID));
+    }
+}
@@ -0,0 +1,243 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.utils.GeoGrid;
+import com.hmdp.utils.NearbyShopIndex;
+import com.hmdp.utils.ShopGeoIndex;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.mockito.Mockito;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.domain.geo.GeoReference;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 本机店铺位置索引：和逐个计算距离的结果对比，以及不同店铺数下的查询耗时
+ * 除了benchmark都不需要Redis
+ */
+public class GeoGridTest {
+
+    private static final double RADIUS = 5000;
+    private static final double GRID_DEGREES = 0.01;
+    //店铺分布在杭州附近约 50km x 50km 的范围
+    private static final double MIN_X = 119.9, MIN_Y = 30.0, SPAN = 0.5;
+
+    @Test
+    void testWithinAndNearest() {
+        Shops shops = new Shops(10_000, 1);
+        GeoGrid grid = GeoGrid.build(GRID_DEGREES, shops.ids, shops.xs, shops.ys);
+        Assertions.assertEquals(10_000, grid.size());
+        Random random = new Random(2);
+        for (int q = 0; q < 100; q++) {
+            double x = MIN_X + random.nextDouble() * SPAN, y = MIN_Y + random.nextDouble() * SPAN;
+            List<NearbyShopIndex.Nearby> expected = shops.scan(x, y, RADIUS);
+            assertSame(expected, grid.within(x, y, RADIUS));
+            assertSame(expected.subList(0, Math.min(10, expected.size())), grid.nearest(x, y, 10, RADIUS));
+        }
+    }
+
+    @Test
+    void testPutAndRemove() {
+        GeoGrid grid = new GeoGrid(GRID_DEGREES);
+        grid.put(1, 120.1, 30.2);
+        grid.put(2, 120.1001, 30.2001);
+        grid.put(3, 120.2, 30.3);
+        Assertions.assertEquals(2, grid.within(120.1, 30.2, 100).size());
+        // 修改位置：从旧格子删除，加到新格子
+        grid.remove(1, 120.1, 30.2);
+        grid.put(1, 120.2001, 30.3001);
+        List<NearbyShopIndex.Nearby> near = grid.within(120.2, 30.3, 100);
+        Assertions.assertEquals(2, near.size());
+        Assertions.assertEquals(3, near.get(0).getId());
+        Assertions.assertEquals(1, near.get(1).getId());
+        // 同一个格子里更新坐标
+        grid.put(2, 120.1002, 30.2002);
+        Assertions.assertEquals(3, grid.size());
+        grid.remove(2, 120.1002, 30.2002);
+        Assertions.assertTrue(grid.within(120.1, 30.2, 100).isEmpty());
+        Assertions.assertEquals(2, grid.size());
+    }
+
+    @Test
+    void testReloadDuringLoad() {
+        // 全量加载查询数据库的时候，店铺1从(120.1, 30.2)移到了(120.3, 30.4)，并且已经处理了变化
+        Shop moved = shop(1L, 120.3, 30.4);
+        ShopGeoIndex[] index = new ShopGeoIndex[1];
+        ShopMapper shopMapper = (ShopMapper) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{ShopMapper.class},
+                (proxy, method, args) -> {
+                    if ("selectList".equals(method.getName())) {
+                        index[0].changed(1L);
+                        return Arrays.asList(shop(1L, 120.1, 30.2), shop(2L, 120.1001, 30.2001));
+                    }
+                    if ("selectOne".equals(method.getName())) {
+                        return moved;
+                    }
+                    return null;
+                });
+        index[0] = new ShopGeoIndex(shopMapper, Mockito.mock(StringRedisTemplate.class), "local", GRID_DEGREES);
+        index[0].init();
+        // 加载开始时查到的旧位置不能覆盖掉这次变化
+        Assertions.assertTrue(index[0].isReady());
+        List<NearbyShopIndex.Nearby> old = index[0].within(1, 120.1, 30.2, 100);
+        Assertions.assertEquals(1, old.size());
+        Assertions.assertEquals(2, old.get(0).getId());
+        Assertions.assertEquals(1, index[0].within(1, 120.3, 30.4, 100).get(0).getId());
+    }
+
+    /**
+     * 不同店铺数下本机索引和Redis GEOSEARCH的查询耗时，耗时较长，默认不执行
+     * mvn test -Dtest=GeoGridTest#benchmarkShopCount -Dbenchmark=true
+     * 同样的店铺写入Redis（见LocalRedis）临时的key，对比 GEOSEARCH BYRADIUS 5km ASC（以及COUNT 10）
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    void benchmarkShopCount() {
+        StringRedisTemplate redis = LocalRedis.template();
+        List<String> rows = new ArrayList<>();
+        for (int count : new int[]{10_000, 100_000, 1_000_000}) {
+            Shops shops = new Shops(count, count);
+            long begin = System.nanoTime();
+            GeoGrid grid = GeoGrid.build(GRID_DEGREES, shops.ids, shops.xs, shops.ys);
+            long buildMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+            double[][] points = new double[1000][];
+            Random random = new Random(count + 1);
+            for (int i = 0; i < points.length; i++) {
+                points[i] = new double[]{MIN_X + random.nextDouble() * SPAN, MIN_Y + random.nextDouble() * SPAN};
+            }
+            // 预热
+            for (double[] p : points) {
+                grid.within(p[0], p[1], RADIUS);
+                grid.nearest(p[0], p[1], 10, RADIUS);
+            }
+            long withinNanos = 0, nearestNanos = 0, found = 0;
+            for (double[] p : points) {
+                long t0 = System.nanoTime();
+                found += grid.within(p[0], p[1], RADIUS).size();
+                long t1 = System.nanoTime();
+                grid.nearest(p[0], p[1], 10, RADIUS);
+                nearestNanos += System.nanoTime() - t1;
+                withinNanos += t1 - t0;
+            }
+            // 逐个计算距离作为对照，点少一些
+            long scanNanos = 0;
+            for (int i = 0; i < 20; i++) {
+                long t0 = System.nanoTime();
+                shops.scan(points[i][0], points[i][1], RADIUS);
+                scanNanos += System.nanoTime() - t0;
+            }
+            rows.add(count + " 个店铺：构建 " + buildMillis + "ms，半径5km平均 " + found / points.length + " 个，"
+                    + "半径查询 " + withinNanos / points.length / 1000 + "us，最近10个 " + nearestNanos / points.length / 1000 + "us，"
+                    + "逐个计算 " + scanNanos / 20 / 1000 + "us，" + benchmarkRedis(redis, shops, points));
+        }
+        rows.forEach(System.out::println);
+    }
+
+    //同样的店铺写入Redis GEO，查询前100个点，返回 GEOSEARCH 的平均耗时
+    private static String benchmarkRedis(StringRedisTemplate redis, Shops shops, double[][] points) {
+        String key = "shop:geo:bench";
+        redis.delete(key);
+        try {
+            Map<String, Point> members = new HashMap<>();
+            for (int i = 0; i < shops.ids.length; i++) {
+                members.put(String.valueOf(shops.ids[i]), new Point(shops.xs[i], shops.ys[i]));
+                if (members.size() == 10_000 || i == shops.ids.length - 1) {
+                    redis.opsForGeo().add(key, members);
+                    members.clear();
+                }
+            }
+            int queries = 100;
+            Distance radius = new Distance(RADIUS);
+            long radiusNanos = 0, topNanos = 0;
+            for (int round = 0; round < 2; round++) {
+                // 第一轮预热
+                radiusNanos = 0;
+                topNanos = 0;
+                for (int i = 0; i < queries; i++) {
+                    GeoReference<String> center = GeoReference.fromCoordinate(points[i][0], points[i][1]);
+                    long t0 = System.nanoTime();
+                    redis.opsForGeo().search(key, center, radius,
+                            RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().sortAscending());
+                    long t1 = System.nanoTime();
+                    redis.opsForGeo().search(key, center, radius,
+                            RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().sortAscending().limit(10));
+                    topNanos += System.nanoTime() - t1;
+                    radiusNanos += t1 - t0;
+                }
+            }
+            return "Redis半径查询 " + radiusNanos / queries / 1000 + "us，Redis最近10个 " + topNanos / queries / 1000 + "us";
+        } finally {
+            redis.delete(key);
+        }
+    }
+
+    private static Shop shop(Long id, double x, double y) {
+        Shop shop = new Shop();
+        shop.setId(id);
+        shop.setTypeId(1L);
+        shop.setX(x);
+        shop.setY(y);
+        return shop;
+    }
+
+    private static void assertSame(List<NearbyShopIndex.Nearby> expected, List<NearbyShopIndex.Nearby> actual) {
+        Assertions.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assertions.assertEquals(expected.get(i).getId(), actual.get(i).getId());
+        }
+    }
+
+    /**
+     * 随机分布的店铺
+     */
+    private static class Shops {
+        private final long[] ids;
+        private final double[] xs;
+        private final double[] ys;
+
+        Shops(int count, long seed) {
+            Random random = new Random(seed);
+            ids = new long[count];
+            xs = new double[count];
+            ys = new double[count];
+            for (int i = 0; i < count; i++) {
+                ids[i] = i + 1;
+                xs[i] = MIN_X + random.nextDouble() * SPAN;
+                ys[i] = MIN_Y + random.nextDouble() * SPAN;
+            }
+        }
+
+        //逐个计算距离
+        List<NearbyShopIndex.Nearby> scan(double x, double y, double radius) {
+            List<NearbyShopIndex.Nearby> result = new ArrayList<>();
+            for (int i = 0; i < ids.length; i++) {
+                double distance = distance(x, y, xs[i], ys[i]);
+                if (distance <= radius) {
+                    result.add(new NearbyShopIndex.Nearby(ids[i], distance));
+                }
+            }
+            result.sort(NearbyShopIndex.Nearby.ORDER);
+            return result;
+        }
+
+        private static double distance(double x1, double y1, double x2, double y2) {
+            double lat1 = Math.toRadians(y1);
+            double lat2 = Math.toRadians(y2);
+            double u = Math.sin((lat2 - lat1) / 2);
+            double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+            return 2.0 * 6372797.560856 * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.hmdp;
+
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+/**
+ * 不启动Spring容器的测试共用的Redis连接（默认本机 127.0.0.1:6379，可以用 -Dredis.host、-Dredis.port 指定）
+ * 和SomeTest一样需要Redis，连不上时直接失败，不会悄悄跳过
+ */
+public final class LocalRedis {
+
+    private static StringRedisTemplate template;
+
+    private LocalRedis() {
+    }
+
+    public static synchronized StringRedisTemplate template() {
+        if (template != null) {
+            return template;
+        }
+        String host = System.getProperty("redis.host", "127.0.0.1");
+        int port = Integer.getInteger("redis.port", 6379);
+        LettuceConnectionFactory factory = new LettuceConnectionFactory(host, port);
+        factory.afterPropertiesSet();
+        StringRedisTemplate redis = new StringRedisTemplate(factory);
+        redis.afterPropertiesSet();
+        try {
+            redis.execute(connection -> connection.ping(), true);
+        } catch (RuntimeException e) {
+            factory.destroy();
+            throw new IllegalStateException("连接Redis失败：" + host + ":" + port, e);
+        }
+        // 所有测试类共用，JVM退出时关闭
+        Runtime.getRuntime().addShutdownHook(new Thread(factory::destroy));
+        template = redis;
+        return template;
+    }
+}
@@ -0,0 +1,90 @@
+package com.hmdp;
+
+import com.hmdp.utils.NearbyShopIndex;
+import com.hmdp.utils.ShopGeoIndex;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResult;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.domain.geo.GeoReference;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
+
+/**
+ * 附近店铺按格子缓存候选：和以请求坐标直接 GEOSEARCH 的结果对比
+ * 店铺很密集、候选被 max-candidates 截断时，离格子中心远的请求也不能漏掉店铺
+ * 需要Redis（见LocalRedis），店铺写入单独的类型 shop:geo:990
+ */
+public class NearbyShopIndexTest {
+
+    private static final int TYPE_ID = 990;
+    private static final double RADIUS = 500;
+    //2000个店铺分布在约 2km x 2km 的范围
+    private static final double MIN_X = 120.14, MIN_Y = 30.24, SPAN = 0.02;
+
+    private final StringRedisTemplate redis = LocalRedis.template();
+
+    @BeforeEach
+    void setUp() {
+        redis.delete(SHOP_GEO_KEY + TYPE_ID);
+        Random random = new Random(1);
+        Map<String, Point> members = new HashMap<>();
+        for (int i = 1; i <= 2000; i++) {
+            members.put(String.valueOf(i), new Point(MIN_X + random.nextDouble() * SPAN, MIN_Y + random.nextDouble() * SPAN));
+        }
+        redis.opsForGeo().add(SHOP_GEO_KEY + TYPE_ID, members);
+    }
+
+    @AfterEach
+    void tearDown() {
+        redis.delete(SHOP_GEO_KEY + TYPE_ID);
+    }
+
+    @Test
+    void testTruncatedCell() {
+        // 每个格子只取100个候选，半径500米内平均有150多个店铺，一定会截断
+        NearbyShopIndex index = index(100);
+        assertSameAsGeoSearch(index);
+        Assertions.assertTrue((Long) index.stats().get("truncatedFallback") > 0);
+    }
+
+    @Test
+    void testCompleteCell() {
+        // 候选取全了，同一个格子的请求都走缓存
+        NearbyShopIndex index = index(10_000);
+        assertSameAsGeoSearch(index);
+        Assertions.assertEquals(0L, index.stats().get("truncatedFallback"));
+        Assertions.assertTrue((Long) index.stats().get("geoSearch") < 200);
+    }
+
+    private NearbyShopIndex index(int maxCandidates) {
+        return new NearbyShopIndex(redis, Mockito.mock(ShopGeoIndex.class), 6, maxCandidates, 30, 10000);
+    }
+
+    private void assertSameAsGeoSearch(NearbyShopIndex index) {
+        Random random = new Random(2);
+        for (int q = 0; q < 200; q++) {
+            double x = MIN_X + random.nextDouble() * SPAN, y = MIN_Y + random.nextDouble() * SPAN;
+            List<Long> expected = redis.opsForGeo().search(SHOP_GEO_KEY + TYPE_ID, GeoReference.fromCoordinate(x, y),
+                            new Distance(RADIUS), RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().sortAscending())
+                    .getContent().stream()
+                    .map(GeoResult::getContent).map(location -> Long.valueOf(location.getName()))
+                    .collect(Collectors.toList());
+            List<Long> actual = index.search(TYPE_ID, x, y, RADIUS).stream()
+                    .map(NearbyShopIndex.Nearby::getId).collect(Collectors.toList());
+            Assertions.assertEquals(expected, actual, "(" + x + ", " + y + ")");
+        }
+    }
+}
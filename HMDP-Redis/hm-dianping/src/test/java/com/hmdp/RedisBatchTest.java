@@ -0,0 +1,198 @@
+package com.hmdp;
+
+import com.hmdp.utils.RedisBatch;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.hmdp.utils.RedisConstants.BLOG_HOT_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_DELTA_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_FLUSHING_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+
+/**
+ * 批量读取Redis：用内存模拟的Redis对比逐条发送和一次管道发送的往返次数（benchmark加上固定的往返延迟对比耗时）
+ * 不需要启动Redis
+ */
+public class RedisBatchTest {
+
+    //模拟的网络往返延迟
+    private static final long RTT_MICROS = 200;
+    private static final int BLOGS = 10;
+    private static final long USER_ID = 1010;
+
+    @Test
+    void testResults() {
+        FakeRedis redis = new FakeRedis(0);
+        redis.strings.put("k", "v");
+        redis.zsets.computeIfAbsent("z", k -> new HashMap<>()).put("m", 3.0);
+        RedisBatch batch = new RedisBatch(redis);
+        CompletableFuture<String> get = batch.get("k");
+        CompletableFuture<String> missing = batch.get("none");
+        CompletableFuture<Double> score = batch.zScore("z", "m");
+        CompletableFuture<Boolean> exists = batch.exists("z");
+        Assertions.assertEquals(4, batch.size());
+        Assertions.assertFalse(get.isDone());
+        batch.execute();
+        Assertions.assertEquals(1, redis.roundTrips);
+        Assertions.assertEquals("v", get.join());
+        Assertions.assertNull(missing.join());
+        Assertions.assertEquals(3.0, score.join());
+        Assertions.assertTrue(exists.join());
+        // 没有登记命令不发送
+        batch.execute();
+        Assertions.assertEquals(1, redis.roundTrips);
+    }
+
+    @Test
+    void testFailure() {
+        RedisBatch batch = new RedisBatch(commands -> {
+            throw new IllegalStateException("连接断开");
+        });
+        CompletableFuture<String> get = batch.get("k");
+        Assertions.assertThrows(IllegalStateException.class, batch::execute);
+        Assertions.assertThrows(CompletionException.class, get::join);
+    }
+
+    @Test
+    void testRoundTrips() {
+        // 笔记列表填充（10条 x 3个命令）、排行榜分页、刷新前的检查：逐条发送每个命令一次往返，批量发送都是一次
+        long[] expected = {BLOGS * 3, 2, 2};
+        for (int i = 0; i < expected.length; i++) {
+            Assertions.assertEquals(expected[i], run(i, false, 0)[0]);
+            Assertions.assertEquals(1, run(i, true, 0)[0]);
+        }
+    }
+
+    /**
+     * 模拟每次往返200us，对比逐条发送和批量发送的耗时，默认不执行
+     * mvn test -Dtest=RedisBatchTest#benchmarkRoundTrips -Dbenchmark=true
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    void benchmarkRoundTrips() {
+        List<long[]> rows = new ArrayList<>();
+        String[] names = {"笔记列表填充是否点赞（10条，write-behind）", "/blog/hot 排行榜分页", "点赞增量刷新前的检查"};
+        for (int i = 0; i < names.length; i++) {
+            long[] before = run(i, false, RTT_MICROS);
+            long[] after = run(i, true, RTT_MICROS);
+            rows.add(new long[]{before[0], before[1], after[0], after[1]});
+        }
+        for (int i = 0; i < names.length; i++) {
+            long[] row = rows.get(i);
+            System.out.println(names[i] + "：往返 " + row[0] + " -> " + row[2]
+                    + "，耗时 " + row[1] + "us -> " + row[3] + "us");
+        }
+    }
+
+    //返回 往返次数、耗时（微秒）
+    private long[] run(int scenario, boolean batched, long rttMicros) {
+        FakeRedis redis = new FakeRedis(rttMicros);
+        for (int i = 0; i < BLOGS; i++) {
+            redis.zsets.computeIfAbsent(BLOG_LIKED_KEY + i, k -> new HashMap<>()).put(String.valueOf(USER_ID), 1.0);
+            redis.zsets.computeIfAbsent(BLOG_HOT_KEY, k -> new HashMap<>()).put(String.valueOf(i), (double) i);
+        }
+        redis.hashes.computeIfAbsent(BLOG_LIKED_DELTA_KEY, k -> new HashMap<>()).put("3", "2");
+        // 逐条发送：每登记一条就发送一次
+        RedisBatch batch = new RedisBatch(batched ? redis : commands -> {
+            List<Object> results = new ArrayList<>();
+            for (RedisBatch.Command command : commands) {
+                results.addAll(redis.execute(Collections.singletonList(command)));
+            }
+            return results;
+        });
+        long begin = System.nanoTime();
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        if (scenario == 0) {
+            for (int i = 0; i < BLOGS; i++) {
+                futures.add(batch.zScore(BLOG_LIKED_KEY + i, USER_ID));
+                futures.add(batch.hGet(BLOG_LIKED_DELTA_KEY, i));
+                futures.add(batch.hGet(BLOG_LIKED_FLUSHING_KEY, i));
+            }
+        } else if (scenario == 1) {
+            futures.add(batch.zCard(BLOG_HOT_KEY));
+            futures.add(batch.zRevRange(BLOG_HOT_KEY, 0, 9));
+        } else {
+            futures.add(batch.exists(BLOG_LIKED_FLUSHING_KEY));
+            futures.add(batch.exists(BLOG_LIKED_DELTA_KEY));
+        }
+        batch.execute();
+        futures.forEach(CompletableFuture::join);
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin);
+        if (scenario == 0) {
+            Assertions.assertEquals(1.0, futures.get(0).join());
+            Assertions.assertEquals("2", futures.get(3 * 3 + 1).join());
+        }
+        return new long[]{redis.roundTrips, micros};
+    }
+
+    /**
+     * 内存模拟的Redis，每次调用算一次往返，并等待固定的延迟
+     */
+    private static class FakeRedis implements RedisBatch.Transport {
+
+        private final long rttMicros;
+        private final Map<String, String> strings = new HashMap<>();
+        private final Map<String, Map<String, String>> hashes = new HashMap<>();
+        private final Map<String, Map<String, Double>> zsets = new HashMap<>();
+        private int roundTrips;
+
+        FakeRedis(long rttMicros) {
+            this.rttMicros = rttMicros;
+        }
+
+        @Override
+        public List<Object> execute(List<RedisBatch.Command> commands) {
+            roundTrips++;
+            if (rttMicros > 0) {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(rttMicros));
+            }
+            List<Object> results = new ArrayList<>(commands.size());
+            for (RedisBatch.Command command : commands) {
+                String key = command.getKey();
+                String[] args = command.getArgs();
+                switch (command.getName()) {
+                    case "GET":
+                        results.add(strings.get(key));
+                        break;
+                    case "EXISTS":
+                        results.add(strings.containsKey(key) || hashes.containsKey(key) || zsets.containsKey(key));
+                        break;
+                    case "HGET":
+                        results.add(hashes.getOrDefault(key, Collections.emptyMap()).get(args[0]));
+                        break;
+                    case "ZSCORE":
+                        results.add(zsets.getOrDefault(key, Collections.emptyMap()).get(args[0]));
+                        break;
+                    case "ZCARD":
+                        results.add((long) zsets.getOrDefault(key, Collections.emptyMap()).size());
+                        break;
+                    case "ZREVRANGE":
+                        Set<String> members = new LinkedHashSet<>();
+                        zsets.getOrDefault(key, Collections.emptyMap()).entrySet().stream()
+                                .sorted((a, b) -> Double.compare(b.getValue(), a.getValue()))
+                                .skip(Long.parseLong(args[0]))
+                                .limit(Long.parseLong(args[1]) - Long.parseLong(args[0]) + 1)
+                                .forEach(e -> members.add(e.getKey()));
+                        results.add(members);
+                        break;
+                    default:
+                        throw new IllegalArgumentException(command.getName());
+                }
+            }
+            return results;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.hmdp;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.utils.SeckillStockReconciler;
+import com.hmdp.utils.SeckillStockSharding;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 秒杀库存对账：在途订单 = pending-list + 还没投递的消息
+ * 多个消费者乱序确认时，最早的未确认消息之后已经确认（落库）的订单不能再算在途
+ * 数据库用mock代替，需要Redis（见LocalRedis）；消息队列用单独的key，不影响 stream.orders
+ */
+public class SeckillStockReconcilerTest {
+
+    private static final String STREAM = "test:stream.orders:reconcile";
+    private static final String GROUP = "g1";
+    private static final long VOUCHER_ID = 990201L;
+
+    private static StringRedisTemplate redis;
+
+    private SeckillStockReconciler reconciler;
+    //数据库：库存和已落库的订单用户
+    private int dbStock;
+    private final Set<Long> dbUsers = new LinkedHashSet<>();
+    //已读取的消息：用户id -> 消息id
+    private final Map<Long, String> delivered = new HashMap<>();
+
+    @BeforeAll
+    static void connect() {
+        redis = LocalRedis.template();
+    }
+
+    @BeforeEach
+    void setUp() {
+        cleanUp();
+        dbStock = 10;
+        dbUsers.clear();
+        delivered.clear();
+        redis.opsForValue().set(SECKILL_STOCK_KEY + VOUCHER_ID, "10");
+
+        SeckillVoucherMapper seckillVoucherMapper = Mockito.mock(SeckillVoucherMapper.class);
+        Mockito.when(seckillVoucherMapper.selectList(Mockito.any())).thenAnswer(invocation -> Collections.singletonList(voucher()));
+        Mockito.when(seckillVoucherMapper.selectById(Mockito.any())).thenAnswer(invocation -> voucher());
+        VoucherOrderMapper voucherOrderMapper = Mockito.mock(VoucherOrderMapper.class);
+        Mockito.when(voucherOrderMapper.selectMaps(Mockito.any())).thenAnswer(invocation -> {
+            Map<String, Object> row = new HashMap<>();
+            row.put("voucher_id", VOUCHER_ID);
+            row.put("total", (long) dbUsers.size());
+            return Collections.singletonList(row);
+        });
+        Mockito.when(voucherOrderMapper.selectObjs(Mockito.any())).thenAnswer(invocation -> new ArrayList<Object>(dbUsers));
+        RedissonClient redissonClient = Mockito.mock(RedissonClient.class);
+        RLock lock = Mockito.mock(RLock.class);
+        Mockito.when(lock.tryLock()).thenReturn(true);
+        Mockito.when(redissonClient.getLock(Mockito.anyString())).thenReturn(lock);
+
+        reconciler = new SeckillStockReconciler(seckillVoucherMapper, voucherOrderMapper, redis, redissonClient,
+                true, 1, 600, 3600, 10000, STREAM);
+
+        // 用户1~4下单，c0读到1、2，c1读到3、4
+        for (long user = 1; user <= 4; user++) {
+            order(user);
+        }
+        redis.opsForStream().createGroup(STREAM, ReadOffset.from("0"), GROUP);
+        read("c0", 2);
+        read("c1", 2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        cleanUp();
+    }
+
+    @Test
+    void testOutOfOrderAck() {
+        // 1.c1先落库、确认了3、4，c0的1、2还没确认；用户5的消息还没被读取
+        commit(3);
+        commit(4);
+        ack(3, 4);
+        order(5);
+        // Redis 10-5=5；数据库 10-2=8，在途 1、2、5，应有的库存 8-3=5
+        reconciler.reconcile();
+        assertConsistent();
+
+        // 2.用户1已经落库还没确认：既在pending-list里又在数据库里，只能扣一次
+        commit(1);
+        reconciler.reconcile();
+        assertConsistent();
+
+        // 3.c0确认
+        commit(2);
+        ack(1, 2);
+        reconciler.reconcile();
+        assertConsistent();
+    }
+
+    @Test
+    void testRepairDrift() {
+        commit(3);
+        commit(4);
+        ack(3, 4);
+        order(5);
+        // Redis库存被改多了，修复到 8-3=5
+        redis.opsForValue().set(SECKILL_STOCK_KEY + VOUCHER_ID, "9");
+        reconciler.reconcile();
+        Assertions.assertEquals("5", redis.opsForValue().get(SECKILL_STOCK_KEY + VOUCHER_ID));
+        Assertions.assertEquals(1L, reconciler.stats().get("repaired"));
+    }
+
+    private void assertConsistent() {
+        Assertions.assertEquals("5", redis.opsForValue().get(SECKILL_STOCK_KEY + VOUCHER_ID));
+        Assertions.assertEquals(0, reconciler.stats().get("lastDriftVouchers"));
+        Assertions.assertEquals(0L, reconciler.stats().get("repaired"));
+    }
+
+    //下单：扣Redis库存，记下用户，发消息
+    private void order(long user) {
+        redis.opsForValue().decrement(SECKILL_STOCK_KEY + VOUCHER_ID);
+        redis.opsForSet().add(SECKILL_ORDER_KEY + VOUCHER_ID, String.valueOf(user));
+        Map<String, String> message = new HashMap<>(4);
+        message.put("userId", String.valueOf(user));
+        message.put("voucherId", String.valueOf(VOUCHER_ID));
+        message.put("id", String.valueOf(user));
+        redis.opsForStream().add(StreamRecords.newRecord().in(STREAM).ofMap(message));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void read(String consumer, int count) {
+        List<MapRecord<String, Object, Object>> records = redis.opsForStream().read(Consumer.from(GROUP, consumer),
+                StreamReadOptions.empty().count(count), StreamOffset.create(STREAM, ReadOffset.lastConsumed()));
+        Assertions.assertEquals(count, records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            delivered.put(Long.valueOf(record.getValue().get("userId").toString()), record.getId().getValue());
+        }
+    }
+
+    //落库：扣数据库库存，保存订单
+    private void commit(long user) {
+        dbStock--;
+        dbUsers.add(user);
+    }
+
+    private void ack(long... users) {
+        for (long user : users) {
+            redis.opsForStream().acknowledge(STREAM, GROUP, delivered.get(user));
+        }
+    }
+
+    private SeckillVoucher voucher() {
+        return new SeckillVoucher().setVoucherId(VOUCHER_ID).setStock(dbStock)
+                .setBeginTime(LocalDateTime.now().minusHours(1)).setEndTime(LocalDateTime.now().plusHours(1));
+    }
+
+    private static void cleanUp() {
+        redis.delete(Arrays.asList(STREAM, SECKILL_STOCK_KEY + VOUCHER_ID, SECKILL_ORDER_KEY + VOUCHER_ID,
+                SeckillStockSharding.shardCountKey(VOUCHER_ID)));
+    }
+}
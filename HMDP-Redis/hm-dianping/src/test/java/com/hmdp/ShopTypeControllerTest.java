@@ -0,0 +1,168 @@
+package com.hmdp;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hmdp.config.MvcConfig;
+import com.hmdp.controller.ShopTypeController;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.ShopType;
+import com.hmdp.mapper.ShopTypeMapper;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.LoginSessionCache;
+import com.hmdp.utils.ShopTypeCatalog;
+import com.hmdp.utils.SignedTokenService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.test.context.junit.jupiter.web.SpringJUnitWebConfig;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * 店铺类型接口：列表的ETag/304，新增、修改需要登录
+ * 只启动MVC和登录拦截器（MvcConfig），数据库、Redis用mock代替
+ */
+@SpringJUnitWebConfig(ShopTypeControllerTest.Config.class)
+public class ShopTypeControllerTest {
+
+    private static final String TOKEN = "token-1";
+
+    @Configuration
+    @EnableWebMvc
+    @Import({MvcConfig.class, ShopTypeController.class})
+    static class Config {
+
+        @Bean
+        ShopTypeMapper shopTypeMapper() {
+            return Mockito.mock(ShopTypeMapper.class);
+        }
+
+        @Bean
+        StringRedisTemplate stringRedisTemplate() {
+            return Mockito.mock(StringRedisTemplate.class);
+        }
+
+        @Bean
+        ObjectMapper objectMapper() {
+            return Jackson2ObjectMapperBuilder.json().build();
+        }
+
+        @Bean
+        ShopTypeCatalog shopTypeCatalog(ShopTypeMapper shopTypeMapper, StringRedisTemplate stringRedisTemplate, ObjectMapper objectMapper) {
+            return new ShopTypeCatalog(shopTypeMapper, stringRedisTemplate, objectMapper);
+        }
+
+        @Bean
+        IShopTypeService shopTypeService() {
+            return Mockito.mock(IShopTypeService.class);
+        }
+
+        @Bean
+        LoginSessionCache loginSessionCache() {
+            return Mockito.mock(LoginSessionCache.class);
+        }
+
+        @Bean
+        SignedTokenService signedTokenService() {
+            return Mockito.mock(SignedTokenService.class);
+        }
+    }
+
+    @Autowired
+    private WebApplicationContext context;
+    @Autowired
+    private ShopTypeMapper shopTypeMapper;
+    @Autowired
+    private ShopTypeCatalog shopTypeCatalog;
+    @Autowired
+    private IShopTypeService shopTypeService;
+    @Autowired
+    private LoginSessionCache loginSessionCache;
+
+    private MockMvc mockMvc;
+    private final List<ShopType> types = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        Mockito.reset(shopTypeMapper, shopTypeService, loginSessionCache);
+        types.clear();
+        types.addAll(Arrays.asList(type(1L, "美食", 1), type(2L, "KTV", 2)));
+        Mockito.when(shopTypeMapper.selectList(Mockito.any())).thenAnswer(invocation -> new ArrayList<>(types));
+        Mockito.when(shopTypeService.saveShopType(Mockito.any())).thenReturn(Result.ok(3L));
+        UserDTO user = new UserDTO();
+        user.setId(1L);
+        Mockito.when(loginSessionCache.get(TOKEN)).thenReturn(user);
+        shopTypeCatalog.sync();
+        mockMvc = MockMvcBuilders.webAppContextSetup(context).build();
+    }
+
+    @Test
+    void testListEtag() throws Exception {
+        // 1.第一次请求：200，带ETag
+        String etag = mockMvc.perform(get("/shop-type/list"))
+                .andExpect(status().isOk())
+                .andExpect(header().exists(HttpHeaders.ETAG))
+                .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "no-cache"))
+                .andExpect(jsonPath("$.success").value(true))
+                .andExpect(jsonPath("$.data.length()").value(2))
+                .andExpect(jsonPath("$.data[1].name").value("KTV"))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        // 2.带着ETag再来：304，没有响应体，也不查数据库
+        mockMvc.perform(get("/shop-type/list").header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string(HttpHeaders.ETAG, etag))
+                .andExpect(content().bytes(new byte[0]));
+        Mockito.verify(shopTypeMapper, Mockito.times(1)).selectList(Mockito.any());
+        // 3.类型修改后重新加载，旧的ETag拿到新内容
+        types.add(type(3L, "丽人", 3));
+        shopTypeCatalog.refresh();
+        mockMvc.perform(get("/shop-type/list").header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.data.length()").value(3));
+    }
+
+    @Test
+    void testWriteRequiresLogin() throws Exception {
+        String body = "{\"name\":\"丽人\",\"sort\":3}";
+        // 列表不需要登录，新增需要
+        mockMvc.perform(get("/shop-type/list")).andExpect(status().isOk());
+        mockMvc.perform(post("/shop-type").contentType(MediaType.APPLICATION_JSON).content(body))
+                .andExpect(status().isUnauthorized());
+        Mockito.verify(shopTypeService, Mockito.never()).saveShopType(Mockito.any());
+        // 登录后可以新增
+        mockMvc.perform(post("/shop-type").header("authorization", TOKEN)
+                        .contentType(MediaType.APPLICATION_JSON).content(body))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.data").value(3));
+        Mockito.verify(shopTypeService).saveShopType(Mockito.any());
+    }
+
+    private static ShopType type(Long id, String name, int sort) {
+        ShopType type = new ShopType();
+        type.setId(id);
+        type.setName(name);
+        type.setSort(sort);
+        return type;
+    }
+}
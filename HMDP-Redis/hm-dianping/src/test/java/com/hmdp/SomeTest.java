@@ -4,23 +4,36 @@ import com.hmdp.entity.Shop;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillStockSharding;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.util.StreamUtils;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
 import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
 
 @SpringBootTest
@@ -116,9 +129,132 @@ class SomeTest {
     }
 
 
+    /**
+     * id生成对比：每个id一次INCR、号段模式、本地snowflake
+     * 300个线程每个100个，共30000个id；本机Redis跑三次：INCR 5.0~8.2s，号段 0.13~0.20s，snowflake 0.03~0.11s
+     */
+    @Test
+    void testIdWorkerSegment() throws InterruptedException {
+        long incr = benchmarkIdWorker(new RedisIdWorker(stringRedisTemplate, "redis", 1000));
+        long segment = benchmarkIdWorker(new RedisIdWorker(stringRedisTemplate, "segment", 1000));
+        RedisIdWorker snowflakeWorker = new RedisIdWorker(stringRedisTemplate, "snowflake", 1000);
+        long snowflake = benchmarkIdWorker(snowflakeWorker);
+        snowflakeWorker.destroy();
+        System.out.println("incr time = " + incr);
+        System.out.println("segment time = " + segment);
+        System.out.println("snowflake time = " + snowflake);
+    }
+
+    private long benchmarkIdWorker(RedisIdWorker idWorker) throws InterruptedException {
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        AtomicInteger disorder = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(300);
+        Runnable task = () -> {
+            long last = 0;
+            for (int i = 0; i < 100; i++) {
+                long id = idWorker.nextId("order");
+                // 同一个线程拿到的id应该单调递增
+                if (id <= last) {
+                    disorder.incrementAndGet();
+                }
+                last = id;
+                ids.add(id);
+            }
+            latch.countDown();
+        };
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < 300; i++) {
+            es.submit(task);
+        }
+        latch.await();
+        long end = System.currentTimeMillis();
+        // 不重复、单调
+        Assertions.assertEquals(30000, ids.size());
+        Assertions.assertEquals(0, disorder.get());
+        return end - begin;
+    }
+
     @Test
     void testSaveShop() throws InterruptedException {
         Shop shop = shopService.getById(1L);
         cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY + 1L, shop, 10L, TimeUnit.SECONDS);
     }
+
+
+    /**
+     * 秒杀库存：单key模式与分片模式的吞吐量对比，同时校验不超卖、不重复下单
+     * 订单消息写到单独的 stream.orders.bench（单key模式用替换了队列名的脚本副本），不会被订单消费者落库，结束后连同库存key一起删除
+     */
+    @Test
+    void testSeckillStockSharding() throws Exception {
+        String source = StreamUtils.copyToString(new ClassPathResource("seckill.lua").getInputStream(), StandardCharsets.UTF_8);
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>(source.replace("'stream.orders'", "'" + BENCH_STREAM + "'"), Long.class);
+        SeckillStockSharding sharding = new SeckillStockSharding(stringRedisTemplate, BENCH_STREAM);
+
+        long single = benchmarkSeckill(script, sharding, 990001L, 1);
+        long sharded = benchmarkSeckill(script, sharding, 990002L, 8);
+        System.out.println("single key time = " + single);
+        System.out.println("8 shards time = " + sharded);
+    }
+
+    private static final String BENCH_STREAM = "stream.orders.bench";
+
+    private long benchmarkSeckill(DefaultRedisScript<Long> script, SeckillStockSharding sharding, Long voucherId, int shards) throws InterruptedException {
+        int stock = 20000;
+        // 1.准备库存
+        List<String> keys = new ArrayList<>();
+        keys.add(BENCH_STREAM);
+        if (shards == 1) {
+            keys.add(SECKILL_STOCK_KEY + voucherId);
+            keys.add(SECKILL_ORDER_KEY + voucherId);
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+        } else {
+            int[] parts = SeckillStockSharding.split(stock, shards);
+            for (int i = 0; i < shards; i++) {
+                stringRedisTemplate.opsForValue().set(SeckillStockSharding.shardKey(voucherId, i), String.valueOf(parts[i]));
+                keys.add(SeckillStockSharding.shardKey(voucherId, i));
+                keys.add(SeckillStockSharding.shardOrderKey(voucherId, i));
+            }
+            stringRedisTemplate.opsForValue().set(SeckillStockSharding.shardCountKey(voucherId), String.valueOf(shards));
+            keys.add(SeckillStockSharding.shardCountKey(voucherId));
+        }
+        try {
+            // 2.300个线程，每个线程100个用户，每个用户抢两次（第二次应该是重复下单）
+            AtomicInteger success = new AtomicInteger();
+            AtomicInteger duplicate = new AtomicInteger();
+            AtomicLong orderId = new AtomicLong();
+            CountDownLatch latch = new CountDownLatch(300);
+            long begin = System.currentTimeMillis();
+            for (int t = 0; t < 300; t++) {
+                int base = t * 100;
+                es.submit(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        Long userId = (long) (base + i / 2);
+                        // 和 VoucherOrderServiceImpl.seckillVoucher 一样：已知是分片模式直接走分片，否则先执行脚本
+                        Long r = sharding.cachedShards(voucherId) > 0 ? null : stringRedisTemplate.execute(script,
+                                Collections.emptyList(), voucherId.toString(), userId.toString(), String.valueOf(orderId.incrementAndGet()));
+                        if (r == null || r == 3) {
+                            r = (long) sharding.seckill(voucherId, userId, orderId.incrementAndGet());
+                        }
+                        if (r != null && r == 0) {
+                            success.incrementAndGet();
+                        } else if (r != null && r == 2) {
+                            duplicate.incrementAndGet();
+                        }
+                    }
+                    latch.countDown();
+                });
+            }
+            latch.await();
+            long time = System.currentTimeMillis() - begin;
+            // 3.校验：30000个用户抢20000库存，正好卖完，每个成功的请求一条消息
+            Assertions.assertEquals(stock, success.get());
+            Assertions.assertTrue(duplicate.get() > 0);
+            Assertions.assertEquals(stock, stringRedisTemplate.opsForStream().size(BENCH_STREAM));
+            return time;
+        } finally {
+            // 4.清理
+            stringRedisTemplate.delete(keys);
+        }
+    }
 }
@@ -0,0 +1,149 @@
+package com.hmdp;
+
+import com.hmdp.dto.Result;
+import com.hmdp.entity.Voucher;
+import com.hmdp.mapper.VoucherMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.impl.VoucherServiceImpl;
+import com.hmdp.utils.SeckillStockSharding;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_VOUCHER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 店铺优惠券列表：缓存静态字段、用Redis实时库存覆盖，新增秒杀券在事务提交后才删除缓存
+ * 数据库用mock代替，需要Redis（见LocalRedis）
+ */
+public class VoucherServiceTest {
+
+    private static final long SHOP_ID = 990001L;
+    private static final long NORMAL_ID = 990101L, SINGLE_ID = 990102L, SHARDED_ID = 990103L, NEW_ID = 990104L;
+
+    private static StringRedisTemplate redis;
+
+    private VoucherMapper voucherMapper;
+    private VoucherServiceImpl voucherService;
+
+    @BeforeAll
+    static void connect() {
+        redis = LocalRedis.template();
+    }
+
+    @BeforeEach
+    void setUp() {
+        cleanUp();
+        voucherMapper = Mockito.mock(VoucherMapper.class);
+        Mockito.when(voucherMapper.queryVoucherOfShop(SHOP_ID)).thenAnswer(invocation -> new ArrayList<>(Arrays.asList(
+                voucher(NORMAL_ID, null), voucher(SINGLE_ID, 100), voucher(SHARDED_ID, 100))));
+        Mockito.when(voucherMapper.insert(Mockito.any(Voucher.class))).thenReturn(1);
+        voucherService = new VoucherServiceImpl();
+        ReflectionTestUtils.setField(voucherService, "baseMapper", voucherMapper);
+        ReflectionTestUtils.setField(voucherService, "seckillVoucherService", Mockito.mock(ISeckillVoucherService.class));
+        ReflectionTestUtils.setField(voucherService, "stringRedisTemplate", redis);
+        ReflectionTestUtils.setField(voucherService, "stockShards", 1);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        cleanUp();
+    }
+
+    @Test
+    void testOverlaySeckillStock() {
+        // 单key模式的券剩7个；分片模式的券两个分片 3 + 4
+        redis.opsForValue().set(SECKILL_STOCK_KEY + SINGLE_ID, "7");
+        redis.opsForValue().set(SeckillStockSharding.shardCountKey(SHARDED_ID), "2");
+        redis.opsForValue().set(SeckillStockSharding.shardKey(SHARDED_ID, 0), "3");
+        redis.opsForValue().set(SeckillStockSharding.shardKey(SHARDED_ID, 1), "4");
+
+        List<Voucher> first = query();
+        Assertions.assertNull(first.get(0).getStock());
+        Assertions.assertEquals(7, first.get(1).getStock());
+        Assertions.assertEquals(7, first.get(2).getStock());
+
+        // 第二次走缓存，库存仍然是实时的
+        redis.opsForValue().decrement(SECKILL_STOCK_KEY + SINGLE_ID);
+        redis.opsForValue().decrement(SeckillStockSharding.shardKey(SHARDED_ID, 1));
+        List<Voucher> second = query();
+        Assertions.assertEquals(6, second.get(1).getStock());
+        Assertions.assertEquals(6, second.get(2).getStock());
+        Mockito.verify(voucherMapper, Mockito.times(1)).queryVoucherOfShop(SHOP_ID);
+
+        // Redis里没有库存的券保留数据库的值
+        redis.delete(SECKILL_STOCK_KEY + SINGLE_ID);
+        Assertions.assertEquals(100, query().get(1).getStock());
+    }
+
+    @Test
+    void testEvictAfterCommit() {
+        query();
+        Assertions.assertTrue(redis.hasKey(CACHE_SHOP_VOUCHER_KEY + SHOP_ID));
+        // 模拟事务：提交之前缓存还在
+        TransactionSynchronizationManager.initSynchronization();
+        voucherService.addSeckillVoucher(voucher(NEW_ID, 50));
+        Assertions.assertTrue(redis.hasKey(CACHE_SHOP_VOUCHER_KEY + SHOP_ID));
+        Assertions.assertEquals("50", redis.opsForValue().get(SECKILL_STOCK_KEY + NEW_ID));
+        // 提交之后删除
+        TransactionSynchronizationUtils.triggerAfterCommit();
+        Assertions.assertFalse(redis.hasKey(CACHE_SHOP_VOUCHER_KEY + SHOP_ID));
+    }
+
+    @Test
+    void testNoEvictOnRollback() {
+        query();
+        TransactionSynchronizationManager.initSynchronization();
+        voucherService.addSeckillVoucher(voucher(NEW_ID, 50));
+        // 回滚不会触发afterCommit
+        TransactionSynchronizationManager.clearSynchronization();
+        Assertions.assertTrue(redis.hasKey(CACHE_SHOP_VOUCHER_KEY + SHOP_ID));
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Voucher> query() {
+        Result result = voucherService.queryVoucherOfShop(SHOP_ID);
+        Assertions.assertTrue(result.getSuccess());
+        return (List<Voucher>) result.getData();
+    }
+
+    private static Voucher voucher(long id, Integer stock) {
+        Voucher voucher = new Voucher();
+        voucher.setId(id);
+        voucher.setShopId(SHOP_ID);
+        voucher.setTitle("券" + id);
+        voucher.setType(stock == null ? 0 : 1);
+        voucher.setStock(stock);
+        voucher.setBeginTime(LocalDateTime.now());
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        return voucher;
+    }
+
+    private static void cleanUp() {
+        List<String> keys = new ArrayList<>();
+        keys.add(CACHE_SHOP_VOUCHER_KEY + SHOP_ID);
+        for (long id : new long[]{NORMAL_ID, SINGLE_ID, SHARDED_ID, NEW_ID}) {
+            keys.add(SECKILL_STOCK_KEY + id);
+            keys.add(SeckillStockSharding.shardCountKey(id));
+            keys.add(SeckillStockSharding.shardKey(id, 0));
+            keys.add(SeckillStockSharding.shardKey(id, 1));
+        }
+        redis.delete(keys);
+    }
+}